@@ -0,0 +1,210 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
+import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.type.numeric.integer.UnsignedShortType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import preview.net.imglib2.converter.RealTypeConverters;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Segments an image tile by tile on the GPU.
+ * <p>
+ * The tiles are processed in a pipeline of three stages, that run on
+ * different threads: While the GPU calculates the segmentation of tile n, the
+ * input of tile n+1 is read and converted to float, and the segmentation of
+ * tile n-1 is written into the output image. The GPU therefore doesn't need
+ * to wait for the input and output image, which might be slow to access.
+ * <p>
+ * Only the host side of the transfers is overlapped. A {@link GpuApi} is not
+ * thread-safe and has a single in-order command queue, so every call to it,
+ * including the pushes and pulls, stays on the thread that calls
+ * {@link #segment}. The transfers to and from the GPU therefore only copy
+ * arrays, that are already in main memory.
+ * <p>
+ * Each stage works on at most one tile at a time. The segmentation is pulled
+ * from the GPU into two alternating buffers, which are reused for tiles of
+ * equal size. The two threads are created once per scheduler, and are stopped
+ * by {@link #close()}.
+ */
+public class GpuTileScheduler implements AutoCloseable {
+
+	private final FeatureCalculator features;
+
+	private final RandomForestPrediction prediction;
+
+	private final ExecutorService uploader = Executors.newSingleThreadExecutor(
+		runnable -> daemon(runnable, "upload"));
+
+	private final ExecutorService downloader = Executors.newSingleThreadExecutor(
+		runnable -> daemon(runnable, "download"));
+
+	private long numberOfVoxels = 0;
+
+	private long nanoTime = 0;
+
+	public GpuTileScheduler(FeatureCalculator features, RandomForestPrediction prediction) {
+		this.features = features;
+		this.prediction = prediction;
+	}
+
+	private static Thread daemon(Runnable runnable, String name) {
+		Thread thread = new Thread(runnable, "gpu-tile-scheduler-" + name);
+		thread.setDaemon(true);
+		return thread;
+	}
+
+	/**
+	 * Segments the given tiles of the output image.
+	 *
+	 * @param gpu The GPU to use.
+	 * @param tiles List of disjoint intervals, that cover the output image.
+	 * @param image Input image, needs to be extended, the feature calculation
+	 *          reads pixels outside the tiles.
+	 * @param out Output image, the index of the class with the highest
+	 *          probability is written into it.
+	 */
+	public void segment(GpuApi gpu, List<Interval> tiles, RandomAccessible<?> image,
+		RandomAccessibleInterval<? extends IntegerType<?>> out)
+	{
+		long start = System.nanoTime();
+		// NB: The regions are determined with the GpuApi, and therefore on this thread.
+		List<Interval> regions = new ArrayList<>();
+		for (Interval tile : tiles)
+			regions.add(features.gpuInputInterval(gpu, image, tile));
+		List<Img<UnsignedShortType>> buffers = Arrays.asList(null, null);
+		int[] next = { 0 };
+		pipeline(indices(tiles.size()),
+			i -> features.prepareGpuInput(image, regions.get(i)),
+			(i, channels) -> {
+				Interval tile = tiles.get(i);
+				int index = next[0]++ % 2;
+				Img<UnsignedShortType> buffer = buffers.get(index);
+				if (buffer == null || !Intervals.equalDimensions(buffer, tile)) {
+					buffer = ArrayImgs.unsignedShorts(Intervals.dimensionsAsLongArray(tile));
+					buffers.set(index, buffer);
+				}
+				segmentTile(gpu, channels, tile, buffer);
+				return buffer;
+			},
+			(i, segmentation) -> RealTypeConverters.copyFromTo(segmentation, Views.zeroMin(Views
+				.interval(out, tiles.get(i)))));
+		this.nanoTime = System.nanoTime() - start;
+		this.numberOfVoxels = tiles.stream().mapToLong(Intervals::numElements).sum();
+	}
+
+	private static List<Integer> indices(int n) {
+		List<Integer> indices = new ArrayList<>(n);
+		for (int i = 0; i < n; i++)
+			indices.add(i);
+		return indices;
+	}
+
+	private void segmentTile(GpuApi gpu, List<RandomAccessible<FloatType>> input, Interval tile,
+		Img<UnsignedShortType> segmentation)
+	{
+		try (GpuApi scope = gpu.subScope()) {
+			GpuImage featureStack = features.applyUseGpu(scope, input, tile);
+			GpuImage segmentationBuffer = prediction.segment(scope, featureStack);
+			scope.pull(segmentationBuffer, segmentation);
+		}
+	}
+
+	/**
+	 * Runs the three stages for every item in the list. The upload and download
+	 * stage run on the threads of this scheduler, the compute stage on the
+	 * calling thread. The upload of item n+1 and the download of item n-1 run in
+	 * parallel to the compute stage of item n. Items are passed through each
+	 * stage in the order of the list.
+	 */
+	<I, A, B> void pipeline(List<I> items, Function<I, A> upload, BiFunction<I, A, B> compute,
+		BiConsumer<I, B> download)
+	{
+		if (items.isEmpty())
+			return;
+		Future<A> nextUpload = uploader.submit(() -> upload.apply(items.get(0)));
+		Future<?> pendingDownload = CompletableFuture.completedFuture(null);
+		try {
+			for (int i = 0; i < items.size(); i++) {
+				I item = items.get(i);
+				A uploaded = get(nextUpload);
+				if (i + 1 < items.size()) {
+					I nextItem = items.get(i + 1);
+					nextUpload = uploader.submit(() -> upload.apply(nextItem));
+				}
+				B result = compute.apply(item, uploaded);
+				get(pendingDownload);
+				pendingDownload = downloader.submit(() -> download.accept(item, result));
+			}
+			get(pendingDownload);
+		}
+		finally {
+			nextUpload.cancel(true);
+			pendingDownload.cancel(true);
+		}
+	}
+
+	private static <T> T get(Future<T> future) {
+		try {
+			return future.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException)
+				throw (RuntimeException) cause;
+			if (cause instanceof Error)
+				throw (Error) cause;
+			throw new RuntimeException(cause);
+		}
+	}
+
+	/**
+	 * Returns the number of voxels that were segmented by the last call to
+	 * {@link #segment}.
+	 */
+	public long numberOfVoxels() {
+		return numberOfVoxels;
+	}
+
+	/**
+	 * Returns the throughput of the last call to {@link #segment}, in voxels per
+	 * second.
+	 */
+	public double voxelsPerSecond() {
+		return nanoTime == 0 ? 0 : numberOfVoxels * 1e9 / nanoTime;
+	}
+
+	/**
+	 * Stops the upload and download threads.
+	 */
+	@Override
+	public void close() {
+		uploader.shutdownNow();
+		downloader.shutdownNow();
+	}
+}
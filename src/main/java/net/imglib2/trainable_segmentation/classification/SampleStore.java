@@ -0,0 +1,126 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.view.composite.Composite;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Column-oriented storage of training samples, a feature vector and a class
+ * index per sample.
+ * <p>
+ * The feature values are stored as primitive floats, one array per feature, and
+ * the class indices as primitive ints. This needs much less memory than storing
+ * each sample as a Weka {@link DenseInstance}. The arrays are allocated in
+ * chunks of fixed size, so adding samples doesn't copy the data collected so
+ * far. Only the first chunk starts small and grows, such that a few samples
+ * need little memory. The conversion to {@link Instances} is done only when
+ * needed for training, see {@link #toInstances}.
+ */
+class SampleStore {
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final int INITIAL_CAPACITY = 1 << 10;
+
+	private final int numberOfFeatures;
+
+	/** Chunk, feature, sample. */
+	private final List<float[][]> featureChunks = new ArrayList<>();
+
+	private final List<int[]> classIndexChunks = new ArrayList<>();
+
+	private int size = 0;
+
+	SampleStore(int numberOfFeatures) {
+		this.numberOfFeatures = numberOfFeatures;
+	}
+
+	void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
+		int offset = nextOffset();
+		float[][] chunk = featureChunks.get(featureChunks.size() - 1);
+		for (int i = 0; i < numberOfFeatures; i++)
+			chunk[i][offset] = featureVector.get(i).getRealFloat();
+		classIndexChunks.get(classIndexChunks.size() - 1)[offset] = classIndex;
+		size++;
+	}
+
+	/**
+	 * Returns the position of the next sample within the last chunk. Allocates a
+	 * new chunk if necessary.
+	 */
+	private int nextOffset() {
+		if (size == Integer.MAX_VALUE)
+			throw new IllegalStateException("Too many samples.");
+		int offset = size % CHUNK_SIZE;
+		if (offset == 0) {
+			int capacity = featureChunks.isEmpty() ? INITIAL_CAPACITY : CHUNK_SIZE;
+			featureChunks.add(new float[numberOfFeatures][capacity]);
+			classIndexChunks.add(new int[capacity]);
+		}
+		else if (offset == classIndexChunks.get(0).length && featureChunks.size() == 1)
+			growFirstChunk();
+		return offset;
+	}
+
+	/**
+	 * Doubles the capacity of the first chunk, up to {@link #CHUNK_SIZE}.
+	 */
+	private void growFirstChunk() {
+		int capacity = Math.min(2 * classIndexChunks.get(0).length, CHUNK_SIZE);
+		float[][] chunk = featureChunks.get(0);
+		for (int i = 0; i < numberOfFeatures; i++)
+			chunk[i] = Arrays.copyOf(chunk[i], capacity);
+		classIndexChunks.set(0, Arrays.copyOf(classIndexChunks.get(0), capacity));
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the number of samples that fit into the allocated chunks.
+	 */
+	int capacity() {
+		return classIndexChunks.stream().mapToInt(chunk -> chunk.length).sum();
+	}
+
+	int numberOfFeatures() {
+		return numberOfFeatures;
+	}
+
+	float feature(int sample, int feature) {
+		return featureChunks.get(sample / CHUNK_SIZE)[feature][sample % CHUNK_SIZE];
+	}
+
+	int classIndex(int sample) {
+		return classIndexChunks.get(sample / CHUNK_SIZE)[sample % CHUNK_SIZE];
+	}
+
+	/**
+	 * Converts the samples to Weka {@link Instances}. The class attribute needs
+	 * to be the last attribute.
+	 */
+	Instances toInstances(String name, List<Attribute> attributes) {
+		if (attributes.size() != numberOfFeatures + 1)
+			throw new IllegalArgumentException("Expected " + (numberOfFeatures + 1) +
+				" attributes, but got " + attributes.size() + ".");
+		Instances instances = new Instances(name, new ArrayList<>(attributes), size);
+		instances.setClassIndex(numberOfFeatures);
+		for (int sample = 0; sample < size; sample++) {
+			float[][] chunk = featureChunks.get(sample / CHUNK_SIZE);
+			int offset = sample % CHUNK_SIZE;
+			double[] values = new double[numberOfFeatures + 1];
+			for (int i = 0; i < numberOfFeatures; i++)
+				values[i] = chunk[i][offset];
+			values[numberOfFeatures] = classIndexChunks.get(sample / CHUNK_SIZE)[offset];
+			instances.add(new DenseInstance(1.0, values));
+		}
+		return instances;
+	}
+}
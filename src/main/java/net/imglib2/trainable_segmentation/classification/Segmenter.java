@@ -4,8 +4,8 @@ package net.imglib2.trainable_segmentation.classification;
 import com.google.gson.Gson;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
 import com.google.gson.reflect.TypeToken;
-import hr.irb.fastRandomForest.FastRandomForest;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
@@ -28,12 +28,22 @@ import net.imglib2.util.Intervals;
 import net.imglib2.view.Views;
 import net.imglib2.view.composite.Composite;
 import org.scijava.Context;
+import preview.net.imglib2.loops.IntervalChunks;
 import weka.classifiers.Classifier;
 import weka.core.Attribute;
 import weka.core.Instances;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.stream.Collectors;
+import java.util.stream.LongStream;
 import java.util.stream.Stream;
 
 /**
@@ -47,18 +57,41 @@ public class Segmenter {
 
 	private final weka.classifiers.Classifier classifier;
 
-	private RandomForestPrediction predicition;
+	/**
+	 * {@link RandomForestPrediction} of the classifier. It's built lazily by
+	 * {@link #prediction()}, reused by all calls to segment and predict, and
+	 * reset when the classifier is trained.
+	 */
+	private volatile RandomForestPrediction prediction;
 
 	private boolean useGpu = false;
 
+	private long[] tileSize = null;
+
+	private boolean earlyExit = false;
+
+	/**
+	 * First bytes of the binary format, see {@link #toBinary()}.
+	 */
+	private static final int BINARY_MAGIC = 0x54534547;
+
+	private static final int BINARY_VERSION = 1;
+
 	private Segmenter(List<String> classNames, FeatureCalculator features,
 		Classifier classifier)
 	{
 		this.classNames = Collections.unmodifiableList(classNames);
 		this.features = Objects.requireNonNull(features);
 		this.classifier = Objects.requireNonNull(classifier);
-		this.predicition = new RandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
+	}
+
+	private Segmenter(List<String> classNames, FeatureCalculator features,
+		RandomForestPrediction prediction)
+	{
+		this.classNames = Collections.unmodifiableList(classNames);
+		this.features = Objects.requireNonNull(features);
+		this.classifier = null;
+		this.prediction = Objects.requireNonNull(prediction);
 	}
 
 	public Segmenter(Context context, List<String> classNames, FeatureSettings features,
@@ -67,6 +100,10 @@ public class Segmenter {
 		this(classNames, new FeatureCalculator(context, features), classifier);
 	}
 
+	/**
+	 * Returns the Weka classifier, or null if the segmenter was loaded from the
+	 * binary format, see {@link #fromBinary(Context, ByteBuffer)}.
+	 */
 	public Classifier getClassifier() {
 		return classifier;
 	}
@@ -76,6 +113,69 @@ public class Segmenter {
 		features.setUseGpu(useGpu);
 	}
 
+	/**
+	 * Enables early exit for the random forest evaluation in
+	 * {@link #segment(RandomAccessibleInterval, RandomAccessible)} on CPU. The
+	 * evaluation of the trees stops as soon as the class of a pixel is decided.
+	 * The result is the same as without early exit.
+	 *
+	 * @see RandomForestPrediction#setEarlyExit(boolean)
+	 */
+	public synchronized void setEarlyExit(boolean earlyExit) {
+		this.earlyExit = earlyExit;
+		RandomForestPrediction prediction = this.prediction;
+		if (prediction != null)
+			prediction.setEarlyExit(earlyExit);
+	}
+
+	/**
+	 * Returns the {@link RandomForestPrediction} of the classifier. The
+	 * conversion of the Weka classifier is done only once, and repeated only
+	 * after training.
+	 */
+	private RandomForestPrediction prediction() {
+		RandomForestPrediction result = prediction;
+		if (result != null)
+			return result;
+		synchronized (this) {
+			if (prediction == null) {
+				result = new RandomForestPrediction(Cast.unchecked(requireClassifier()), features
+					.count());
+				result.setEarlyExit(earlyExit);
+				prediction = result;
+			}
+			return prediction;
+		}
+	}
+
+	/**
+	 * Enables tiled segmentation. {@link #segment(RandomAccessibleInterval,
+	 * RandomAccessible)} then splits the output interval into blocks of the given
+	 * size and calculates the feature stack and segmentation block by block. The
+	 * peak memory consumption therefore scales with the tile size times the number
+	 * of features, rather than with the size of the image.
+	 * <p>
+	 * There is no need to specify a halo. The features of each block are
+	 * calculated from the (extended) input image, which yields exactly the same
+	 * result as the segmentation without tiling.
+	 * <p>
+	 * On CPU the blocks are processed in parallel by a {@link TileScheduler},
+	 * using the {@link preview.net.imglib2.parallel.TaskExecutor} of the current
+	 * {@link preview.net.imglib2.parallel.Parallelization} context.
+	 *
+	 * @param tileSize Size of a tile, one value per dimension. {@code null}
+	 *          disables tiling.
+	 */
+	public void setTileSize(long... tileSize) {
+		if (tileSize != null && LongStream.of(tileSize).anyMatch(x -> x <= 0))
+			throw new IllegalArgumentException("Tile size must be positive.");
+		this.tileSize = tileSize == null ? null : tileSize.clone();
+	}
+
+	public long[] getTileSize() {
+		return tileSize == null ? null : tileSize.clone();
+	}
+
 	public FeatureCalculator features() {
 		return features;
 	}
@@ -112,29 +212,50 @@ public class Segmenter {
 	{
 		Objects.requireNonNull(out);
 		Objects.requireNonNull(image);
-		if (useGpu)
-			segmentGpu(image, out);
-		else
-			segmentCpu(image, out);
+		List<Interval> tiles = tiles(out);
+		if (useGpu && tiles.size() > 1) {
+			try (GpuApi scope = GpuPool.borrowGpu();
+				GpuTileScheduler scheduler = new GpuTileScheduler(features, prediction()))
+			{
+				scheduler.segment(scope, tiles, image, out);
+			}
+			return;
+		}
+		if (!useGpu && tiles.size() > 1) {
+			new TileScheduler(features, prediction()).segment(tiles, image, out);
+			return;
+		}
+		for (Interval tile : tiles) {
+			RandomAccessibleInterval<? extends IntegerType<?>> outTile = Views.interval(out, tile);
+			if (useGpu)
+				segmentGpu(image, outTile);
+			else
+				segmentCpu(image, outTile);
+		}
+	}
+
+	private List<Interval> tiles(Interval interval) {
+		if (tileSize == null)
+			return Collections.singletonList(interval);
+		if (tileSize.length != interval.numDimensions())
+			throw new IllegalArgumentException("Tile size has " + tileSize.length +
+				" dimensions, but the output image has " + interval.numDimensions() + ".");
+		return IntervalChunks.generateGrid(interval, tileSize);
 	}
 
 	private void segmentCpu(RandomAccessible<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, out);
-		RandomForestPrediction forest = new RandomForestPrediction((FastRandomForest) classifier,
-			features.count());
-		forest.segment(featureValues, out);
+		float[] featureValues = features.applyInterleaved(image, out);
+		prediction().segment(featureValues, out);
 	}
 
 	private void segmentGpu(RandomAccessible<?> image,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
 		try (GpuApi scope = GpuPool.borrowGpu()) {
-			RandomForestPrediction prediction = new RandomForestPrediction(Cast.unchecked(classifier),
-				features.count());
 			GpuImage featureStack = features.applyUseGpu(scope, image, out);
-			GpuImage segmentationBuffer = prediction.segment(scope, featureStack);
+			GpuImage segmentationBuffer = prediction().segment(scope, featureStack);
 			GpuCopy.copyFromTo(segmentationBuffer, out);
 		}
 	}
@@ -166,23 +287,19 @@ public class Segmenter {
 		RandomAccessible<?> image)
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
-		RandomAccessibleInterval<FloatType> featureValues = features.apply(image, interval);
-		RandomForestPrediction prediction = new RandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
-		prediction.distribution(featureValues, out);
+		float[] featureValues = features.applyInterleaved(image, interval);
+		prediction().distribution(featureValues, out);
 	}
 
 	private void predictGpu(RandomAccessibleInterval<? extends RealType<?>> out,
 		RandomAccessible<?> image)
 	{
 		Interval interval = RevampUtils.removeLastDimension(out);
-		RandomForestPrediction prediction = new RandomForestPrediction(Cast.unchecked(classifier),
-			features.count());
 		try (GpuApi scope = GpuPool.borrowGpu()) {
 			GpuImage featureStack = features.applyUseGpu(scope, image, interval);
 			GpuImage distribution = scope.create(featureStack.getDimensions(), features.count(),
 				NativeTypeEnum.Float);
-			prediction.distribution(scope, featureStack, distribution);
+			prediction().distribution(scope, featureStack, distribution);
 			GpuCopy.copyFromTo(featureStack, out);
 		}
 	}
@@ -196,10 +313,15 @@ public class Segmenter {
 	}
 
 	public JsonElement toJsonTree() {
+		JsonObject json = settingsToJson();
+		json.add("classifier", ClassifierSerialization.wekaToJson(requireClassifier()));
+		return json;
+	}
+
+	private JsonObject settingsToJson() {
 		JsonObject json = new JsonObject();
 		json.add("features", features.settings().toJson());
 		json.add("classNames", new Gson().toJsonTree(classNames));
-		json.add("classifier", ClassifierSerialization.wekaToJson(classifier));
 		return json;
 	}
 
@@ -213,27 +335,143 @@ public class Segmenter {
 			ClassifierSerialization.jsonToWeka(object.get("classifier")));
 	}
 
-	private class MyTrainingData implements Training {
+	/**
+	 * Returns the segmenter in a compact binary format. In contrast to
+	 * {@link #toJsonTree()}, the random forest isn't stored as serialized Weka
+	 * object, but as the flat arrays used by {@link RandomForestPrediction}.
+	 * This is much smaller and much faster to load. But a segmenter loaded from
+	 * the binary format can't be trained further.
+	 * <p>
+	 * The format starts with a magic number and a version, followed by the
+	 * feature settings and class names as UTF-8 encoded JSON, and the random
+	 * forest as written by {@link RandomForestPrediction#write(ByteBuffer)}.
+	 *
+	 * @return Buffer with position zero, and limit at the end of the data.
+	 * @see #fromBinary(Context, ByteBuffer)
+	 */
+	public ByteBuffer toBinary() {
+		byte[] settings = new Gson().toJson(settingsToJson()).getBytes(StandardCharsets.UTF_8);
+		int settingsSize = (settings.length + 3) & ~3;
+		RandomForestPrediction prediction = prediction();
+		ByteBuffer buffer = ByteBuffer.allocate(3 * 4 + settingsSize + prediction.serializedSize())
+			.order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(BINARY_MAGIC);
+		buffer.putInt(BINARY_VERSION);
+		buffer.putInt(settings.length);
+		buffer.put(settings);
+		buffer.position(buffer.position() + settingsSize - settings.length);
+		prediction.write(buffer);
+		buffer.flip();
+		return buffer;
+	}
 
-		final Instances instances;
+	/**
+	 * Writes the segmenter in the binary format into a file, see
+	 * {@link #toBinary()}. The file can be memory-mapped by
+	 * {@link #fromBinaryFile(Context, String)}.
+	 */
+	public void writeBinary(String filename) {
+		ByteBuffer buffer = toBinary();
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+			StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE))
+		{
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
-		final int featureCount;
+	/**
+	 * Reads a segmenter from the binary format, see {@link #toBinary()}.
+	 *
+	 * @throws IllegalArgumentException if the buffer doesn't contain a segmenter
+	 *           in a supported version of the binary format.
+	 */
+	public static Segmenter fromBinary(Context context, ByteBuffer buffer) {
+		return fromBinary(context, buffer, false);
+	}
 
-		MyTrainingData() {
-			this.instances = new Instances("segment", new ArrayList<>(attributes()), 1);
-			this.featureCount = features.count();
-			instances.setClassIndex(featureCount);
+	/**
+	 * Memory-maps a file, that was written by {@link #writeBinary(String)}, and
+	 * returns the segmenter stored in it. The random forest is not copied onto
+	 * the heap, it's evaluated directly from the read-only mapping, see
+	 * {@link RandomForestPrediction#map(ByteBuffer)}. All segmenters and all
+	 * processes that load the same file share one physical copy of the forest
+	 * in the page cache of the operating system. The file must not be modified
+	 * while the segmenter is in use.
+	 *
+	 * @throws IllegalArgumentException if the file doesn't contain a segmenter
+	 *           in a supported version of the binary format.
+	 */
+	public static Segmenter fromBinaryFile(Context context, String filename) {
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			// NB: The mapping stays valid after the channel is closed.
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return fromBinary(context, buffer, true);
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
 		}
+	}
+
+	private static Segmenter fromBinary(Context context, ByteBuffer buffer, boolean map) {
+		ByteBuffer input = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		if (input.remaining() < 3 * 4 || input.getInt() != BINARY_MAGIC)
+			throw new IllegalArgumentException("The data is not a segmenter in binary format.");
+		int version = input.getInt();
+		if (version != BINARY_VERSION)
+			throw new IllegalArgumentException("Unsupported version of the binary format: " +
+				version);
+		int settingsLength = input.getInt();
+		if (settingsLength < 0 || ((settingsLength + 3L) & ~3L) > input.remaining())
+			throw new IllegalArgumentException("The segmenter settings are incomplete.");
+		byte[] settings = new byte[settingsLength];
+		input.get(settings);
+		input.position(input.position() + ((settings.length + 3) & ~3) - settings.length);
+		JsonObject object = new JsonParser().parse(new String(settings, StandardCharsets.UTF_8))
+			.getAsJsonObject();
+		List<String> classNames = new Gson().fromJson(object.get("classNames"),
+			new TypeToken<List<String>>()
+			{}.getType());
+		FeatureCalculator features = new FeatureCalculator(context, FeatureSettings.fromJson(object
+			.get("features")));
+		RandomForestPrediction prediction = map ? RandomForestPrediction.map(input)
+			: RandomForestPrediction.read(input);
+		if (prediction.numberOfFeatures() != features.count() || prediction
+			.numberOfClasses() != classNames.size())
+			throw new IllegalArgumentException(
+				"The random forest doesn't match the feature settings and class names.");
+		return new Segmenter(classNames, features, prediction);
+	}
+
+	private Classifier requireClassifier() {
+		if (classifier == null)
+			throw new UnsupportedOperationException(
+				"The segmenter was loaded from the binary format, it has no Weka classifier.");
+		return classifier;
+	}
+
+	private class MyTrainingData implements Training {
+
+		final SampleStore samples = new SampleStore(features.count());
 
 		@Override
 		public void add(Composite<? extends RealType<?>> featureVector, int classIndex) {
-			instances.add(RevampUtils.getInstance(featureCount, classIndex, featureVector));
+			samples.add(featureVector, classIndex);
 		}
 
 		@Override
 		public void train() {
-			RevampUtils.wrapException(() -> classifier.buildClassifier(instances));
-			predicition = new RandomForestPrediction(Cast.unchecked(classifier), features.count());
+			Instances instances = samples.toInstances("segment", attributes());
+			Classifier classifier = requireClassifier();
+			// NB: The lock prevents prediction() from converting a classifier, that
+			// is only partially trained.
+			synchronized (Segmenter.this) {
+				RevampUtils.wrapException(() -> classifier.buildClassifier(instances));
+				prediction = null;
+			}
 		}
 	}
 
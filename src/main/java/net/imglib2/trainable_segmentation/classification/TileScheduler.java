@@ -0,0 +1,101 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.type.numeric.IntegerType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Segments an image tile by tile on multiple threads.
+ * <p>
+ * The tiles are distributed over the threads of the {@link TaskExecutor} that
+ * is returned by {@link Parallelization#getTaskExecutor()}. Each thread
+ * repeatedly takes the next unprocessed tile, until all tiles are done. A tile
+ * is processed single-threaded, and each thread reuses its pixel-interleaved
+ * feature stack buffer for all of its tiles.
+ */
+public class TileScheduler {
+
+	private final FeatureCalculator features;
+
+	private final RandomForestPrediction prediction;
+
+	private long numberOfVoxels = 0;
+
+	private long nanoTime = 0;
+
+	public TileScheduler(FeatureCalculator features, RandomForestPrediction prediction) {
+		this.features = features;
+		this.prediction = prediction;
+	}
+
+	/**
+	 * Segments the given tiles of the output image.
+	 *
+	 * @param tiles List of disjoint intervals, that cover the output image.
+	 * @param image Input image, needs to be extended, the feature calculation
+	 *          reads pixels outside the tiles.
+	 * @param out Output image, the index of the class with the highest probability
+	 *          is written into it.
+	 */
+	public void segment(List<Interval> tiles, RandomAccessible<?> image,
+		RandomAccessibleInterval<? extends IntegerType<?>> out)
+	{
+		long start = System.nanoTime();
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		int numberOfWorkers = Math.max(1, Math.min(executor.getParallelism(), tiles.size()));
+		long bufferSize = tiles.stream().mapToLong(Intervals::numElements).max().orElse(0) *
+			features.count();
+		if (bufferSize > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Tile size is too big.");
+		AtomicInteger nextTile = new AtomicInteger();
+		List<Integer> workers = IntStream.range(0, numberOfWorkers).boxed().collect(Collectors
+			.toList());
+		executor.forEach(workers, ignore -> {
+			float[] buffer = new float[(int) bufferSize];
+			for (int i = nextTile.getAndIncrement(); i < tiles.size(); i = nextTile
+				.getAndIncrement())
+			{
+				Interval tile = tiles.get(i);
+				Parallelization.runSingleThreaded(() -> segmentTile(buffer, image, Views.interval(out,
+					tile)));
+			}
+		});
+		this.nanoTime = System.nanoTime() - start;
+		this.numberOfVoxels = tiles.stream().mapToLong(Intervals::numElements).sum();
+	}
+
+	private void segmentTile(float[] buffer, RandomAccessible<?> image,
+		RandomAccessibleInterval<? extends IntegerType<?>> out)
+	{
+		features.applyInterleaved(image, out, buffer);
+		prediction.segment(buffer, out);
+	}
+
+	/**
+	 * Returns the number of voxels that were segmented by the last call to
+	 * {@link #segment}.
+	 */
+	public long numberOfVoxels() {
+		return numberOfVoxels;
+	}
+
+	/**
+	 * Returns the throughput of the last call to {@link #segment}, in voxels per
+	 * second.
+	 */
+	public double voxelsPerSecond() {
+		return nanoTime == 0 ? 0 : numberOfVoxels * 1e9 / nanoTime;
+	}
+}
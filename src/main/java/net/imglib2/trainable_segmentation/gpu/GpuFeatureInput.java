@@ -32,6 +32,14 @@ public class GpuFeatureInput {
 		cache.request(new GpuOriginalContent(cache), interval);
 	}
 
+	/**
+	 * Returns the region of the original image, that was requested by
+	 * prefetching, or null if the original image isn't needed.
+	 */
+	public Interval originalInterval() {
+		return cache.requestedInterval(new GpuOriginalContent(cache));
+	}
+
 	public GpuView original(Interval interval) {
 		return cache.get(new GpuOriginalContent(cache), interval);
 	}
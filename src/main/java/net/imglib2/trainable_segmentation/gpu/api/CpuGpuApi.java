@@ -0,0 +1,88 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Implementation of {@link GpuApi} that doesn't need an OpenCL device. The
+ * images are direct {@link ByteBuffer}s in main memory, and the OpenCL kernels
+ * used by this project are replaced by Java implementations, see
+ * {@link CpuKernels}. The kernels are parallelized over the global work size,
+ * using the {@link preview.net.imglib2.parallel.TaskExecutor} of the current
+ * {@link preview.net.imglib2.parallel.Parallelization} context.
+ * <p>
+ * This allows to run and test the GPU code paths, i.e. the feature calculation
+ * with {@link net.imglib2.trainable_segmentation.gpu.GpuFeatureInput} and the
+ * random forest kernels, on machines without a GPU. Other kernels are not
+ * supported.
+ * <p>
+ * Released buffers are reused, like in {@link DefaultGpuApi}.
+ */
+public class CpuGpuApi implements GpuApi {
+
+	private final Map<Integer, Queue<ByteBuffer>> unused = new ConcurrentHashMap<>();
+
+	private final GpuCache cache = new GpuCache(this);
+
+	@Override
+	public GpuImage create(long[] dimensions, long numberOfChannels, NativeTypeEnum type) {
+		long size = numberOfChannels * GpuImage.bytesPerPixel(type);
+		for (long dimension : dimensions)
+			size *= dimension;
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("The image is too big.");
+		return new GpuImage(allocate((int) size), dimensions, numberOfChannels, type,
+			this::release);
+	}
+
+	private ByteBuffer allocate(int size) {
+		Queue<ByteBuffer> queue = unused.get(size);
+		ByteBuffer buffer = queue == null ? null : queue.poll();
+		if (buffer != null)
+			return buffer;
+		return ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+	}
+
+	private void release(ByteBuffer buffer) {
+		unused.computeIfAbsent(buffer.capacity(), ignore -> new ConcurrentLinkedQueue<>()).add(
+			buffer);
+	}
+
+	@Override
+	public GpuApi subScope() {
+		return new GpuScope(this, null);
+	}
+
+	@Override
+	public void execute(Class<?> anchorClass, String kernelFile, String kernelName,
+		long[] globalSizes, long[] localSizes, HashMap<String, Object> parameters,
+		HashMap<String, Object> defines)
+	{
+		CpuKernels.execute(kernelFile, globalSizes, parameters, defines);
+	}
+
+	@Override
+	public <T> T handleOutOfMemoryException(Supplier<T> action) {
+		return action.get();
+	}
+
+	@Override
+	public <T> T cached(Object key, Function<GpuApi, T> factory) {
+		return cache.get(key, factory);
+	}
+
+	@Override
+	public void close() {
+		cache.close();
+		unused.clear();
+	}
+}
@@ -0,0 +1,240 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+/**
+ * Java implementations of the OpenCL kernels, used by {@link CpuGpuApi}. The
+ * kernels are identified by their file name. Their parameters and defines are
+ * the same as for the OpenCL kernels.
+ */
+class CpuKernels {
+
+	private static final List<String> SEPARABLE_OPERATIONS = Arrays.asList("convolve1d.cl",
+		"min1d.cl", "max1d.cl", "mean1d.cl");
+
+	private static final int CONVOLVE = 0, MIN = 1, MAX = 2;
+
+	private CpuKernels() {
+		// prevent from instantiation
+	}
+
+	static void execute(String kernelFile, long[] globalSizes, Map<String, Object> parameters,
+		Map<String, Object> defines)
+	{
+		switch (kernelFile) {
+			case "pixelwise_operation.cl":
+				CpuPixelWiseOperation.run(globalSizes, parameters, (String) defines.get("OPERATION"));
+				return;
+			case "convolve1d.cl":
+			case "min1d.cl":
+			case "max1d.cl":
+			case "mean1d.cl":
+				separableOperation(kernelFile, globalSizes, parameters, defines);
+				return;
+			case "random_forest.cl":
+				randomForest(parameters, defines);
+				return;
+			case "find_max.cl":
+				findMax(globalSizes, parameters);
+				return;
+		}
+		throw new UnsupportedOperationException("The kernel " + kernelFile +
+			" is not supported by CpuGpuApi.");
+	}
+
+	/**
+	 * The body of a kernel, that is called for each work item.
+	 */
+	interface Kernel {
+
+		void apply(int x, int y, int z);
+	}
+
+	/**
+	 * Calls the kernel for each work item in the given global size. The work is
+	 * split into blocks of lines, that are processed in parallel. The kernel
+	 * factory is called once per block, which allows the kernel to have state.
+	 */
+	static void forEachWorkItem(long[] globalSizes, Supplier<Kernel> kernelFactory) {
+		int sizeX = (int) size(globalSizes, 0);
+		int sizeY = (int) size(globalSizes, 1);
+		int lines = (int) (sizeY * size(globalSizes, 2));
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		int numberOfTasks = Math.max(1, Math.min(executor.suggestNumberOfTasks(), lines));
+		int linesPerTask = (lines + numberOfTasks - 1) / numberOfTasks;
+		List<Integer> starts = new ArrayList<>();
+		for (int start = 0; start < lines; start += linesPerTask)
+			starts.add(start);
+		executor.forEach(starts, start -> {
+			Kernel kernel = kernelFactory.get();
+			int end = Math.min(lines, start + linesPerTask);
+			for (int line = start; line < end; line++) {
+				int y = line % sizeY;
+				int z = line / sizeY;
+				for (int x = 0; x < sizeX; x++)
+					kernel.apply(x, y, z);
+			}
+		});
+	}
+
+	private static long size(long[] globalSizes, int d) {
+		return d < globalSizes.length ? globalSizes[d] : 1;
+	}
+
+	/**
+	 * Same as the kernels in convolve1d.cl, min1d.cl, max1d.cl and mean1d.cl.
+	 * The dimension of the operation is the x-axis of the global size. Input and
+	 * output are addressed by the offsets and skips given as defines.
+	 */
+	private static void separableOperation(String kernelFile, long[] globalSizes,
+		Map<String, Object> parameters, Map<String, Object> defines)
+	{
+		if (!defines.containsKey("INPUT_OFFSET"))
+			throw new UnsupportedOperationException("The kernel " + kernelFile +
+				" is only supported by CpuGpuApi, if it's used with GpuViews.");
+		HostPixels input = HostPixels.of((GpuImage) parameters.get("input"));
+		HostPixels output = HostPixels.of((GpuImage) parameters.get("output"));
+		int length = intDefine(defines, "KERNEL_LENGTH");
+		int inputOffset = intDefine(defines, "INPUT_OFFSET");
+		int inputSkipX = intDefine(defines, "INPUT_X_SKIP");
+		int inputSkipY = intDefine(defines, "INPUT_Y_SKIP");
+		int inputSkipZ = intDefine(defines, "INPUT_Z_SKIP");
+		int outputOffset = intDefine(defines, "OUTPUT_OFFSET");
+		int outputSkipX = intDefine(defines, "OUTPUT_X_SKIP");
+		int outputSkipY = intDefine(defines, "OUTPUT_Y_SKIP");
+		int outputSkipZ = intDefine(defines, "OUTPUT_Z_SKIP");
+		int operation = SEPARABLE_OPERATIONS.indexOf(kernelFile);
+		float[] kernelValues = operation == CONVOLVE ? toFloats(HostPixels.of((GpuImage) parameters
+			.get("kernelValues")), length) : null;
+		forEachWorkItem(globalSizes, () -> {
+			float[] values = new float[length];
+			return (x, y, z) -> {
+				int start = inputOffset + inputSkipX * x + inputSkipY * y + inputSkipZ * z;
+				for (int i = 0; i < length; i++)
+					values[i] = (float) input.get(start + i * inputSkipX);
+				float result;
+				switch (operation) {
+					case CONVOLVE:
+						result = 0;
+						for (int i = 0; i < length; i++)
+							result += kernelValues[i] * values[i];
+						break;
+					case MIN:
+						result = values[0];
+						for (int i = 1; i < length; i++)
+							result = Math.min(result, values[i]);
+						break;
+					case MAX:
+						result = values[0];
+						for (int i = 1; i < length; i++)
+							result = Math.max(result, values[i]);
+						break;
+					default:
+						result = 0;
+						for (int i = 0; i < length; i++)
+							result += values[i];
+						result /= length;
+				}
+				output.set(outputOffset + outputSkipX * x + outputSkipY * y + outputSkipZ * z, result);
+			};
+		});
+	}
+
+	/**
+	 * Same as the kernel in random_forest.cl.
+	 */
+	private static void randomForest(Map<String, Object> parameters, Map<String, Object> defines) {
+		GpuImage srcImage = (GpuImage) parameters.get("src");
+		GpuImage thresholdsImage = (GpuImage) parameters.get("thresholds");
+		GpuImage probabilitiesImage = (GpuImage) parameters.get("probabilities");
+		GpuImage indicesImage = (GpuImage) parameters.get("indices");
+		HostPixels src = HostPixels.of(srcImage);
+		HostPixels dst = HostPixels.of((GpuImage) parameters.get("dst"));
+		HostPixels thresholds = HostPixels.of(thresholdsImage);
+		HostPixels probabilities = HostPixels.of(probabilitiesImage);
+		HostPixels indices = HostPixels.of(indicesImage);
+		int numberOfFeatures = intDefine(defines, "NUMBER_OF_FEATURES");
+		int numberOfClasses = (int) probabilitiesImage.getWidth();
+		int numberOfLeafs = (int) probabilitiesImage.getHeight();
+		int numberOfNodes = (int) thresholdsImage.getHeight();
+		int numberOfTrees = (int) thresholdsImage.getDepth();
+		long leafFlag = indicesImage.getNativeType() == NativeTypeEnum.UnsignedShort ? 0x8000
+			: 0x80000000L;
+		forEachWorkItem(srcImage.getDimensions(), () -> {
+			float[] features = new float[numberOfFeatures];
+			float[] results = new float[numberOfClasses];
+			return (x, y, z) -> {
+				int pixel = (z * src.height + y) * src.width + x;
+				for (int i = 0; i < numberOfFeatures; i++)
+					features[i] = (float) src.get(pixel + i * src.volume);
+				Arrays.fill(results, 0);
+				for (int tree = 0; tree < numberOfTrees; tree++) {
+					long node = 0;
+					while (node < leafFlag) {
+						int nodeOffset = tree * numberOfNodes + (int) node;
+						int attributeIndex = (int) unsigned(indices.get(nodeOffset * 3));
+						float threshold = (float) thresholds.get(nodeOffset);
+						int child = features[attributeIndex] >= threshold ? 2 : 1;
+						node = unsigned(indices.get(nodeOffset * 3 + child));
+					}
+					int leafOffset = (tree * numberOfLeafs + (int) (node - leafFlag)) * numberOfClasses;
+					for (int i = 0; i < numberOfClasses; i++)
+						results[i] += (float) probabilities.get(leafOffset + i);
+				}
+				float sum = 0;
+				for (int i = 0; i < numberOfClasses; i++)
+					sum += results[i];
+				for (int i = 0; i < numberOfClasses; i++)
+					dst.set(pixel + i * dst.volume, results[i] / sum);
+			};
+		});
+	}
+
+	private static long unsigned(double index) {
+		return ((long) index) & 0xffffffffL;
+	}
+
+	/**
+	 * Same as the kernel in find_max.cl.
+	 */
+	private static void findMax(long[] globalSizes, Map<String, Object> parameters) {
+		HostPixels src = HostPixels.of((GpuImage) parameters.get("src"));
+		HostPixels dst = HostPixels.of((GpuImage) parameters.get("dst"));
+		int numberOfClasses = (Integer) parameters.get("num_classes");
+		forEachWorkItem(globalSizes, () -> (x, y, z) -> {
+			int pixel = (z * src.height + y) * src.width + x;
+			int maxIndex = 0;
+			float maxValue = (float) src.get(pixel);
+			for (int i = 1; i < numberOfClasses; i++) {
+				float value = (float) src.get(pixel + i * src.volume);
+				if (value > maxValue) {
+					maxValue = value;
+					maxIndex = i;
+				}
+			}
+			dst.set((z * dst.height + y) * dst.width + x, maxIndex);
+		});
+	}
+
+	private static int intDefine(Map<String, Object> defines, String name) {
+		Object value = defines.get(name);
+		if (!(value instanceof Number))
+			throw new IllegalArgumentException("Missing numeric define: " + name);
+		return ((Number) value).intValue();
+	}
+
+	private static float[] toFloats(HostPixels pixels, int length) {
+		float[] result = new float[length];
+		for (int i = 0; i < length; i++)
+			result[i] = (float) pixels.get(i);
+		return result;
+	}
+}
@@ -0,0 +1,480 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import net.imglib2.trainable_segmentation.utils.CubicEquation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Executes the operations of {@link GpuPixelWiseOperation} on the CPU, for
+ * {@link CpuGpuApi}.
+ * <p>
+ * The operation is a piece of OpenCL C code. It's compiled into a tree of
+ * Java objects, which is then evaluated for every pixel. Only the small subset
+ * of OpenCL C that is used in this project is supported: declarations and
+ * assignments of scalar variables and arrays, the arithmetic operators +, -,
+ * *, /, casts, pixel access via PIXEL_OFFSET(image, offset) and the math
+ * functions sqrt, fabs, exp, log, pow, min, max, floor and ceil, as well as
+ * solve_cubic_equation(...) from pixelwise_operation.cl. Values are
+ * calculated in double precision, but rounded to float wherever OpenCL would
+ * use float.
+ */
+class CpuPixelWiseOperation {
+
+	private static final Pattern TOKEN = Pattern.compile(
+		"\\s*(([0-9]+\\.?[0-9]*|\\.[0-9]+)([eE][-+]?[0-9]+)?[fF]?|[A-Za-z_][A-Za-z_0-9]*|[-+*/()\\[\\],;=])");
+
+	private static final Pattern IMAGE_PIXEL_TYPE = Pattern.compile("IMAGE_(.*)_PIXEL_TYPE");
+
+	private static final int INTEGER = 0, FLOAT = 1, DOUBLE = 2;
+
+	private final Map<String, Object> parameters;
+
+	private final Map<String, Variable> variables = new HashMap<>();
+
+	private final List<Integer> arrayLengths = new ArrayList<>();
+
+	private int numberOfScalars = 0;
+
+	private final List<String> tokens;
+
+	private int position = 0;
+
+	private final List<Statement> program = new ArrayList<>();
+
+	private CpuPixelWiseOperation(Map<String, Object> parameters, String operation) {
+		this.parameters = parameters;
+		this.tokens = tokenize(operation);
+		while (position < tokens.size()) {
+			if (!peek(";"))
+				statement();
+			if (position < tokens.size())
+				expect(";");
+		}
+	}
+
+	static void run(long[] globalSizes, Map<String, Object> parameters, String operation) {
+		CpuPixelWiseOperation compiled = new CpuPixelWiseOperation(parameters, operation);
+		Statement[] statements = compiled.program.toArray(new Statement[0]);
+		CpuKernels.forEachWorkItem(globalSizes, () -> {
+			Frame frame = compiled.newFrame();
+			return (x, y, z) -> {
+				frame.x = x;
+				frame.y = y;
+				frame.z = z;
+				for (Statement statement : statements)
+					statement.run(frame);
+			};
+		});
+	}
+
+	// -- Runtime --
+
+	private interface Statement {
+
+		void run(Frame frame);
+	}
+
+	private interface Expression {
+
+		double eval(Frame frame);
+	}
+
+	private static class Frame {
+
+		private final double[] values;
+
+		private final double[][] arrays;
+
+		private int x, y, z;
+
+		private Frame(int numberOfValues, List<Integer> arrayLengths) {
+			this.values = new double[numberOfValues];
+			this.arrays = new double[arrayLengths.size()][];
+			for (int i = 0; i < arrays.length; i++)
+				arrays[i] = new double[arrayLengths.get(i)];
+		}
+	}
+
+	private Frame newFrame() {
+		return new Frame(numberOfScalars, arrayLengths);
+	}
+
+	private static class Variable {
+
+		private final int index;
+
+		private final int type;
+
+		private final boolean isArray;
+
+		private Variable(int index, int type, boolean isArray) {
+			this.index = index;
+			this.type = type;
+			this.isArray = isArray;
+		}
+	}
+
+	/**
+	 * A compiled expression and the OpenCL type of its result.
+	 */
+	private static class Typed {
+
+		private final Expression expression;
+
+		private final int type;
+
+		private Typed(Expression expression, int type) {
+			this.expression = expression;
+			this.type = type;
+		}
+	}
+
+	// -- Parser --
+
+	private static List<String> tokenize(String code) {
+		List<String> tokens = new ArrayList<>();
+		Matcher matcher = TOKEN.matcher(code);
+		int end = 0;
+		while (end < code.length() && matcher.find(end) && matcher.start() == end) {
+			tokens.add(matcher.group(1));
+			end = matcher.end();
+		}
+		if (!code.substring(end).trim().isEmpty())
+			throw unsupported("Unsupported syntax: " + code.substring(end));
+		return tokens;
+	}
+
+	private void statement() {
+		String token = next();
+		Integer type = typeOf(token);
+		if (type != null) {
+			do
+				declaration(type);
+			while (accept(","));
+		}
+		else if (token.equals("PIXEL_OFFSET") || token.equals("PIXEL")) {
+			PixelAccess access = pixelAccess(token);
+			HostPixels image = access.image;
+			Expression offset = access.offset;
+			expect("=");
+			Expression value = expression().expression;
+			program.add(frame -> image.set(pixel(image, frame) + (int) offset.eval(frame), value.eval(
+				frame)));
+		}
+		else if (token.equals("solve_cubic_equation"))
+			solveCubicEquation();
+		else {
+			Variable variable = variable(token);
+			Expression index = variable.isArray ? arrayIndex() : null;
+			expect("=");
+			program.add(assignment(variable, index, expression()));
+		}
+	}
+
+	private void declaration(int type) {
+		String name = next();
+		if (!name.matches("[A-Za-z_][A-Za-z_0-9]*") || variables.containsKey(name) || parameters
+			.containsKey(name))
+			throw unsupported("Invalid variable name: " + name);
+		if (accept("[")) {
+			int length = Integer.parseInt(next());
+			expect("]");
+			variables.put(name, new Variable(arrayLengths.size(), type, true));
+			arrayLengths.add(length);
+			return;
+		}
+		Variable variable = new Variable(numberOfScalars++, type, false);
+		variables.put(name, variable);
+		if (accept("="))
+			program.add(assignment(variable, null, expression()));
+	}
+
+	private Statement assignment(Variable variable, Expression index, Typed value) {
+		Expression converted = convert(value, variable.type).expression;
+		int slot = variable.index;
+		if (index != null)
+			return frame -> frame.arrays[slot][(int) index.eval(frame)] = converted.eval(frame);
+		return frame -> frame.values[slot] = converted.eval(frame);
+	}
+
+	private void solveCubicEquation() {
+		expect("(");
+		Expression b0 = expression().expression;
+		expect(",");
+		Expression b1 = expression().expression;
+		expect(",");
+		Expression b2 = expression().expression;
+		expect(",");
+		Variable x = variable(next());
+		if (!x.isArray)
+			throw unsupported("solve_cubic_equation(...) requires an array.");
+		expect(")");
+		int slot = x.index;
+		program.add(frame -> CubicEquation.solveNormalized(b0.eval(frame), b1.eval(frame), b2.eval(
+			frame), frame.arrays[slot]));
+	}
+
+	private Typed expression() {
+		Typed result = term();
+		while (peek("+") || peek("-")) {
+			boolean plus = next().equals("+");
+			Typed a = result, b = term();
+			int type = Math.max(a.type, b.type);
+			Expression x = a.expression, y = b.expression;
+			result = round(plus ? frame -> x.eval(frame) + y.eval(frame) : frame -> x.eval(frame) - y
+				.eval(frame), type);
+		}
+		return result;
+	}
+
+	private Typed term() {
+		Typed result = unary();
+		while (peek("*") || peek("/")) {
+			boolean multiply = next().equals("*");
+			Typed a = result, b = unary();
+			int type = Math.max(a.type, b.type);
+			Expression x = a.expression, y = b.expression;
+			if (multiply)
+				result = round(frame -> x.eval(frame) * y.eval(frame), type);
+			else if (type == INTEGER)
+				result = new Typed(frame -> (long) x.eval(frame) / (long) y.eval(frame), INTEGER);
+			else
+				result = round(frame -> x.eval(frame) / y.eval(frame), type);
+		}
+		return result;
+	}
+
+	private Typed unary() {
+		if (accept("-")) {
+			Typed a = unary();
+			Expression x = a.expression;
+			return new Typed(frame -> -x.eval(frame), a.type);
+		}
+		if (accept("+"))
+			return unary();
+		if (peek("(") && position + 2 < tokens.size() && typeOf(tokens.get(position + 1)) != null &&
+			tokens.get(position + 2).equals(")"))
+		{
+			next();
+			int type = typeOf(next());
+			next();
+			return convert(unary(), type);
+		}
+		return primary();
+	}
+
+	private Typed primary() {
+		String token = next();
+		if (token.equals("(")) {
+			Typed result = expression();
+			expect(")");
+			return result;
+		}
+		if (Character.isDigit(token.charAt(0)) || token.charAt(0) == '.')
+			return literal(token);
+		if (token.equals("PIXEL_OFFSET") || token.equals("PIXEL")) {
+			PixelAccess access = pixelAccess(token);
+			HostPixels image = access.image;
+			Expression offset = access.offset;
+			return new Typed(frame -> image.get(pixel(image, frame) + (int) offset.eval(frame)), image
+				.isFloatingPoint() ? FLOAT : INTEGER);
+		}
+		if (peek("("))
+			return function(token);
+		if (parameters.containsKey(token))
+			return constant(parameters.get(token));
+		Variable variable = variable(token);
+		int slot = variable.index;
+		if (variable.isArray) {
+			Expression index = arrayIndex();
+			return new Typed(frame -> frame.arrays[slot][(int) index.eval(frame)], variable.type);
+		}
+		return new Typed(frame -> frame.values[slot], variable.type);
+	}
+
+	private static Typed literal(String token) {
+		boolean isFloat = token.endsWith("f") || token.endsWith("F");
+		String number = isFloat ? token.substring(0, token.length() - 1) : token;
+		boolean isInteger = !isFloat && number.matches("[0-9]+");
+		double value = isFloat ? Float.parseFloat(number) : Double.parseDouble(number);
+		return new Typed(frame -> value, isInteger ? INTEGER : isFloat ? FLOAT : DOUBLE);
+	}
+
+	private static Typed constant(Object value) {
+		if (!(value instanceof Number))
+			throw unsupported("Images can only be accessed with PIXEL_OFFSET(...).");
+		double v = ((Number) value).doubleValue();
+		int type = value instanceof Float ? FLOAT : value instanceof Double ? DOUBLE : INTEGER;
+		return new Typed(frame -> v, type);
+	}
+
+	/**
+	 * Compiles a call of one of the supported math functions.
+	 */
+	private Typed function(String name) {
+		expect("(");
+		List<Typed> arguments = new ArrayList<>();
+		if (!accept(")")) {
+			do
+				arguments.add(expression());
+			while (accept(","));
+			expect(")");
+		}
+		int type = FLOAT;
+		for (Typed argument : arguments)
+			type = Math.max(type, argument.type);
+		Expression a = arguments.size() > 0 ? arguments.get(0).expression : null;
+		Expression b = arguments.size() > 1 ? arguments.get(1).expression : null;
+		switch (name + "/" + arguments.size()) {
+			case "sqrt/1":
+				return round(frame -> Math.sqrt(a.eval(frame)), type);
+			case "fabs/1":
+				return round(frame -> Math.abs(a.eval(frame)), type);
+			case "exp/1":
+				return round(frame -> Math.exp(a.eval(frame)), type);
+			case "log/1":
+				return round(frame -> Math.log(a.eval(frame)), type);
+			case "floor/1":
+				return round(frame -> Math.floor(a.eval(frame)), type);
+			case "ceil/1":
+				return round(frame -> Math.ceil(a.eval(frame)), type);
+			case "pow/2":
+				return round(frame -> Math.pow(a.eval(frame), b.eval(frame)), type);
+			case "min/2":
+			case "fmin/2":
+				return round(frame -> Math.min(a.eval(frame), b.eval(frame)), type);
+			case "max/2":
+			case "fmax/2":
+				return round(frame -> Math.max(a.eval(frame), b.eval(frame)), type);
+		}
+		throw unsupported("Unsupported function: " + name);
+	}
+
+	private static class PixelAccess {
+
+		private final HostPixels image;
+
+		private final Expression offset;
+
+		private PixelAccess(HostPixels image, Expression offset) {
+			this.image = image;
+			this.offset = offset;
+		}
+	}
+
+	/**
+	 * Parses the arguments of PIXEL_OFFSET(image, offset) or PIXEL(image).
+	 */
+	private PixelAccess pixelAccess(String function) {
+		expect("(");
+		Object image = parameters.get(next());
+		if (!(image instanceof GpuImage))
+			throw unsupported(function + "(...) requires an image.");
+		Expression offset = frame -> 0;
+		if (function.equals("PIXEL_OFFSET")) {
+			expect(",");
+			offset = expression().expression;
+		}
+		expect(")");
+		return new PixelAccess(HostPixels.of((GpuImage) image), offset);
+	}
+
+	private static int pixel(HostPixels image, Frame frame) {
+		return (frame.z * image.height + frame.y) * image.width + frame.x;
+	}
+
+	private Expression arrayIndex() {
+		expect("[");
+		Expression index = expression().expression;
+		expect("]");
+		return index;
+	}
+
+	private Variable variable(String name) {
+		Variable variable = variables.get(name);
+		if (variable == null)
+			throw unsupported("Unknown variable: " + name);
+		return variable;
+	}
+
+	/**
+	 * Returns the type for a type name, or null if the token is no type name.
+	 */
+	private Integer typeOf(String token) {
+		switch (token) {
+			case "int":
+			case "long":
+			case "uint":
+			case "ulong":
+			case "short":
+			case "ushort":
+				return INTEGER;
+			case "float":
+				return FLOAT;
+			case "double":
+				return DOUBLE;
+		}
+		Matcher matcher = IMAGE_PIXEL_TYPE.matcher(token);
+		if (!matcher.matches())
+			return null;
+		Object image = parameters.get(matcher.group(1));
+		if (!(image instanceof GpuImage))
+			throw unsupported("Unknown image: " + matcher.group(1));
+		return HostPixels.of((GpuImage) image).isFloatingPoint() ? FLOAT : INTEGER;
+	}
+
+	private static Typed convert(Typed value, int type) {
+		Expression x = value.expression;
+		switch (type) {
+			case INTEGER:
+				return new Typed(frame -> (long) x.eval(frame), INTEGER);
+			case FLOAT:
+				return new Typed(frame -> (float) x.eval(frame), FLOAT);
+			default:
+				return new Typed(x, type);
+		}
+	}
+
+	/**
+	 * Rounds the result of an arithmetic operation to float, if the operation
+	 * is done in single precision in OpenCL.
+	 */
+	private static Typed round(Expression expression, int type) {
+		if (type == FLOAT)
+			return new Typed(frame -> (float) expression.eval(frame), FLOAT);
+		return new Typed(expression, type);
+	}
+
+	private String next() {
+		if (position >= tokens.size())
+			throw unsupported("Unexpected end of the operation.");
+		return tokens.get(position++);
+	}
+
+	private boolean peek(String token) {
+		return position < tokens.size() && tokens.get(position).equals(token);
+	}
+
+	private boolean accept(String token) {
+		if (!peek(token))
+			return false;
+		position++;
+		return true;
+	}
+
+	private void expect(String token) {
+		String actual = next();
+		if (!actual.equals(token))
+			throw unsupported("Expected \"" + token + "\" but found \"" + actual + "\".");
+	}
+
+	private static UnsupportedOperationException unsupported(String message) {
+		return new UnsupportedOperationException("CpuGpuApi can't execute the operation. " +
+			message);
+	}
+}
@@ -12,6 +12,7 @@ import net.haesleinhuepf.clij2.CLIJ2;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class DefaultGpuApi implements GpuApi {
@@ -20,6 +21,8 @@ public class DefaultGpuApi implements GpuApi {
 
 	private final ClearCLBufferPool pool;
 
+	private final GpuCache cache = new GpuCache(this);
+
 	private final static Set<ClearCLBufferPool> POOLS = new CopyOnWriteArraySet<>();
 
 	DefaultGpuApi(String openClDeviceName) {
@@ -60,6 +63,10 @@ public class DefaultGpuApi implements GpuApi {
 	@Override
 	public void close() {
 		POOLS.remove(pool);
+		try {
+			cache.close();
+		}
+		catch (Exception ignored) {}
 		try {
 			pool.close();
 		}
@@ -87,6 +94,11 @@ public class DefaultGpuApi implements GpuApi {
 		});
 	}
 
+	@Override
+	public <T> T cached(Object key, Function<GpuApi, T> factory) {
+		return cache.get(key, factory);
+	}
+
 	@Override
 	public <T> T handleOutOfMemoryException(Supplier<T> action) {
 		try {
@@ -12,6 +12,7 @@ import net.imglib2.util.Intervals;
 
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public interface GpuApi extends AutoCloseable {
@@ -61,10 +62,34 @@ public interface GpuApi extends AutoCloseable {
 		});
 	}
 
+	/**
+	 * Copies the image into the given target image. In contrast to
+	 * {@link #pullRAI}, this allows to reuse the memory of the target.
+	 */
+	default void pull(GpuImage source, RandomAccessibleInterval<? extends RealType<?>> target) {
+		handleOutOfMemoryException(() -> {
+			GpuCopy.copyFromTo(source, target);
+			return null;
+		});
+	}
+
 	void execute(Class<?> anchorClass, String kernelFile, String kernelName, long[] globalSizes,
 		long[] localSizes, HashMap<String, Object> parameters, HashMap<String, Object> defines);
 
 	<T> T handleOutOfMemoryException(Supplier<T> action);
+
+	/**
+	 * Returns the value that is cached for the given key, or creates it with the
+	 * given factory. The cache belongs to the underlying GPU context, and is
+	 * shared by all its sub scopes. This allows to upload data, for example a
+	 * random forest, only once and to reuse it in later scopes.
+	 * <p>
+	 * The factory gets a {@link GpuApi}, whose images stay alive until the key
+	 * is garbage collected or the GPU context is closed. The key is compared by
+	 * identity and only weakly referenced, the value must therefore not
+	 * reference the key. Cached images must not be modified.
+	 */
+	<T> T cached(Object key, Function<GpuApi, T> factory);
 }
 
 class Private {
@@ -0,0 +1,78 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import net.imglib2.util.Cast;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Cache of values, that hold GPU memory, for example a random forest that was
+ * pushed to the GPU. See {@link GpuApi#cached(Object, Function)}.
+ * <p>
+ * The keys are compared by identity and only weakly referenced. Each value is
+ * created with its own sub scope of the GPU context. The scope is closed, and
+ * the GPU memory is released, when the key is garbage collected, or when the
+ * cache is closed.
+ */
+class GpuCache implements AutoCloseable {
+
+	private final GpuApi gpu;
+
+	private final List<Entry> entries = new ArrayList<>();
+
+	private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+
+	GpuCache(GpuApi gpu) {
+		this.gpu = gpu;
+	}
+
+	synchronized <T> T get(Object key, Function<GpuApi, T> factory) {
+		expungeStaleEntries();
+		for (Entry entry : entries)
+			if (entry.get() == key)
+				return Cast.unchecked(entry.value);
+		GpuApi scope = gpu.subScope();
+		try {
+			T value = factory.apply(scope);
+			entries.add(new Entry(key, queue, scope, value));
+			return value;
+		}
+		catch (RuntimeException e) {
+			scope.close();
+			throw e;
+		}
+	}
+
+	private void expungeStaleEntries() {
+		Reference<?> reference;
+		while ((reference = queue.poll()) != null) {
+			Entry entry = (Entry) reference;
+			entries.remove(entry);
+			entry.scope.close();
+		}
+	}
+
+	@Override
+	public synchronized void close() {
+		for (Entry entry : entries)
+			entry.scope.close();
+		entries.clear();
+	}
+
+	private static class Entry extends WeakReference<Object> {
+
+		private final GpuApi scope;
+
+		private final Object value;
+
+		private Entry(Object key, ReferenceQueue<Object> queue, GpuApi scope, Object value) {
+			super(key, queue);
+			this.scope = scope;
+			this.value = value;
+		}
+	}
+}
@@ -46,7 +46,7 @@ public class GpuCopy {
 		RealType<?> targetType = getImgLib2Type(target.getNativeType());
 		Object array = getBackingArrayOrNull(source);
 		if (array != null && sourceType.getClass() == targetType.getClass()) {
-			target.clearCLBuffer().readFrom(wrapAsBuffer(array), true);
+			target.readFrom(wrapAsBuffer(array));
 		}
 		else {
 			RandomAccessibleInterval<RealType<?>> tmp = new ArrayImgFactory<>((NativeType) targetType)
@@ -64,7 +64,7 @@ public class GpuCopy {
 		RealType<?> targetType = Util.getTypeFromInterval(target);
 		Object array = getBackingArrayOrNull(target);
 		if (array != null && sourceType.getClass() == targetType.getClass()) {
-			source.clearCLBuffer().writeTo(wrapAsBuffer(array), true);
+			source.writeTo(wrapAsBuffer(array));
 		}
 		else {
 			RandomAccessibleInterval<RealType<?>> tmp = new ArrayImgFactory<>((NativeType) sourceType)
@@ -145,6 +145,8 @@ public class GpuCopy {
 			return NativeTypeEnum.Float;
 		if (type instanceof UnsignedShortType)
 			return NativeTypeEnum.UnsignedShort;
+		if (type instanceof IntType)
+			return NativeTypeEnum.Int;
 		throw new UnsupportedOperationException();
 	}
 }
@@ -1,44 +1,187 @@
-
 package net.imglib2.trainable_segmentation.gpu.api;
 
 import net.haesleinhuepf.clij.clearcl.ClearCLBuffer;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
 import java.util.function.Consumer;
 
+/**
+ * An image in the memory of the GPU. The image is either an OpenCL buffer, or,
+ * if it was created by {@link CpuGpuApi}, a direct {@link ByteBuffer} in main
+ * memory.
+ */
 public class GpuImage implements AutoCloseable {
 
 	private ClearCLBuffer clearClBuffer;
 
 	private final Consumer<ClearCLBuffer> onClose;
 
+	private ByteBuffer hostBuffer;
+
+	private final Consumer<ByteBuffer> onCloseHost;
+
+	private final long[] dimensions;
+
+	private final long numberOfChannels;
+
+	private final NativeTypeEnum nativeType;
+
 	public GpuImage(ClearCLBuffer clearClBuffer, Consumer<ClearCLBuffer> onClose) {
 		this.clearClBuffer = clearClBuffer;
 		this.onClose = onClose;
+		this.hostBuffer = null;
+		this.onCloseHost = null;
+		this.dimensions = clearClBuffer.getDimensions();
+		this.numberOfChannels = clearClBuffer.getNumberOfChannels();
+		this.nativeType = clearClBuffer.getNativeType();
+	}
+
+	GpuImage(ByteBuffer hostBuffer, long[] dimensions, long numberOfChannels,
+		NativeTypeEnum nativeType, Consumer<ByteBuffer> onClose)
+	{
+		this.clearClBuffer = null;
+		this.onClose = null;
+		this.hostBuffer = hostBuffer;
+		this.onCloseHost = onClose;
+		this.dimensions = dimensions.clone();
+		this.numberOfChannels = numberOfChannels;
+		this.nativeType = nativeType;
 	}
 
 	public long[] getDimensions() {
-		return clearClBuffer.getDimensions();
+		return dimensions.clone();
 	}
 
 	public long getWidth() {
-		return clearClBuffer.getWidth();
+		return dimensions[0];
 	}
 
 	public long getHeight() {
-		return clearClBuffer.getHeight();
+		return dimensions.length > 1 ? dimensions[1] : 1;
 	}
 
 	public long getDepth() {
-		return clearClBuffer.getDepth();
+		return dimensions.length > 2 ? dimensions[2] : 1;
 	}
 
+	/**
+	 * Returns the OpenCL buffer.
+	 *
+	 * @throws UnsupportedOperationException if the image was created by
+	 *           {@link CpuGpuApi}.
+	 * @throws IllegalStateException if the image is closed.
+	 */
 	public ClearCLBuffer clearCLBuffer() {
+		checkNotClosed();
+		if (hostBuffer != null)
+			throw new UnsupportedOperationException(
+				"The image is stored in main memory, it has no OpenCL buffer.");
 		return clearClBuffer;
 	}
 
+	/**
+	 * Returns the direct buffer of an image created by {@link CpuGpuApi}, null
+	 * otherwise.
+	 */
+	ByteBuffer hostBuffer() {
+		checkNotClosed();
+		return hostBuffer;
+	}
+
+	/**
+	 * Returns the size of the image in bytes, including all channels.
+	 */
+	public long getSizeInBytes() {
+		long size = numberOfChannels * bytesPerPixel(nativeType);
+		for (long dimension : dimensions)
+			size *= dimension;
+		return size;
+	}
+
+	static int bytesPerPixel(NativeTypeEnum type) {
+		switch (type) {
+			case Byte:
+			case UnsignedByte:
+				return 1;
+			case Short:
+			case UnsignedShort:
+			case HalfFloat:
+				return 2;
+			case Int:
+			case UnsignedInt:
+			case Float:
+				return 4;
+			case Long:
+			case UnsignedLong:
+			case Double:
+				return 8;
+		}
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Copies the content of the given buffer into the image. The type of the
+	 * buffer must match the pixel type.
+	 */
+	void readFrom(Buffer buffer) {
+		checkNotClosed();
+		if (hostBuffer == null) {
+			clearCLBuffer().readFrom(buffer, true);
+			return;
+		}
+		ByteBuffer target = hostBuffer.duplicate().order(hostBuffer.order());
+		if (buffer instanceof ByteBuffer)
+			target.put(((ByteBuffer) buffer).duplicate());
+		else if (buffer instanceof ShortBuffer)
+			target.asShortBuffer().put(((ShortBuffer) buffer).duplicate());
+		else if (buffer instanceof IntBuffer)
+			target.asIntBuffer().put(((IntBuffer) buffer).duplicate());
+		else if (buffer instanceof FloatBuffer)
+			target.asFloatBuffer().put(((FloatBuffer) buffer).duplicate());
+		else
+			throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Copies the content of the image into the given buffer. The type of the
+	 * buffer must match the pixel type.
+	 */
+	void writeTo(Buffer buffer) {
+		checkNotClosed();
+		if (hostBuffer == null) {
+			clearCLBuffer().writeTo(buffer, true);
+			return;
+		}
+		ByteBuffer source = hostBuffer.duplicate().order(hostBuffer.order());
+		if (buffer instanceof ByteBuffer)
+			((ByteBuffer) buffer).duplicate().put(source);
+		else if (buffer instanceof ShortBuffer)
+			((ShortBuffer) buffer).duplicate().put(source.asShortBuffer());
+		else if (buffer instanceof IntBuffer)
+			((IntBuffer) buffer).duplicate().put(source.asIntBuffer());
+		else if (buffer instanceof FloatBuffer)
+			((FloatBuffer) buffer).duplicate().put(source.asFloatBuffer());
+		else
+			throw new UnsupportedOperationException();
+	}
+
+	private void checkNotClosed() {
+		if (hostBuffer == null && clearClBuffer == null)
+			throw new IllegalStateException("The image is already closed.");
+	}
+
 	@Override
 	public void close() {
+		if (hostBuffer != null) {
+			ByteBuffer buffer = hostBuffer;
+			hostBuffer = null;
+			onCloseHost.accept(buffer);
+		}
 		if (clearClBuffer == null)
 			return;
 		ClearCLBuffer buffer = clearClBuffer;
@@ -47,10 +190,10 @@ public class GpuImage implements AutoCloseable {
 	}
 
 	public NativeTypeEnum getNativeType() {
-		return clearClBuffer.getNativeType();
+		return nativeType;
 	}
 
 	public long getNumberOfChannels() {
-		return clearClBuffer.getNumberOfChannels();
+		return numberOfChannels;
 	}
 }
@@ -17,11 +17,15 @@ public class GpuPool {
 
 	private static final GpuPool POOL = initializePool();
 
+	private static volatile boolean cpuFallback = false;
+
 	private static GpuPool initializePool() {
 		return DefaultGpuApi.isDeviceAvailable(OPEN_CL_DEVICE_NAME) ? new GpuPool() : null;
 	}
 
 	public static GpuApi borrowGpu() {
+		if (!isGpuAvailable() && cpuFallback)
+			return new CpuGpuApi();
 		if (!isGpuAvailable())
 			throw new IllegalStateException("No OpenCL device is available. " + OPEN_CL_DEVICE_NAME);
 		return POOL.gpu();
@@ -54,6 +58,16 @@ public class GpuPool {
 		return POOL != null;
 	}
 
+	/**
+	 * If enabled, {@link #borrowGpu()} returns a new {@link CpuGpuApi}, instead
+	 * of throwing an exception, when no OpenCL device is available. This allows
+	 * to run the GPU code paths on machines without a GPU, e.g. in tests.
+	 * {@link #isGpuAvailable()} is not affected.
+	 */
+	public static void setCpuFallback(boolean enabled) {
+		cpuFallback = enabled;
+	}
+
 	private static class MyObjectFactory implements PooledObjectFactory<DefaultGpuApi> {
 
 		@Override
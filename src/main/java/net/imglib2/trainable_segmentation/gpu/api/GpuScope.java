@@ -5,6 +5,7 @@ import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.imglib2.trainable_segmentation.utils.Scope;
 
 import java.util.HashMap;
+import java.util.function.Function;
 import java.util.function.Supplier;
 
 public class GpuScope implements GpuApi {
@@ -43,6 +44,11 @@ public class GpuScope implements GpuApi {
 		return parent.handleOutOfMemoryException(action);
 	}
 
+	@Override
+	public <T> T cached(Object key, Function<GpuApi, T> factory) {
+		return parent.cached(key, factory);
+	}
+
 	@Override
 	public void close() {
 		scope.close();
@@ -0,0 +1,179 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Pixel access to a {@link GpuImage} created by {@link CpuGpuApi}. The pixels
+ * are addressed by their index in the buffer, like in the OpenCL kernels.
+ */
+abstract class HostPixels {
+
+	final int width;
+
+	final int height;
+
+	final int volume;
+
+	private HostPixels(long[] dimensions) {
+		this.width = (int) dimension(dimensions, 0);
+		this.height = (int) dimension(dimensions, 1);
+		this.volume = (int) (width * (long) height * dimension(dimensions, 2));
+	}
+
+	private static long dimension(long[] dimensions, int d) {
+		return d < dimensions.length ? dimensions[d] : 1;
+	}
+
+	abstract double get(int index);
+
+	abstract void set(int index, double value);
+
+	/**
+	 * Returns false for integer pixel types.
+	 */
+	abstract boolean isFloatingPoint();
+
+	static HostPixels of(GpuImage image) {
+		ByteBuffer buffer = image.hostBuffer();
+		if (buffer == null)
+			throw new IllegalArgumentException("The image was not created by CpuGpuApi.");
+		buffer = buffer.duplicate().order(buffer.order());
+		long[] dimensions = image.getDimensions();
+		NativeTypeEnum type = image.getNativeType();
+		switch (type) {
+			case Float:
+				return new FloatPixels(dimensions, buffer.asFloatBuffer());
+			case Int:
+				return new IntPixels(dimensions, buffer.asIntBuffer(), false);
+			case UnsignedInt:
+				return new IntPixels(dimensions, buffer.asIntBuffer(), true);
+			case Short:
+				return new ShortPixels(dimensions, buffer.asShortBuffer(), false);
+			case UnsignedShort:
+				return new ShortPixels(dimensions, buffer.asShortBuffer(), true);
+			case Byte:
+				return new BytePixels(dimensions, buffer, false);
+			case UnsignedByte:
+				return new BytePixels(dimensions, buffer, true);
+		}
+		throw new UnsupportedOperationException("Pixel type " + type +
+			" is not supported by CpuGpuApi.");
+	}
+
+	private static class FloatPixels extends HostPixels {
+
+		private final FloatBuffer buffer;
+
+		private FloatPixels(long[] dimensions, FloatBuffer buffer) {
+			super(dimensions);
+			this.buffer = buffer;
+		}
+
+		@Override
+		double get(int index) {
+			return buffer.get(index);
+		}
+
+		@Override
+		void set(int index, double value) {
+			buffer.put(index, (float) value);
+		}
+
+		@Override
+		boolean isFloatingPoint() {
+			return true;
+		}
+	}
+
+	private static class IntPixels extends HostPixels {
+
+		private final IntBuffer buffer;
+
+		private final boolean unsigned;
+
+		private IntPixels(long[] dimensions, IntBuffer buffer, boolean unsigned) {
+			super(dimensions);
+			this.buffer = buffer;
+			this.unsigned = unsigned;
+		}
+
+		@Override
+		double get(int index) {
+			int value = buffer.get(index);
+			return unsigned ? value & 0xffffffffL : value;
+		}
+
+		@Override
+		void set(int index, double value) {
+			buffer.put(index, (int) (long) value);
+		}
+
+		@Override
+		boolean isFloatingPoint() {
+			return false;
+		}
+	}
+
+	private static class ShortPixels extends HostPixels {
+
+		private final ShortBuffer buffer;
+
+		private final boolean unsigned;
+
+		private ShortPixels(long[] dimensions, ShortBuffer buffer, boolean unsigned) {
+			super(dimensions);
+			this.buffer = buffer;
+			this.unsigned = unsigned;
+		}
+
+		@Override
+		double get(int index) {
+			short value = buffer.get(index);
+			return unsigned ? value & 0xffff : value;
+		}
+
+		@Override
+		void set(int index, double value) {
+			buffer.put(index, (short) (long) value);
+		}
+
+		@Override
+		boolean isFloatingPoint() {
+			return false;
+		}
+	}
+
+	private static class BytePixels extends HostPixels {
+
+		private final ByteBuffer buffer;
+
+		private final boolean unsigned;
+
+		private BytePixels(long[] dimensions, ByteBuffer buffer, boolean unsigned) {
+			super(dimensions);
+			this.buffer = buffer;
+			this.unsigned = unsigned;
+		}
+
+		@Override
+		double get(int index) {
+			byte value = buffer.get(index);
+			return unsigned ? value & 0xff : value;
+		}
+
+		@Override
+		void set(int index, double value) {
+			buffer.put(index, (byte) (long) value);
+		}
+
+		@Override
+		boolean isFloatingPoint() {
+			return false;
+		}
+	}
+}
@@ -45,6 +45,15 @@ public class GpuComputeCache {
 		return pixelSize;
 	}
 
+	/**
+	 * Returns the union of all intervals requested for the given content, or null
+	 * if the content was never requested.
+	 */
+	public Interval requestedInterval(Content content) {
+		CacheEntry cacheEntry = map.get(content);
+		return cacheEntry == null ? null : cacheEntry.requestedInterval;
+	}
+
 	public GpuView get(Content content, Interval interval) {
 		CacheEntry cacheEntry = map.get(content);
 		if (cacheEntry == null)
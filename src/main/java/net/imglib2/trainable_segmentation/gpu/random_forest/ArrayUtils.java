@@ -31,6 +31,22 @@ class ArrayUtils {
 		return maxIndex;
 	}
 
+	/**
+	 * Returns the index of the maximum among the values {@code value[offset]} to
+	 * {@code value[offset + length - 1]}, relative to offset.
+	 */
+	public static int findMax(float[] value, int offset, int length) {
+		int maxIndex = 0;
+		double max = value[offset];
+		for (int i = 1; i < length; i++) {
+			if (max < value[offset + i]) {
+				maxIndex = i;
+				max = value[offset + maxIndex];
+			}
+		}
+		return maxIndex;
+	}
+
 	public static double[] add(double[] a, double[] b) {
 		for (int i = 0; i < a.length; i++)
 			b[i] += a[i];
@@ -59,6 +75,15 @@ class ArrayUtils {
 		return values;
 	}
 
+	public static float[] normalize(float[] values, int offset, int length) {
+		float sum = 0;
+		for (int i = offset; i < offset + length; i++)
+			sum += values[i];
+		for (int i = offset; i < offset + length; i++)
+			values[i] /= sum;
+		return values;
+	}
+
 	public static double sum(double[] values) {
 		double sum = 0;
 		for (double value : values)
@@ -0,0 +1,181 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+import gnu.trove.list.array.TFloatArrayList;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * Compact memory layout of a random forest, used by
+ * {@link RandomForestPrediction} for the evaluation on the CPU.
+ * <p>
+ * Only the inner nodes are stored, there is no padding to the size of the
+ * largest tree. The nodes of a tree are ordered breadth-first, starting at
+ * {@code nodeOffsets[tree]}, such that the first levels, which are visited for
+ * every pixel, are close together.
+ * <p>
+ * Node {@code i} is represented by the feature index {@code features[i]}, the
+ * threshold {@code thresholds[i]} and the two children
+ * {@code children[2 * i]} and {@code children[2 * i + 1]}. A child that is an
+ * inner node is stored as its index relative to the first node of the tree. A
+ * child that is a leaf is stored as {@code ~leaf}, which is negative, where
+ * {@code leaf} is the index relative to the first leaf of the tree,
+ * {@code leafOffsets[tree]}. Leafs have no node entry, only their class
+ * probabilities are stored.
+ * <p>
+ * The features and children are stored as short if possible, otherwise as int.
+ * Every field of a node is aligned to its size, and the pair of children is
+ * aligned to four bytes. So none of the values, that are read for a node,
+ * spans two cache lines. In the padded layout the node indices are triples,
+ * and one in a few of them crosses a cache line.
+ * <p>
+ * The leaf probabilities can optionally be quantized to 8 bit.
+ */
+class CompactRandomForest {
+
+	private static final float QUANTIZATION_SCALE = 1.0f / 255;
+
+	private final int numberOfClasses;
+
+	private final int[] nodeOffsets;
+
+	private final int[] leafOffsets;
+
+	private final short[] features;
+
+	private final short[] children;
+
+	private final int[] intFeatures;
+
+	private final int[] intChildren;
+
+	private final float[] thresholds;
+
+	private final float[] leafProbabilities;
+
+	private final byte[] quantizedLeafProbabilities;
+
+	/**
+	 * Converts the padded forest representation used by
+	 * {@link RandomForestPrediction} into the compact layout. The node indices
+	 * need to be int-indexed, with leafs encoded as leaf index +
+	 * {@link RandomTreePrediction#LEAF_FLAG}.
+	 */
+	CompactRandomForest(int numberOfClasses, int numberOfTrees, int numberOfNodes,
+		int numberOfLeafs, int[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities,
+		boolean quantize)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.nodeOffsets = new int[numberOfTrees];
+		this.leafOffsets = new int[numberOfTrees];
+		TIntArrayList features = new TIntArrayList();
+		TIntArrayList children = new TIntArrayList();
+		TFloatArrayList thresholds = new TFloatArrayList();
+		TIntArrayList leafs = new TIntArrayList();
+		for (int tree = 0; tree < numberOfTrees; tree++) {
+			nodeOffsets[tree] = thresholds.size();
+			leafOffsets[tree] = leafs.size();
+			// NB: breadth-first order, the position in the list is the new node index
+			TIntArrayList order = new TIntArrayList();
+			order.add(0);
+			for (int p = 0; p < order.size(); p++) {
+				int nodeOffset = tree * numberOfNodes + order.get(p);
+				features.add(nodeIndices[nodeOffset * 3]);
+				thresholds.add(nodeThresholds[nodeOffset]);
+				for (int b = 1; b <= 2; b++) {
+					int child = nodeIndices[nodeOffset * 3 + b];
+					if (child >= 0) {
+						children.add(order.size());
+						order.add(child);
+					}
+					else {
+						int leaf = child - RandomTreePrediction.LEAF_FLAG;
+						children.add(~(leafs.size() - leafOffsets[tree]));
+						leafs.add(tree * numberOfLeafs + leaf);
+					}
+				}
+			}
+		}
+		boolean fitsShort = fitsShort(features) && fitsShort(children);
+		this.features = fitsShort ? toShorts(features) : null;
+		this.children = fitsShort ? toShorts(children) : null;
+		this.intFeatures = fitsShort ? null : features.toArray();
+		this.intChildren = fitsShort ? null : children.toArray();
+		this.thresholds = thresholds.toArray();
+		float[] probabilities = new float[leafs.size() * numberOfClasses];
+		for (int i = 0; i < leafs.size(); i++)
+			System.arraycopy(leafProbabilities, leafs.get(i) * numberOfClasses, probabilities, i *
+				numberOfClasses, numberOfClasses);
+		this.leafProbabilities = quantize ? null : probabilities;
+		this.quantizedLeafProbabilities = quantize ? quantize(probabilities) : null;
+	}
+
+	private static boolean fitsShort(TIntArrayList values) {
+		return values.isEmpty() || values.min() >= Short.MIN_VALUE && values.max() <= Short.MAX_VALUE;
+	}
+
+	private static short[] toShorts(TIntArrayList values) {
+		short[] result = new short[values.size()];
+		for (int i = 0; i < result.length; i++)
+			result[i] = (short) values.get(i);
+		return result;
+	}
+
+	private static byte[] quantize(float[] probabilities) {
+		byte[] result = new byte[probabilities.length];
+		for (int i = 0; i < probabilities.length; i++)
+			result[i] = (byte) Math.round(Math.max(0, Math.min(1, probabilities[i])) * 255);
+		return result;
+	}
+
+	void addDistributionForTree(float[] instance, int offset, int tree, float[] distribution,
+		int distributionOffset)
+	{
+		int leaf = intChildren == null ? findLeaf(instance, offset, tree) : findLeafIntIndices(
+			instance, offset, tree);
+		int leafOffset = (leafOffsets[tree] + leaf) * numberOfClasses;
+		if (quantizedLeafProbabilities == null)
+			for (int k = 0; k < numberOfClasses; k++)
+				distribution[distributionOffset + k] += leafProbabilities[leafOffset + k];
+		else
+			for (int k = 0; k < numberOfClasses; k++)
+				distribution[distributionOffset + k] += (quantizedLeafProbabilities[leafOffset + k] &
+					0xff) * QUANTIZATION_SCALE;
+	}
+
+	private int findLeaf(float[] instance, int offset, int tree) {
+		int nodeOffset = nodeOffsets[tree];
+		int node = 0;
+		do {
+			int i = nodeOffset + node;
+			node = children[2 * i + (instance[offset + features[i]] < thresholds[i] ? 0 : 1)];
+		}
+		while (node >= 0);
+		return ~node;
+	}
+
+	private int findLeafIntIndices(float[] instance, int offset, int tree) {
+		int nodeOffset = nodeOffsets[tree];
+		int node = 0;
+		do {
+			int i = nodeOffset + node;
+			node = intChildren[2 * i + (instance[offset + intFeatures[i]] < thresholds[i] ? 0 : 1)];
+		}
+		while (node >= 0);
+		return ~node;
+	}
+
+	boolean isQuantized() {
+		return quantizedLeafProbabilities != null;
+	}
+
+	/**
+	 * Returns the number of bytes used by the arrays that represent the forest.
+	 */
+	long sizeInBytes() {
+		long indices = intChildren == null ? 2L * (features.length + children.length) : 4L *
+			(intFeatures.length + intChildren.length);
+		long leafs = isQuantized() ? quantizedLeafProbabilities.length : 4L *
+			leafProbabilities.length;
+		return 4L * nodeOffsets.length + 4L * leafOffsets.length + indices + 4L * thresholds.length +
+			leafs;
+	}
+}
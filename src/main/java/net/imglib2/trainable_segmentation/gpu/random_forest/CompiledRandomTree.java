@@ -0,0 +1,19 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+/**
+ * A random tree that has been compiled to bytecode by
+ * {@link RandomTreeCompiler}.
+ * <p>
+ * NB: This interface needs to be public, because the implementations are
+ * generated at runtime and loaded by a different class loader.
+ */
+public interface CompiledRandomTree {
+
+	/**
+	 * Applies the tree to the feature vector that starts at the given offset in
+	 * the instance array. Adds the class probabilities of the leaf to the
+	 * distribution array, starting at distributionOffset.
+	 */
+	void addDistribution(float[] instance, int offset, float[] distribution,
+		int distributionOffset);
+}
@@ -1,6 +1,7 @@
 
 package net.imglib2.trainable_segmentation.gpu.random_forest;
 
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
 import net.imglib2.util.Intervals;
@@ -32,13 +33,15 @@ public class GpuRandomForestKernel {
 		constants.put("NUMBER_OF_FEATURES", numberOfFeatures);
 		constants.put("INDICES_SIZE", Intervals.numElements(indices.getDimensions()));
 		constants.put("CONSTANT_OR_GLOBAL", appropriateMemory(thresholds, indices));
+		boolean intIndices = indices.getNativeType() != NativeTypeEnum.UnsignedShort;
+		constants.put("INDEX_TYPE", intIndices ? "uint" : "ushort");
+		constants.put("LEAF_FLAG", intIndices ? "0x80000000u" : "0x8000");
 		gpu.execute(GpuRandomForestKernel.class, "random_forest.cl", "random_forest", globalSizes, null,
 			parameters, constants);
 	}
 
 	private static String appropriateMemory(GpuImage thresholds, GpuImage indices) {
-		long requiredConstantMemory = thresholds.clearCLBuffer().getSizeInBytes() + indices
-			.clearCLBuffer().getSizeInBytes();
+		long requiredConstantMemory = thresholds.getSizeInBytes() + indices.getSizeInBytes();
 		boolean fitsConstantMemory = requiredConstantMemory < ASSUMED_CONSTANT_MEMORY_SIZE;
 		return fitsConstantMemory ? "__constant" : "__global";
 	}
@@ -0,0 +1,123 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.ShortBuffer;
+
+/**
+ * Padded random forest representation of {@link RandomForestPrediction}, that
+ * is backed by buffers instead of arrays. The buffers are typically views of a
+ * read-only {@link java.nio.MappedByteBuffer}, see
+ * {@link RandomForestPrediction#map(java.nio.ByteBuffer)}. The forest is then
+ * never copied onto the heap, and all processes that map the same file share
+ * one physical copy of it.
+ * <p>
+ * The layout is the same as for the arrays in {@link RandomForestPrediction}.
+ * Only absolute get methods are used, which makes the class thread-safe.
+ * The trees are evaluated by {@link PaddedRandomForest#addDistributionForTree}.
+ */
+class MappedRandomForest implements PaddedRandomForest {
+
+	private final int numberOfClasses;
+
+	private final int numberOfNodes;
+
+	private final int numberOfLeafs;
+
+	/**
+	 * Node indices, with leafs encoded as leaf index + Short.MIN_VALUE. Null if
+	 * {@link #intNodeIndices} is used.
+	 */
+	private final ShortBuffer nodeIndices;
+
+	/**
+	 * Node indices, with leafs encoded as leaf index +
+	 * {@link RandomTreePrediction#LEAF_FLAG}. Null if {@link #nodeIndices} is
+	 * used.
+	 */
+	private final IntBuffer intNodeIndices;
+
+	private final FloatBuffer nodeThresholds;
+
+	private final FloatBuffer leafProbabilities;
+
+	MappedRandomForest(int numberOfClasses, int numberOfNodes, int numberOfLeafs,
+		ShortBuffer nodeIndices, IntBuffer intNodeIndices, FloatBuffer nodeThresholds,
+		FloatBuffer leafProbabilities)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfNodes = numberOfNodes;
+		this.numberOfLeafs = numberOfLeafs;
+		this.nodeIndices = nodeIndices;
+		this.intNodeIndices = intNodeIndices;
+		this.nodeThresholds = nodeThresholds;
+		this.leafProbabilities = leafProbabilities;
+	}
+
+	@Override
+	public int numberOfClasses() {
+		return numberOfClasses;
+	}
+
+	@Override
+	public int numberOfNodes() {
+		return numberOfNodes;
+	}
+
+	@Override
+	public int numberOfLeafs() {
+		return numberOfLeafs;
+	}
+
+	@Override
+	public int nodeIndex(int i) {
+		return intNodeIndices == null ? nodeIndices.get(i) : intNodeIndices.get(i);
+	}
+
+	@Override
+	public float nodeThreshold(int i) {
+		return nodeThresholds.get(i);
+	}
+
+	@Override
+	public float leafProbability(int i) {
+		return leafProbabilities.get(i);
+	}
+
+	@Override
+	public int leafIndex(int child) {
+		return child - (intNodeIndices == null ? Short.MIN_VALUE : RandomTreePrediction.LEAF_FLAG);
+	}
+
+	boolean usesIntIndices() {
+		return intNodeIndices != null;
+	}
+
+	// -- Copies of the buffers, for the optional layouts and the GPU --
+
+	short[] nodeIndices() {
+		short[] result = new short[nodeIndices.capacity()];
+		nodeIndices.duplicate().get(result);
+		return result;
+	}
+
+	int[] intNodeIndices() {
+		int[] result = new int[intNodeIndices.capacity()];
+		intNodeIndices.duplicate().get(result);
+		return result;
+	}
+
+	float[] nodeThresholds() {
+		return copy(nodeThresholds);
+	}
+
+	float[] leafProbabilities() {
+		return copy(leafProbabilities);
+	}
+
+	private static float[] copy(FloatBuffer buffer) {
+		float[] result = new float[buffer.capacity()];
+		buffer.duplicate().get(result);
+		return result;
+	}
+}
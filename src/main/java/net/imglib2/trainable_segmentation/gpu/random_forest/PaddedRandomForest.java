@@ -0,0 +1,57 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+/**
+ * Read access to the padded random forest layout of
+ * {@link RandomForestPrediction}. Every tree is padded to the same number of
+ * nodes and leafs. The walk down the trees is implemented once in
+ * {@link #addDistributionForTree}, for layouts that are not stored in plain
+ * arrays, such as the buffers of a {@link MappedRandomForest}. The arrays of
+ * {@link RandomForestPrediction} are walked directly, without the calls
+ * through this interface.
+ */
+interface PaddedRandomForest {
+
+	int numberOfClasses();
+
+	int numberOfNodes();
+
+	int numberOfLeafs();
+
+	/**
+	 * Returns entry {@code i} of the node indices. For each node these are the
+	 * feature index, the smaller child and the bigger child. Children that are
+	 * leafs are negative, see {@link #leafIndex(int)}.
+	 */
+	int nodeIndex(int i);
+
+	float nodeThreshold(int i);
+
+	float leafProbability(int i);
+
+	/**
+	 * Decodes the leaf index from a negative child index.
+	 */
+	int leafIndex(int child);
+
+	/**
+	 * Walks down the given tree, and adds the class probabilities of the leaf,
+	 * that is reached by the instance, to the distribution.
+	 */
+	default void addDistributionForTree(float[] instance, int offset, int tree,
+		float[] distribution, int distributionOffset)
+	{
+		int numberOfNodes = numberOfNodes();
+		int numberOfClasses = numberOfClasses();
+		int node = 0;
+		while (node >= 0) {
+			int nodeOffset = tree * numberOfNodes + node;
+			int attributeIndex = nodeIndex(nodeOffset * 3);
+			float attributeValue = instance[offset + attributeIndex];
+			int b = attributeValue < nodeThreshold(nodeOffset) ? 1 : 2;
+			node = nodeIndex(nodeOffset * 3 + b);
+		}
+		int leafOffset = (tree * numberOfLeafs() + leafIndex(node)) * numberOfClasses;
+		for (int k = 0; k < numberOfClasses; k++)
+			distribution[distributionOffset + k] += leafProbability(leafOffset + k);
+	}
+}
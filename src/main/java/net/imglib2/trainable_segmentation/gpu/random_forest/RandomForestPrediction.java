@@ -3,23 +3,34 @@ package net.imglib2.trainable_segmentation.gpu.random_forest;
 
 import hr.irb.fastRandomForest.FastRandomForest;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.imglib2.Cursor;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
 import net.imglib2.type.numeric.IntegerType;
 import net.imglib2.type.numeric.RealType;
-import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+import preview.net.imglib2.loops.IntervalChunks;
 import preview.net.imglib2.loops.LoopUtils;
 import preview.net.imglib2.loops.SyncedPositionables;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 /**
@@ -30,7 +41,9 @@ import java.util.stream.Collectors;
  * representing the random forest in a set of flat arrays rather than a object
  * hierarchy.
  * <p>
- * The code can run on CPU or GPU.
+ * The code can run on CPU or GPU. On the CPU the pixels are processed in
+ * parallel, using the {@link TaskExecutor} of the current
+ * {@link Parallelization} context.
  */
 public class RandomForestPrediction {
 
@@ -44,12 +57,53 @@ public class RandomForestPrediction {
 
 	private final int numberOfLeafs;
 
+	/**
+	 * Feature index, smaller child and bigger child of each node. Leafs are
+	 * encoded as leaf index + Short.MIN_VALUE. This array is null, if the forest
+	 * doesn't fit into the short range, {@link #intNodeIndices} is used instead.
+	 */
 	private final short[] nodeIndices;
 
+	/**
+	 * Same as {@link #nodeIndices}, but int-indexed, leafs are encoded as leaf
+	 * index + Integer.MIN_VALUE. Only used for big trees, null otherwise.
+	 */
+	private final int[] intNodeIndices;
+
 	private final float[] nodeThresholds;
 
 	private final float[] leafProbabilities;
 
+	/**
+	 * Buffer-backed representation of the forest, see {@link #map(ByteBuffer)}.
+	 * If not null, the arrays above are null.
+	 */
+	private final MappedRandomForest mappedForest;
+
+	private CompactRandomForest compactForest = null;
+
+	private CompiledRandomTree[] compiledTrees = null;
+
+	private boolean earlyExit = false;
+
+	private float earlyExitRelaxation = 0;
+
+	/**
+	 * Tolerance for float rounding errors, used by the early exit criterion.
+	 */
+	private static final float EARLY_EXIT_TOLERANCE = 1e-3f;
+
+	/**
+	 * Number of pixels that are processed together by
+	 * {@link #distributionsTreeMajor}.
+	 */
+	private static final int BATCH_SIZE = 256;
+
+	/**
+	 * Version of the binary format, see {@link #write(ByteBuffer)}.
+	 */
+	private static final int FORMAT_VERSION = 1;
+
 	public RandomForestPrediction(FastRandomForest classifier, int numberOfFeatures) {
 		TransparentRandomForest forest = new TransparentRandomForest(classifier);
 		List<RandomTreePrediction> trees = forest.trees().stream().map(RandomTreePrediction::new)
@@ -59,15 +113,16 @@ public class RandomForestPrediction {
 		this.numberOfTrees = trees.size();
 		this.numberOfNodes = trees.stream().mapToInt(x -> x.numberOfNodes).max().orElse(0);
 		this.numberOfLeafs = trees.stream().mapToInt(x -> x.numberOfLeafs).max().orElse(0);
-		this.nodeIndices = new short[numberOfTrees * numberOfNodes * 3];
+		boolean fitsShort = fitsShortRange(numberOfNodes, numberOfLeafs, numberOfFeatures);
+		int[] indices = new int[numberOfTrees * numberOfNodes * 3];
 		this.nodeThresholds = new float[numberOfTrees * numberOfNodes];
 		this.leafProbabilities = new float[numberOfTrees * numberOfLeafs * numberOfClasses];
 		for (int j = 0; j < numberOfTrees; j++) {
 			RandomTreePrediction tree = trees.get(j);
 			for (int i = 0; i < tree.numberOfNodes; i++) {
-				nodeIndices[(j * numberOfNodes + i) * 3] = (short) tree.attributeIndicies[i];
-				nodeIndices[(j * numberOfNodes + i) * 3 + 1] = (short) tree.smallerChild[i];
-				nodeIndices[(j * numberOfNodes + i) * 3 + 2] = (short) tree.biggerChild[i];
+				indices[(j * numberOfNodes + i) * 3] = tree.attributeIndicies[i];
+				indices[(j * numberOfNodes + i) * 3 + 1] = tree.smallerChild[i];
+				indices[(j * numberOfNodes + i) * 3 + 2] = tree.biggerChild[i];
 				nodeThresholds[j * numberOfNodes + i] = (float) tree.threshold[i];
 			}
 			for (int i = 0; i < tree.numberOfLeafs; i++)
@@ -75,6 +130,357 @@ public class RandomForestPrediction {
 					leafProbabilities[(j * numberOfLeafs + i) * numberOfClasses + k] =
 						(float) tree.classProbabilities[i][k];
 		}
+		this.nodeIndices = fitsShort ? toShortIndices(indices) : null;
+		this.intNodeIndices = fitsShort ? null : indices;
+		this.mappedForest = null;
+	}
+
+	private RandomForestPrediction(int numberOfClasses, int numberOfFeatures, int numberOfTrees,
+		int numberOfNodes, int numberOfLeafs, short[] nodeIndices, int[] intNodeIndices,
+		float[] nodeThresholds, float[] leafProbabilities)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfTrees = numberOfTrees;
+		this.numberOfNodes = numberOfNodes;
+		this.numberOfLeafs = numberOfLeafs;
+		this.nodeIndices = nodeIndices;
+		this.intNodeIndices = intNodeIndices;
+		this.nodeThresholds = nodeThresholds;
+		this.leafProbabilities = leafProbabilities;
+		this.mappedForest = null;
+	}
+
+	private RandomForestPrediction(int numberOfClasses, int numberOfFeatures, int numberOfTrees,
+		int numberOfNodes, int numberOfLeafs, MappedRandomForest mappedForest)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfFeatures = numberOfFeatures;
+		this.numberOfTrees = numberOfTrees;
+		this.numberOfNodes = numberOfNodes;
+		this.numberOfLeafs = numberOfLeafs;
+		this.nodeIndices = null;
+		this.intNodeIndices = null;
+		this.nodeThresholds = null;
+		this.leafProbabilities = null;
+		this.mappedForest = mappedForest;
+	}
+
+	/**
+	 * Returns the number of bytes written by {@link #write(ByteBuffer)}.
+	 */
+	public int serializedSize() {
+		long nodes = (long) numberOfTrees * numberOfNodes;
+		long indices = (usesIntIndices() ? 4L : 2L) * 3 * nodes;
+		long size = 7 * 4 + align4(indices) + 4L * nodes + 4L * numberOfTrees * numberOfLeafs *
+			numberOfClasses;
+		if (size > Integer.MAX_VALUE)
+			throw new UnsupportedOperationException("The random forest is too big to be serialized.");
+		return (int) size;
+	}
+
+	/**
+	 * Writes the flattened random forest into the buffer, in a compact binary
+	 * format. The format consists of a header with the format version and the
+	 * sizes of the forest, followed by the node indices, node thresholds and
+	 * leaf probabilities. All values are stored little-endian. The byte order of
+	 * the buffer is restored afterwards.
+	 *
+	 * @see #read(ByteBuffer)
+	 */
+	public void write(ByteBuffer buffer) {
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			buffer.putInt(FORMAT_VERSION);
+			buffer.putInt(numberOfClasses);
+			buffer.putInt(numberOfFeatures);
+			buffer.putInt(numberOfTrees);
+			buffer.putInt(numberOfNodes);
+			buffer.putInt(numberOfLeafs);
+			buffer.putInt(usesIntIndices() ? Integer.BYTES : Short.BYTES);
+			if (usesIntIndices()) {
+				int[] indices = intNodeIndices();
+				buffer.asIntBuffer().put(indices);
+				skip(buffer, 4L * indices.length);
+			}
+			else {
+				short[] indices = shortNodeIndices();
+				buffer.asShortBuffer().put(indices);
+				skip(buffer, align4(2L * indices.length));
+			}
+			float[] thresholds = nodeThresholds();
+			buffer.asFloatBuffer().put(thresholds);
+			skip(buffer, 4L * thresholds.length);
+			float[] probabilities = leafProbabilities();
+			buffer.asFloatBuffer().put(probabilities);
+			skip(buffer, 4L * probabilities.length);
+		}
+		finally {
+			buffer.order(order);
+		}
+	}
+
+	/**
+	 * Reads a random forest, that was written by {@link #write(ByteBuffer)}. The
+	 * arrays are copied in bulk, neither Weka nor reflection is involved.
+	 *
+	 * @throws IllegalArgumentException if the buffer doesn't contain a random
+	 *           forest in a supported version of the format.
+	 */
+	public static RandomForestPrediction read(ByteBuffer buffer) {
+		return read(buffer, true);
+	}
+
+	/**
+	 * Same as {@link #read(ByteBuffer)}, but the random forest isn't copied. The
+	 * returned prediction keeps views of the buffer, and the CPU evaluation reads
+	 * the nodes directly from it. The content of the buffer must therefore not
+	 * change afterwards.
+	 * <p>
+	 * This is intended for a read-only {@link java.nio.MappedByteBuffer}: the
+	 * forest then doesn't occupy any heap, and all processes that map the same
+	 * model file share one physical copy of it in the page cache. The compact
+	 * layout, the compiled trees and the GPU evaluation still need arrays, they
+	 * copy the forest when used.
+	 *
+	 * @throws IllegalArgumentException if the buffer doesn't contain a random
+	 *           forest in a supported version of the format.
+	 */
+	public static RandomForestPrediction map(ByteBuffer buffer) {
+		return read(buffer, false);
+	}
+
+	private static RandomForestPrediction read(ByteBuffer buffer, boolean copy) {
+		ByteOrder order = buffer.order();
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			int version = buffer.getInt();
+			if (version != FORMAT_VERSION)
+				throw new IllegalArgumentException("Unsupported version of the random forest format: " +
+					version);
+			int numberOfClasses = buffer.getInt();
+			int numberOfFeatures = buffer.getInt();
+			int numberOfTrees = buffer.getInt();
+			int numberOfNodes = buffer.getInt();
+			int numberOfLeafs = buffer.getInt();
+			int indexBytes = buffer.getInt();
+			if (numberOfClasses < 0 || numberOfFeatures < 0 || numberOfTrees < 0 ||
+				numberOfNodes < 0 || numberOfLeafs < 0 || (indexBytes != Short.BYTES &&
+					indexBytes != Integer.BYTES))
+				throw new IllegalArgumentException("Invalid header of the random forest format.");
+			int numberOfIndices = toArraySize(3L * numberOfTrees * numberOfNodes);
+			int numberOfThresholds = toArraySize((long) numberOfTrees * numberOfNodes);
+			int numberOfProbabilities = toArraySize((long) numberOfTrees * numberOfLeafs *
+				numberOfClasses);
+			boolean intIndices = indexBytes == Integer.BYTES;
+			long indexSize = (long) indexBytes * numberOfIndices;
+			ByteBuffer indices = section(buffer, indexSize);
+			skip(buffer, align4(indexSize) - indexSize);
+			FloatBuffer thresholds = section(buffer, 4L * numberOfThresholds).asFloatBuffer();
+			FloatBuffer probabilities = section(buffer, 4L * numberOfProbabilities).asFloatBuffer();
+			MappedRandomForest mapped = new MappedRandomForest(numberOfClasses, numberOfNodes,
+				numberOfLeafs, intIndices ? null : indices.asShortBuffer(), intIndices ? indices
+					.asIntBuffer() : null, thresholds, probabilities);
+			if (!copy)
+				return new RandomForestPrediction(numberOfClasses, numberOfFeatures, numberOfTrees,
+					numberOfNodes, numberOfLeafs, mapped);
+			return new RandomForestPrediction(numberOfClasses, numberOfFeatures, numberOfTrees,
+				numberOfNodes, numberOfLeafs, intIndices ? null : mapped.nodeIndices(), intIndices
+					? mapped.intNodeIndices() : null, mapped.nodeThresholds(), mapped.leafProbabilities());
+		}
+		finally {
+			buffer.order(order);
+		}
+	}
+
+	/**
+	 * Returns a little-endian view of the next bytes of the buffer, and moves
+	 * the position of the buffer behind them.
+	 */
+	private static ByteBuffer section(ByteBuffer buffer, long bytes) {
+		if (bytes > buffer.remaining())
+			throw new IllegalArgumentException("The random forest data is incomplete.");
+		ByteBuffer section = buffer.slice();
+		section.limit((int) bytes);
+		skip(buffer, bytes);
+		return section.order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static long align4(long bytes) {
+		return (bytes + 3) & ~3L;
+	}
+
+	private static void skip(ByteBuffer buffer, long bytes) {
+		buffer.position(buffer.position() + (int) bytes);
+	}
+
+	private static int toArraySize(long size) {
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Invalid header of the random forest format.");
+		return (int) size;
+	}
+
+	/**
+	 * Returns true if node indices, leaf indices and feature indices can all be
+	 * represented by 16 bit. Otherwise the int-indexed representation is used.
+	 */
+	static boolean fitsShortRange(int numberOfNodes, int numberOfLeafs, int numberOfFeatures) {
+		return numberOfNodes <= Short.MAX_VALUE + 1 && numberOfLeafs <= Short.MAX_VALUE + 1 &&
+			numberOfFeatures <= Short.MAX_VALUE + 1;
+	}
+
+	private static short[] toShortIndices(int[] indices) {
+		short[] result = new short[indices.length];
+		for (int i = 0; i < indices.length; i++) {
+			int value = indices[i];
+			result[i] = (short) (value < 0 ? value - RandomTreePrediction.LEAF_FLAG + Short.MIN_VALUE
+				: value);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the node indices in the int-indexed representation, converts them
+	 * if necessary. Leafs are encoded as leaf index + Integer.MIN_VALUE.
+	 */
+	private int[] intNodeIndices() {
+		if (intNodeIndices != null)
+			return intNodeIndices;
+		if (mappedForest != null && mappedForest.usesIntIndices())
+			return mappedForest.intNodeIndices();
+		short[] indices = shortNodeIndices();
+		int[] result = new int[indices.length];
+		for (int i = 0; i < result.length; i++) {
+			short value = indices[i];
+			result[i] = value < 0 ? value - Short.MIN_VALUE + RandomTreePrediction.LEAF_FLAG : value;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the short node indices, copies them if the forest is mapped. Must
+	 * only be used if {@link #usesIntIndices()} is false.
+	 */
+	private short[] shortNodeIndices() {
+		return mappedForest == null ? nodeIndices : mappedForest.nodeIndices();
+	}
+
+	private float[] nodeThresholds() {
+		return mappedForest == null ? nodeThresholds : mappedForest.nodeThresholds();
+	}
+
+	private float[] leafProbabilities() {
+		return mappedForest == null ? leafProbabilities : mappedForest.leafProbabilities();
+	}
+
+	/**
+	 * Returns true if the int-indexed representation is used, because a tree
+	 * exceeds the range of short indices.
+	 */
+	public boolean usesIntIndices() {
+		return mappedForest == null ? intNodeIndices != null : mappedForest.usesIntIndices();
+	}
+
+	/**
+	 * Returns true if the forest is read directly from a buffer, see
+	 * {@link #map(ByteBuffer)}.
+	 */
+	public boolean isMapped() {
+		return mappedForest != null;
+	}
+
+	/**
+	 * Switches the CPU evaluation to a compact memory layout of the random forest.
+	 * In the compact layout only the inner nodes are stored, ordered
+	 * breadth-first, the trees are not padded to the size of the largest tree,
+	 * and the leaf probabilities can be quantized to 8 bit. This reduces the working set of big forests. The
+	 * quantization slightly changes the class probabilities. The GPU evaluation is
+	 * not affected.
+	 *
+	 * @param useCompactLayout True to use the compact layout, false to use the
+	 *          default padded layout.
+	 * @param quantize True to store the leaf probabilities with 8 bit precision.
+	 */
+	public void setUseCompactLayout(boolean useCompactLayout, boolean quantize) {
+		this.compactForest = useCompactLayout ? createCompactForest(quantize) : null;
+	}
+
+	CompactRandomForest createCompactForest(boolean quantize) {
+		return new CompactRandomForest(numberOfClasses, numberOfTrees, numberOfNodes, numberOfLeafs,
+			intNodeIndices(), nodeThresholds(), leafProbabilities(), quantize);
+	}
+
+	/**
+	 * Switches the CPU evaluation to trees that are compiled to bytecode, see
+	 * {@link RandomTreeCompiler}. The JIT compiler translates the thresholds and
+	 * feature indices of the nodes into native branches, which avoids walking
+	 * over the node arrays. Trees that are too big to be compiled, are still
+	 * evaluated with the array representation. The GPU evaluation is not
+	 * affected.
+	 *
+	 * @param useCompiledTrees True to use the compiled trees.
+	 */
+	public void setUseCompiledTrees(boolean useCompiledTrees) {
+		this.compiledTrees = useCompiledTrees ? RandomTreeCompiler.compile(numberOfClasses,
+			numberOfTrees, numberOfNodes, numberOfLeafs, intNodeIndices(), nodeThresholds(),
+			leafProbabilities()) : null;
+	}
+
+	/**
+	 * Enables early exit in the CPU implementations of {@code segment(...)}.
+	 * <p>
+	 * The trees are evaluated one by one for each pixel. The evaluation stops as
+	 * soon as the leading class can't be overtaken by the remaining trees. The
+	 * class probabilities of a leaf sum up to one, so each remaining tree can
+	 * change the difference between two classes by at most one. The result is
+	 * exactly the same as with full evaluation. The class probabilities, as
+	 * returned by {@code distribution(...)}, are not affected.
+	 *
+	 * @param earlyExit True to enable early exit.
+	 */
+	public void setEarlyExit(boolean earlyExit) {
+		setEarlyExit(earlyExit, 0);
+	}
+
+	/**
+	 * Same as {@link #setEarlyExit(boolean)}, but the exit criterion can be
+	 * relaxed. The evaluation stops when the lead of the best class exceeds
+	 * {@code (1 - relaxation) * (number of remaining trees)}. This is faster,
+	 * but the result may differ from full evaluation for uncertain pixels.
+	 *
+	 * @param earlyExit True to enable early exit.
+	 * @param relaxation Value between 0 and 1. 0 gives exactly the same result as
+	 *          full evaluation. 1 stops after the first tree.
+	 */
+	public void setEarlyExit(boolean earlyExit, float relaxation) {
+		if (!(relaxation >= 0 && relaxation <= 1))
+			throw new IllegalArgumentException("Relaxation must be between 0 and 1.");
+		this.earlyExit = earlyExit;
+		this.earlyExitRelaxation = relaxation;
+	}
+
+	/**
+	 * Returns a short report of the memory used by the random forest, in the
+	 * padded and in the compact layout.
+	 */
+	public String memoryFootprint() {
+		CompactRandomForest compact = createCompactForest(false);
+		CompactRandomForest quantized = createCompactForest(true);
+		return "trees: " + numberOfTrees + ", features: " + numberOfFeatures + ", classes: " +
+			numberOfClasses + "\n" +
+			"padded layout: " + paddedSizeInBytes() + " bytes\n" +
+			"compact layout: " + compact.sizeInBytes() + " bytes\n" +
+			"compact layout, quantized: " + quantized.sizeInBytes() + " bytes";
+	}
+
+	/**
+	 * Returns the number of bytes used by the arrays of the padded layout.
+	 */
+	long paddedSizeInBytes() {
+		long nodes = (long) numberOfTrees * numberOfNodes;
+		long indices = (usesIntIndices() ? 4L : 2L) * 3 * nodes;
+		return indices + 4L * nodes + 4L * numberOfTrees * numberOfLeafs * numberOfClasses;
 	}
 
 	public int numberOfClasses() {
@@ -87,7 +493,8 @@ public class RandomForestPrediction {
 
 	/**
 	 * Applies the random forest to each pixel of the featureStack. Writes the class
-	 * probabilities to the output image.
+	 * probabilities to the output image. The random forest is uploaded to the GPU
+	 * only once per GPU context, and reused by later calls.
 	 * 
 	 * @param gpu
 	 * @param featureStack Input image. Number of channels must equal
@@ -97,17 +504,43 @@ public class RandomForestPrediction {
 	 */
 	public void distribution(GpuApi gpu, GpuImage featureStack, GpuImage distribution) {
 		try (GpuApi scope = gpu.subScope()) {
-			Img<UnsignedShortType> indices = ArrayImgs.unsignedShorts(nodeIndices, 3, numberOfNodes,
-				numberOfTrees);
-			Img<FloatType> thresholds = ArrayImgs.floats(nodeThresholds, 1, numberOfNodes, numberOfTrees);
-			Img<FloatType> probabilities = ArrayImgs.floats(leafProbabilities, numberOfClasses,
-				numberOfLeafs, numberOfTrees);
-			GpuImage thresholdsClBuffer = scope.push(thresholds);
-			GpuImage probabilitiesClBuffer = scope.push(probabilities);
-			GpuImage indicesClBuffer = scope.push(indices);
+			GpuForest forest = scope.cached(this, this::pushForest);
 			GpuRandomForestKernel.randomForest(scope, distribution,
 				featureStack,
-				thresholdsClBuffer, probabilitiesClBuffer, indicesClBuffer, numberOfFeatures);
+				forest.thresholds, forest.probabilities, forest.indices, numberOfFeatures);
+		}
+	}
+
+	/**
+	 * Copies the random forest to the GPU. This is only done once per GPU
+	 * context, see {@link GpuApi#cached}.
+	 */
+	private GpuForest pushForest(GpuApi gpu) {
+		Img<? extends RealType<?>> indices = usesIntIndices() ? ArrayImgs.ints(intNodeIndices(), 3,
+			numberOfNodes, numberOfTrees) : ArrayImgs.unsignedShorts(shortNodeIndices(), 3,
+				numberOfNodes, numberOfTrees);
+		Img<FloatType> thresholds = ArrayImgs.floats(nodeThresholds(), 1, numberOfNodes,
+			numberOfTrees);
+		Img<FloatType> probabilities = ArrayImgs.floats(leafProbabilities(), numberOfClasses,
+			numberOfLeafs, numberOfTrees);
+		return new GpuForest(gpu.push(thresholds), gpu.push(probabilities), gpu.push(indices));
+	}
+
+	/**
+	 * The buffers of the random forest on the GPU.
+	 */
+	private static class GpuForest {
+
+		private final GpuImage thresholds;
+
+		private final GpuImage probabilities;
+
+		private final GpuImage indices;
+
+		private GpuForest(GpuImage thresholds, GpuImage probabilities, GpuImage indices) {
+			this.thresholds = thresholds;
+			this.probabilities = probabilities;
+			this.indices = indices;
 		}
 	}
 
@@ -142,20 +575,25 @@ public class RandomForestPrediction {
 	public void segment(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends IntegerType<?>> out)
 	{
+		forEachChunk(out, chunk -> segmentChunk(featureStack, out, chunk));
+	}
+
+	private void segmentChunk(RandomAccessibleInterval<FloatType> featureStack,
+		RandomAccessibleInterval<? extends IntegerType<?>> out, Interval chunk)
+	{
+		int d = featureStack.numDimensions() - 1;
 		RandomAccess<FloatType> ra = featureStack.randomAccess();
-		ra.setPosition(Intervals.minAsLongArray(featureStack));
+		ra.setPosition(RevampUtils.extend(Intervals.minAsLongArray(chunk), featureStack.min(d)));
 		RandomAccess<? extends IntegerType<?>> o = out.randomAccess();
-		o.setPosition(Intervals.minAsLongArray(out));
-		int d = featureStack.numDimensions() - 1;
+		o.setPosition(Intervals.minAsLongArray(chunk));
 		float[] attr = new float[numberOfFeatures];
 		float[] distribution = new float[numberOfClasses];
-		LoopUtils.createIntervalLoop(SyncedPositionables.create(ra, o), out, () -> {
+		LoopUtils.createIntervalLoop(SyncedPositionables.create(ra, o), chunk, () -> {
 			for (int i = 0; i < attr.length; i++) {
 				ra.setPosition(i, d);
 				attr[i] = ra.get().getRealFloat();
 			}
-			distributionForInstance(attr, distribution);
-			o.get().setInteger(ArrayUtils.findMax(distribution));
+			o.get().setInteger(segmentInstance(attr, 0, distribution));
 		}).run();
 	}
 
@@ -171,16 +609,22 @@ public class RandomForestPrediction {
 	public void distribution(RandomAccessibleInterval<FloatType> featureStack,
 		RandomAccessibleInterval<? extends RealType<?>> out)
 	{
-		RandomAccess<FloatType> ra = featureStack.randomAccess();
-		ra.setPosition(Intervals.minAsLongArray(featureStack));
-		RandomAccess<? extends RealType<?>> o = out.randomAccess();
-		o.setPosition(Intervals.minAsLongArray(out));
+		Interval interval = Intervals.hyperSlice(out, out.numDimensions() - 1);
+		forEachChunk(interval, chunk -> distributionChunk(featureStack, out, chunk));
+	}
+
+	private void distributionChunk(RandomAccessibleInterval<FloatType> featureStack,
+		RandomAccessibleInterval<? extends RealType<?>> out, Interval chunk)
+	{
 		int d = featureStack.numDimensions() - 1;
 		int d_out = out.numDimensions() - 1;
+		RandomAccess<FloatType> ra = featureStack.randomAccess();
+		ra.setPosition(RevampUtils.extend(Intervals.minAsLongArray(chunk), featureStack.min(d)));
+		RandomAccess<? extends RealType<?>> o = out.randomAccess();
+		o.setPosition(RevampUtils.extend(Intervals.minAsLongArray(chunk), out.min(d_out)));
 		float[] attr = new float[numberOfFeatures];
 		float[] distribution = new float[numberOfClasses];
-		Interval interval = Intervals.hyperSlice(out, d_out);
-		LoopUtils.createIntervalLoop(SyncedPositionables.create(ra, o), interval, () -> {
+		LoopUtils.createIntervalLoop(SyncedPositionables.create(ra, o), chunk, () -> {
 			for (int i = 0; i < attr.length; i++) {
 				ra.setPosition(i, d);
 				attr[i] = ra.get().getRealFloat();
@@ -191,7 +635,155 @@ public class RandomForestPrediction {
 				o.get().setReal(distribution[i]);
 			}
 		}).run();
+	}
 
+	/**
+	 * Splits the interval into chunks, and runs the given action for each chunk.
+	 * The chunks are processed in parallel, using the {@link TaskExecutor} of the
+	 * current {@link Parallelization} context.
+	 */
+	private static void forEachChunk(Interval interval, Consumer<Interval> action) {
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		List<Interval> chunks = IntervalChunks.chunkInterval(interval, executor
+			.suggestNumberOfTasks());
+		executor.forEach(chunks, action);
+	}
+
+	/**
+	 * Applies the random forest to each pixel in the feature stack. Write the index
+	 * of the class with the highest probability into the output image.
+	 * <p>
+	 * In contrast to {@link #segment(RandomAccessibleInterval, RandomAccessibleInterval)},
+	 * the feature stack is expected to be pixel-interleaved, as returned by
+	 * {@link net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator#applyInterleaved}.
+	 * The feature vectors are read directly from the array, which is much more
+	 * cache friendly.
+	 *
+	 * @param featureStack Pixel-interleaved feature stack, axis order CXYZ or CXY.
+	 *          The pixel order must match a flat iteration over the output image.
+	 * @param out Output image. Axis order should be XYZ or XY. Pixel values will be
+	 *          between 0 and {@link #numberOfClasses()} - 1.
+	 */
+	public void segment(float[] featureStack,
+		RandomAccessibleInterval<? extends IntegerType<?>> out)
+	{
+		checkInterleavedSize(featureStack, out);
+		forEachPixelRange((int) Intervals.numElements(out), (start, end) -> {
+			float[] distributions = new float[BATCH_SIZE * numberOfClasses];
+			Cursor<? extends IntegerType<?>> cursor = Views.flatIterable(out).cursor();
+			cursor.jumpFwd(start);
+			if (earlyExit) {
+				for (int i = start; i < end; i++)
+					cursor.next().setInteger(segmentInstance(featureStack, i * numberOfFeatures,
+						distributions));
+				return;
+			}
+			for (int firstPixel = start; firstPixel < end; firstPixel += BATCH_SIZE) {
+				int batchSize = Math.min(BATCH_SIZE, end - firstPixel);
+				distributionsTreeMajor(featureStack, firstPixel, batchSize, distributions);
+				for (int i = 0; i < batchSize; i++)
+					cursor.next().setInteger(ArrayUtils.findMax(distributions, i * numberOfClasses,
+						numberOfClasses));
+			}
+		});
+	}
+
+	/**
+	 * Applies the random forest for each pixel in the pixel-interleaved feature
+	 * stack. Writes the class probabilities into the output image.
+	 *
+	 * @param featureStack Pixel-interleaved feature stack, axis order CXYZ or CXY.
+	 *          The pixel order must match a flat iteration over the output image
+	 *          (without channel axis).
+	 * @param out Output image with axis order XYZC or XYC. Channel axes length
+	 *          must equal {@link #numberOfClasses()}.
+	 */
+	public void distribution(float[] featureStack,
+		RandomAccessibleInterval<? extends RealType<?>> out)
+	{
+		Interval interval = RevampUtils.removeLastDimension(out);
+		checkInterleavedSize(featureStack, interval);
+		forEachPixelRange((int) Intervals.numElements(interval), (start, end) -> {
+			float[] distributions = new float[BATCH_SIZE * numberOfClasses];
+			Cursor<? extends Composite<? extends RealType<?>>> cursor = Views.flatIterable(Views
+				.collapse(out)).cursor();
+			cursor.jumpFwd(start);
+			for (int firstPixel = start; firstPixel < end; firstPixel += BATCH_SIZE) {
+				int batchSize = Math.min(BATCH_SIZE, end - firstPixel);
+				distributionsTreeMajor(featureStack, firstPixel, batchSize, distributions);
+				for (int i = 0; i < batchSize; i++) {
+					Composite<? extends RealType<?>> o = cursor.next();
+					for (int k = 0; k < numberOfClasses; k++)
+						o.get(k).setReal(distributions[i * numberOfClasses + k]);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Splits the pixel indices 0 to numberOfPixels - 1 into ranges, and calls the
+	 * given action with start (inclusive) and end (exclusive) of each range. The
+	 * ranges are processed in parallel, using the {@link TaskExecutor} of the
+	 * current {@link Parallelization} context. The range boundaries are multiples
+	 * of the batch size.
+	 */
+	private static void forEachPixelRange(int numberOfPixels, IntBinaryConsumer action) {
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		int numberOfBatches = (numberOfPixels + BATCH_SIZE - 1) / BATCH_SIZE;
+		int numberOfTasks = Math.max(1, Math.min(executor.suggestNumberOfTasks(), numberOfBatches));
+		int batchesPerTask = (numberOfBatches + numberOfTasks - 1) / numberOfTasks;
+		List<Integer> starts = new ArrayList<>();
+		for (int start = 0; start < numberOfPixels; start += batchesPerTask * BATCH_SIZE)
+			starts.add(start);
+		executor.forEach(starts, start -> action.accept(start, (int) Math.min(numberOfPixels,
+			(long) start + batchesPerTask * BATCH_SIZE)));
+	}
+
+	private interface IntBinaryConsumer {
+
+		void accept(int a, int b);
+	}
+
+	/**
+	 * Applies the random forest to a batch of pixels of a pixel-interleaved
+	 * feature stack. The evaluation is tree-major: one tree is applied to all the
+	 * pixels in the batch, before the next tree is used. The nodes of the tree
+	 * therefore stay in the cache, while the tree is used for the whole batch.
+	 *
+	 * @param featureStack Pixel-interleaved feature stack.
+	 * @param firstPixel Index of the first pixel of the batch.
+	 * @param numberOfPixels Number of pixels in the batch.
+	 * @param distributions Output buffer, the class probabilities of the pixels
+	 *          are written into it. Length must be at least numberOfPixels *
+	 *          {@link #numberOfClasses()}.
+	 */
+	void distributionsTreeMajor(float[] featureStack, int firstPixel, int numberOfPixels,
+		float[] distributions)
+	{
+		Arrays.fill(distributions, 0, numberOfPixels * numberOfClasses, 0);
+		for (int tree = 0; tree < numberOfTrees; tree++)
+			for (int i = 0; i < numberOfPixels; i++)
+				addDistributionForTree(featureStack, (firstPixel + i) * numberOfFeatures, tree,
+					distributions, i * numberOfClasses);
+		for (int i = 0; i < numberOfPixels; i++)
+			ArrayUtils.normalize(distributions, i * numberOfClasses, numberOfClasses);
+	}
+
+	/**
+	 * Same as {@link #distributionsTreeMajor}, but the evaluation is pixel-major:
+	 * all trees are applied to one pixel, before the next pixel is processed.
+	 */
+	void distributionsPixelMajor(float[] featureStack, int firstPixel, int numberOfPixels,
+		float[] distributions)
+	{
+		for (int i = 0; i < numberOfPixels; i++)
+			distributionForInstance(featureStack, (firstPixel + i) * numberOfFeatures, distributions,
+				i * numberOfClasses);
+	}
+
+	private void checkInterleavedSize(float[] featureStack, Interval interval) {
+		if (featureStack.length < Intervals.numElements(interval) * numberOfFeatures)
+			throw new IllegalArgumentException("Feature stack is too small.");
 	}
 
 	/**
@@ -206,26 +798,106 @@ public class RandomForestPrediction {
 	private void distributionForInstance(float[] instance,
 		float[] distribution)
 	{
-		Arrays.fill(distribution, 0);
+		distributionForInstance(instance, 0, distribution, 0);
+	}
+
+	/**
+	 * Same as {@link #distributionForInstance(float[], float[])}, but the feature
+	 * vector starts at the given offset in the instance array, and the class
+	 * probabilities are written to the given offset in the distribution array.
+	 */
+	private void distributionForInstance(float[] instance, int offset,
+		float[] distribution, int distributionOffset)
+	{
+		Arrays.fill(distribution, distributionOffset, distributionOffset + numberOfClasses, 0);
 		for (int tree = 0; tree < numberOfTrees; tree++) {
-			addDistributionForTree(instance, tree, distribution);
+			addDistributionForTree(instance, offset, tree, distribution, distributionOffset);
+		}
+		ArrayUtils.normalize(distribution, distributionOffset, numberOfClasses);
+	}
+
+	/**
+	 * Returns the index of the class with the highest probability for the given
+	 * instance. Uses early exit if enabled, see {@link #setEarlyExit}.
+	 *
+	 * @param distribution Buffer of length at least {@link #numberOfClasses()}.
+	 */
+	private int segmentInstance(float[] instance, int offset, float[] distribution) {
+		if (!earlyExit) {
+			distributionForInstance(instance, offset, distribution, 0);
+			return ArrayUtils.findMax(distribution, 0, numberOfClasses);
+		}
+		float factor = 1 - earlyExitRelaxation;
+		Arrays.fill(distribution, 0, numberOfClasses, 0);
+		for (int tree = 0; tree < numberOfTrees; tree++) {
+			addDistributionForTree(instance, offset, tree, distribution, 0);
+			int best = 0;
+			float second = Float.NEGATIVE_INFINITY;
+			for (int k = 1; k < numberOfClasses; k++) {
+				float value = distribution[k];
+				if (value > distribution[best]) {
+					second = distribution[best];
+					best = k;
+				}
+				else if (value > second)
+					second = value;
+			}
+			int remainingTrees = numberOfTrees - tree - 1;
+			if (distribution[best] - second > factor * remainingTrees + EARLY_EXIT_TOLERANCE)
+				return best;
+		}
+		ArrayUtils.normalize(distribution, 0, numberOfClasses);
+		return ArrayUtils.findMax(distribution, 0, numberOfClasses);
+	}
+
+	private void addDistributionForTree(float[] instance, int offset, int tree,
+		float[] distribution, int distributionOffset)
+	{
+		CompiledRandomTree[] compiled = compiledTrees;
+		if (compiled != null && compiled[tree] != null) {
+			compiled[tree].addDistribution(instance, offset, distribution, distributionOffset);
+			return;
 		}
-		ArrayUtils.normalize(distribution);
+		CompactRandomForest compact = compactForest;
+		if (compact != null) {
+			compact.addDistributionForTree(instance, offset, tree, distribution, distributionOffset);
+			return;
+		}
+		if (mappedForest != null) {
+			mappedForest.addDistributionForTree(instance, offset, tree, distribution,
+				distributionOffset);
+			return;
+		}
+		// NB: The arrays are walked directly, this is the hottest loop of the CPU prediction.
+		int leaf = intNodeIndices == null ? findLeaf(instance, offset, tree) : findLeafIntIndices(
+			instance, offset, tree);
+		int leafOffset = (tree * numberOfLeafs + leaf) * numberOfClasses;
+		for (int k = 0; k < numberOfClasses; k++)
+			distribution[distributionOffset + k] += leafProbabilities[leafOffset + k];
 	}
 
-	private void addDistributionForTree(float[] instance, int tree, float[] distribution) {
+	private int findLeaf(float[] instance, int offset, int tree) {
 		int node = 0;
 		while (node >= 0) {
 			int nodeOffset = tree * numberOfNodes + node;
 			int attributeIndex = nodeIndices[nodeOffset * 3];
-			float attributeValue = instance[attributeIndex];
+			float attributeValue = instance[offset + attributeIndex];
 			int b = attributeValue < nodeThresholds[nodeOffset] ? 1 : 2;
 			node = nodeIndices[nodeOffset * 3 + b];
 		}
-		int leaf = node - Short.MIN_VALUE;
-		int leafOffset = (tree * numberOfLeafs + leaf) * numberOfClasses;
-		for (int k = 0; k < numberOfClasses; k++)
-			distribution[k] += leafProbabilities[leafOffset + k];
+		return node - Short.MIN_VALUE;
+	}
+
+	private int findLeafIntIndices(float[] instance, int offset, int tree) {
+		int node = 0;
+		while (node >= 0) {
+			int nodeOffset = tree * numberOfNodes + node;
+			int attributeIndex = intNodeIndices[nodeOffset * 3];
+			float attributeValue = instance[offset + attributeIndex];
+			int b = attributeValue < nodeThresholds[nodeOffset] ? 1 : 2;
+			node = intNodeIndices[nodeOffset * 3 + b];
+		}
+		return node - RandomTreePrediction.LEAF_FLAG;
 	}
 
 }
@@ -0,0 +1,559 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compiles the trees of a random forest into Java bytecode.
+ * <p>
+ * Each tree becomes a class that implements {@link CompiledRandomTree}. The
+ * nodes of the tree are translated into nested if / else statements, with the
+ * thresholds and feature indices as constants, and the class probabilities of
+ * the leafs are inlined. The JIT compiler turns this into native branches,
+ * instead of walking over the arrays of {@link RandomForestPrediction}.
+ * <p>
+ * HotSpot doesn't compile methods that are bigger than 8000 bytes. Big trees
+ * are therefore split into several methods, each of them covers a subtree.
+ * Trees that exceed the limits of the class file format are not compiled.
+ * <p>
+ * The generated classes are loaded by a dedicated class loader. They are
+ * cached by the SHA-256 hash of the model, such that the same forest is only
+ * compiled once. The cache is bounded by the total number of nodes, see
+ * {@link #CACHE_NODES}.
+ * <p>
+ * Similar to {@link preview.net.imglib2.loops.ClassCopyProvider}, but the
+ * bytecode is generated instead of copied.
+ */
+class RandomTreeCompiler {
+
+	/**
+	 * Upper bound of the total number of nodes of the cached forests. Each
+	 * cached forest keeps its class loader and generated classes alive, so the
+	 * cache is bounded by their size, not by the number of forests. Bigger
+	 * forests are not cached at all.
+	 */
+	private static final long CACHE_NODES = 1 << 20;
+
+	/** Number of values that are hashed at once. */
+	private static final int HASH_CHUNK = 4096;
+
+	private static final LinkedHashMap<String, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f,
+		true);
+
+	private static long cachedNodes = 0;
+
+	private static final String PACKAGE =
+		"net/imglib2/trainable_segmentation/gpu/random_forest/generated/";
+
+	private static final String INTERFACE = CompiledRandomTree.class.getName().replace('.', '/');
+
+	private static final String METHOD_DESCRIPTOR = "([FI[FI)V";
+
+	/** Upper bound of the bytecode size of a node. */
+	private static final int NODE_SIZE = 15;
+
+	/** Upper bound of the bytecode size of a call to a subtree method. */
+	private static final int CALL_SIZE = 9;
+
+	/**
+	 * Subtrees bigger than this are moved into a separate method. A method is
+	 * at most 2 * SPLIT_SIZE + NODE_SIZE bytes big, which is below HotSpot's
+	 * limit of 8000 bytes for compiled methods.
+	 */
+	private static final int SPLIT_SIZE = 3500;
+
+	private final int numberOfClasses;
+
+	private final int numberOfNodes;
+
+	private final int numberOfLeafs;
+
+	private final int[] nodeIndices;
+
+	private final float[] nodeThresholds;
+
+	private final float[] leafProbabilities;
+
+	private RandomTreeCompiler(int numberOfClasses, int numberOfNodes, int numberOfLeafs,
+		int[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+	{
+		this.numberOfClasses = numberOfClasses;
+		this.numberOfNodes = numberOfNodes;
+		this.numberOfLeafs = numberOfLeafs;
+		this.nodeIndices = nodeIndices;
+		this.nodeThresholds = nodeThresholds;
+		this.leafProbabilities = leafProbabilities;
+	}
+
+	/**
+	 * Compiles all trees of the given random forest. The parameters are the
+	 * padded representation used by {@link RandomForestPrediction}, with int
+	 * node indices, where leafs are encoded as leaf index +
+	 * {@link RandomTreePrediction#LEAF_FLAG}.
+	 *
+	 * @return One {@link CompiledRandomTree} per tree. An entry is null, if the
+	 *         tree is too big to be compiled.
+	 */
+	static CompiledRandomTree[] compile(int numberOfClasses, int numberOfTrees, int numberOfNodes,
+		int numberOfLeafs, int[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+	{
+		String key = hash(numberOfClasses, numberOfTrees, numberOfNodes, numberOfLeafs, nodeIndices,
+			nodeThresholds, leafProbabilities);
+		CompiledRandomTree[] cached = getCached(key);
+		if (cached != null)
+			return cached;
+		RandomTreeCompiler compiler = new RandomTreeCompiler(numberOfClasses, numberOfNodes,
+			numberOfLeafs, nodeIndices, nodeThresholds, leafProbabilities);
+		GeneratedClassLoader loader = new GeneratedClassLoader(RandomTreeCompiler.class
+			.getClassLoader());
+		CompiledRandomTree[] trees = new CompiledRandomTree[numberOfTrees];
+		for (int tree = 0; tree < numberOfTrees; tree++) {
+			byte[] bytes = compiler.treeToClassFile(tree);
+			if (bytes != null)
+				trees[tree] = loader.newInstance(className(tree).replace('/', '.'), bytes);
+		}
+		putCached(key, trees, (long) numberOfTrees * numberOfNodes);
+		return trees;
+	}
+
+	private static synchronized CompiledRandomTree[] getCached(String key) {
+		CacheEntry entry = cache.get(key);
+		return entry == null ? null : entry.trees;
+	}
+
+	private static synchronized void putCached(String key, CompiledRandomTree[] trees,
+		long numberOfNodes)
+	{
+		if (numberOfNodes > CACHE_NODES)
+			return;
+		CacheEntry previous = cache.put(key, new CacheEntry(trees, numberOfNodes));
+		cachedNodes += numberOfNodes - (previous == null ? 0 : previous.numberOfNodes);
+		Iterator<CacheEntry> eldest = cache.values().iterator();
+		while (cachedNodes > CACHE_NODES) {
+			cachedNodes -= eldest.next().numberOfNodes;
+			eldest.remove();
+		}
+	}
+
+	private static String className(int tree) {
+		return PACKAGE + "Tree" + tree;
+	}
+
+	private static String hash(int numberOfClasses, int numberOfTrees, int numberOfNodes,
+		int numberOfLeafs, int[] nodeIndices, float[] nodeThresholds, float[] leafProbabilities)
+	{
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			ByteBuffer buffer = ByteBuffer.allocate(4 * HASH_CHUNK);
+			buffer.putInt(numberOfClasses).putInt(numberOfTrees).putInt(numberOfNodes).putInt(
+				numberOfLeafs);
+			digest.update(buffer.array(), 0, buffer.position());
+			update(digest, buffer, nodeIndices);
+			update(digest, buffer, nodeThresholds);
+			update(digest, buffer, leafProbabilities);
+			StringBuilder result = new StringBuilder();
+			for (byte b : digest.digest())
+				result.append(String.format("%02x", b));
+			return result.toString();
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void update(MessageDigest digest, ByteBuffer buffer, int[] values) {
+		for (int i = 0; i < values.length; i += HASH_CHUNK) {
+			int length = Math.min(HASH_CHUNK, values.length - i);
+			buffer.clear();
+			buffer.asIntBuffer().put(values, i, length);
+			digest.update(buffer.array(), 0, 4 * length);
+		}
+	}
+
+	private static void update(MessageDigest digest, ByteBuffer buffer, float[] values) {
+		for (int i = 0; i < values.length; i += HASH_CHUNK) {
+			int length = Math.min(HASH_CHUNK, values.length - i);
+			buffer.clear();
+			buffer.asFloatBuffer().put(values, i, length);
+			digest.update(buffer.array(), 0, 4 * length);
+		}
+	}
+
+	/**
+	 * Generates the class file for the given tree, returns null if the tree is
+	 * too big.
+	 */
+	private byte[] treeToClassFile(int tree) {
+		List<Integer> methodRoots = new ArrayList<>();
+		int[] methodIndex = new int[numberOfNodes];
+		Arrays.fill(methodIndex, -1);
+		splitIntoMethods(tree, 0, methodRoots, methodIndex);
+		methodIndex[0] = methodRoots.size();
+		methodRoots.add(0);
+		ConstantPool pool = new ConstantPool();
+		String className = className(tree);
+		int thisClass = pool.classRef(className);
+		int superClass = pool.classRef("java/lang/Object");
+		int interfaceClass = pool.classRef(INTERFACE);
+		List<byte[]> methods = new ArrayList<>();
+		methods.add(method(pool, 0x0001, "<init>", "()V", 1, 1, constructorCode(pool)));
+		methods.add(method(pool, 0x0001, "addDistribution", METHOD_DESCRIPTOR, 4, 5,
+			addDistributionCode(pool, className, methodIndex[0])));
+		for (int i = 0; i < methodRoots.size(); i++) {
+			Code code = new Code();
+			emitNode(pool, code, className, tree, methodRoots.get(i), methodIndex, true);
+			methods.add(method(pool, 0x000a, "m" + i, METHOD_DESCRIPTOR, 4, 4, code));
+		}
+		if (pool.size() > 0xffff)
+			return null;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(0xcafebabe);
+			// NB: class file version 49 (Java 5) doesn't require stack map frames
+			out.writeShort(0);
+			out.writeShort(49);
+			pool.write(out);
+			out.writeShort(0x0031); // public final super
+			out.writeShort(thisClass);
+			out.writeShort(superClass);
+			out.writeShort(1);
+			out.writeShort(interfaceClass);
+			out.writeShort(0); // fields
+			out.writeShort(methods.size());
+			for (byte[] method : methods)
+				out.write(method);
+			out.writeShort(0); // attributes
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Returns an upper bound of the bytecode size of the subtree. Subtrees that
+	 * are bigger than {@link #SPLIT_SIZE} are marked as roots of separate
+	 * methods, and only count with the size of the call.
+	 */
+	private int splitIntoMethods(int tree, int node, List<Integer> methodRoots,
+		int[] methodIndex)
+	{
+		int offset = (tree * numberOfNodes + node) * 3;
+		int size = NODE_SIZE;
+		for (int b = 1; b <= 2; b++) {
+			int child = nodeIndices[offset + b];
+			if (child < 0) {
+				size += leafSize();
+				continue;
+			}
+			int childSize = splitIntoMethods(tree, child, methodRoots, methodIndex);
+			if (childSize > SPLIT_SIZE) {
+				methodIndex[child] = methodRoots.size();
+				methodRoots.add(child);
+				childSize = CALL_SIZE;
+			}
+			size += childSize;
+		}
+		return size;
+	}
+
+	private int leafSize() {
+		return 1 + 14 * numberOfClasses;
+	}
+
+	private void emitNode(ConstantPool pool, Code code, String className, int tree, int node,
+		int[] methodIndex, boolean isMethodRoot)
+	{
+		if (!isMethodRoot && methodIndex[node] >= 0) {
+			emitCall(pool, code, className, methodIndex[node]);
+			return;
+		}
+		int offset = (tree * numberOfNodes + node) * 3;
+		code.u1(0x2a); // aload_0
+		code.u1(0x1b); // iload_1
+		emitIntAddition(pool, code, nodeIndices[offset]);
+		code.u1(0x30); // faload
+		code.u1(0x13); // ldc_w
+		code.u2(pool.floatConstant(nodeThresholds[tree * numberOfNodes + node]));
+		code.u1(0x96); // fcmpg, NaN is treated as bigger
+		int branch = code.size();
+		code.u1(0x9c); // ifge
+		code.u2(0);
+		emitChild(pool, code, className, tree, nodeIndices[offset + 1], methodIndex);
+		code.patchU2(branch + 1, code.size() - branch);
+		emitChild(pool, code, className, tree, nodeIndices[offset + 2], methodIndex);
+	}
+
+	private void emitChild(ConstantPool pool, Code code, String className, int tree, int child,
+		int[] methodIndex)
+	{
+		if (child < 0)
+			emitLeaf(pool, code, tree, child - RandomTreePrediction.LEAF_FLAG);
+		else
+			emitNode(pool, code, className, tree, child, methodIndex, false);
+	}
+
+	private void emitLeaf(ConstantPool pool, Code code, int tree, int leaf) {
+		int leafOffset = (tree * numberOfLeafs + leaf) * numberOfClasses;
+		for (int k = 0; k < numberOfClasses; k++) {
+			float probability = leafProbabilities[leafOffset + k];
+			if (probability == 0)
+				continue;
+			code.u1(0x2c); // aload_2
+			code.u1(0x1d); // iload_3
+			emitIntAddition(pool, code, k);
+			code.u1(0x5c); // dup2
+			code.u1(0x30); // faload
+			code.u1(0x13); // ldc_w
+			code.u2(pool.floatConstant(probability));
+			code.u1(0x62); // fadd
+			code.u1(0x51); // fastore
+		}
+		code.u1(0xb1); // return
+	}
+
+	private static void emitCall(ConstantPool pool, Code code, String className, int method) {
+		code.u1(0x2a); // aload_0
+		code.u1(0x1b); // iload_1
+		code.u1(0x2c); // aload_2
+		code.u1(0x1d); // iload_3
+		code.u1(0xb8); // invokestatic
+		code.u2(pool.methodRef(className, "m" + method, METHOD_DESCRIPTOR));
+		code.u1(0xb1); // return
+	}
+
+	/**
+	 * Adds the given constant to the int on top of the stack.
+	 */
+	private static void emitIntAddition(ConstantPool pool, Code code, int value) {
+		if (value == 0)
+			return;
+		if (value <= 5) {
+			code.u1(0x03 + value); // iconst_<value>
+		}
+		else if (value <= Byte.MAX_VALUE) {
+			code.u1(0x10); // bipush
+			code.u1(value);
+		}
+		else if (value <= Short.MAX_VALUE) {
+			code.u1(0x11); // sipush
+			code.u2(value);
+		}
+		else {
+			code.u1(0x13); // ldc_w
+			code.u2(pool.intConstant(value));
+		}
+		code.u1(0x60); // iadd
+	}
+
+	private static Code constructorCode(ConstantPool pool) {
+		Code code = new Code();
+		code.u1(0x2a); // aload_0
+		code.u1(0xb7); // invokespecial
+		code.u2(pool.methodRef("java/lang/Object", "<init>", "()V"));
+		code.u1(0xb1); // return
+		return code;
+	}
+
+	private static Code addDistributionCode(ConstantPool pool, String className, int method) {
+		Code code = new Code();
+		code.u1(0x2b); // aload_1
+		code.u1(0x1c); // iload_2
+		code.u1(0x2d); // aload_3
+		code.u1(0x15); // iload
+		code.u1(4);
+		code.u1(0xb8); // invokestatic
+		code.u2(pool.methodRef(className, "m" + method, METHOD_DESCRIPTOR));
+		code.u1(0xb1); // return
+		return code;
+	}
+
+	private static byte[] method(ConstantPool pool, int access, String name, String descriptor,
+		int maxStack, int maxLocals, Code code)
+	{
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeShort(access);
+			out.writeShort(pool.utf8(name));
+			out.writeShort(pool.utf8(descriptor));
+			out.writeShort(1);
+			out.writeShort(pool.utf8("Code"));
+			out.writeInt(12 + code.size());
+			out.writeShort(maxStack);
+			out.writeShort(maxLocals);
+			out.writeInt(code.size());
+			out.write(code.bytes, 0, code.size());
+			out.writeShort(0); // exception table
+			out.writeShort(0); // attributes
+			return bytes.toByteArray();
+		}
+		catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Growing byte array, that holds the bytecode of a method.
+	 */
+	private static class Code {
+
+		private byte[] bytes = new byte[256];
+
+		private int size = 0;
+
+		private void u1(int value) {
+			if (size == bytes.length)
+				bytes = Arrays.copyOf(bytes, 2 * bytes.length);
+			bytes[size++] = (byte) value;
+		}
+
+		private void u2(int value) {
+			u1(value >> 8);
+			u1(value);
+		}
+
+		private void patchU2(int position, int value) {
+			bytes[position] = (byte) (value >> 8);
+			bytes[position + 1] = (byte) value;
+		}
+
+		private int size() {
+			return size;
+		}
+	}
+
+	/**
+	 * Constant pool of a class file. Equal constants are stored only once.
+	 */
+	private static class ConstantPool {
+
+		private final Map<String, Integer> indices = new HashMap<>();
+
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+		private final DataOutputStream out = new DataOutputStream(bytes);
+
+		private int size = 1;
+
+		private int utf8(String value) {
+			return constant("utf8 " + value, () -> {
+				out.writeByte(1);
+				out.writeUTF(value);
+			});
+		}
+
+		private int intConstant(int value) {
+			return constant("int " + value, () -> {
+				out.writeByte(3);
+				out.writeInt(value);
+			});
+		}
+
+		private int floatConstant(float value) {
+			int bits = Float.floatToRawIntBits(value);
+			return constant("float " + bits, () -> {
+				out.writeByte(4);
+				out.writeInt(bits);
+			});
+		}
+
+		private int classRef(String name) {
+			int nameIndex = utf8(name);
+			return constant("class " + name, () -> {
+				out.writeByte(7);
+				out.writeShort(nameIndex);
+			});
+		}
+
+		private int methodRef(String className, String name, String descriptor) {
+			int classIndex = classRef(className);
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			int nameAndType = constant("nameAndType " + name + " " + descriptor, () -> {
+				out.writeByte(12);
+				out.writeShort(nameIndex);
+				out.writeShort(descriptorIndex);
+			});
+			return constant("method " + className + " " + name + " " + descriptor, () -> {
+				out.writeByte(10);
+				out.writeShort(classIndex);
+				out.writeShort(nameAndType);
+			});
+		}
+
+		private int constant(String key, Writer writer) {
+			Integer index = indices.get(key);
+			if (index != null)
+				return index;
+			try {
+				writer.write();
+			}
+			catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			int newIndex = size++;
+			indices.put(key, newIndex);
+			return newIndex;
+		}
+
+		private int size() {
+			return size;
+		}
+
+		private void write(DataOutputStream output) throws IOException {
+			output.writeShort(size);
+			bytes.writeTo(output);
+		}
+
+		private interface Writer {
+
+			void write() throws IOException;
+		}
+	}
+
+	private static class CacheEntry {
+
+		private final CompiledRandomTree[] trees;
+
+		private final long numberOfNodes;
+
+		private CacheEntry(CompiledRandomTree[] trees, long numberOfNodes) {
+			this.trees = trees;
+			this.numberOfNodes = numberOfNodes;
+		}
+	}
+
+	/**
+	 * Class loader that defines the generated classes.
+	 */
+	private static class GeneratedClassLoader extends ClassLoader {
+
+		private GeneratedClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		private CompiledRandomTree newInstance(String className, byte[] bytes) {
+			try {
+				Class<?> aClass = defineClass(className, bytes, 0, bytes.length);
+				resolveClass(aClass);
+				return (CompiledRandomTree) aClass.getConstructor().newInstance();
+			}
+			catch (ReflectiveOperationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
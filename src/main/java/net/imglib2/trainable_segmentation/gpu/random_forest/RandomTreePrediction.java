@@ -5,6 +5,12 @@ import weka.core.Instance;
 
 public class RandomTreePrediction {
 
+	/**
+	 * Children that are leafs are encoded as leaf index + LEAF_FLAG, which is
+	 * always negative.
+	 */
+	static final int LEAF_FLAG = Integer.MIN_VALUE;
+
 	final int numberOfNodes;
 	final int numberOfLeafs;
 	private int nodeCount = 0;
@@ -21,8 +27,8 @@ public class RandomTreePrediction {
 			this.numberOfNodes = 1;
 			this.attributeIndicies = new int[] { 0 };
 			this.threshold = new double[] { 0.0 };
-			this.smallerChild = new int[] { Short.MIN_VALUE };
-			this.biggerChild = new int[] { Short.MIN_VALUE };
+			this.smallerChild = new int[] { LEAF_FLAG };
+			this.biggerChild = new int[] { LEAF_FLAG };
 			this.classProbabilities = new double[][] { tree.classProbabilities() };
 		}
 		else {
@@ -65,7 +71,7 @@ public class RandomTreePrediction {
 		if (i >= classProbabilities.length)
 			throw new AssertionError();
 		classProbabilities[i] = node.classProbabilities();
-		return i + Short.MIN_VALUE;
+		return i + LEAF_FLAG;
 	}
 
 	public double[] distributionForInstance(Instance instance) {
@@ -76,7 +82,7 @@ public class RandomTreePrediction {
 			nodeIndex = (attributeValue < threshold[nodeIndex]) ? smallerChild[nodeIndex]
 				: biggerChild[nodeIndex];
 		}
-		int leafIndex = nodeIndex - Short.MIN_VALUE;
+		int leafIndex = nodeIndex - LEAF_FLAG;
 		return classProbabilities[leafIndex];
 	}
 }
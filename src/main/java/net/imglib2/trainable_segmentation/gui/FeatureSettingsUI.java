@@ -28,6 +28,7 @@ import org.scijava.Context;
 
 import net.imglib2.trainable_segmentation.pixel_feature.settings.ChannelSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GaussMethod;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
 import net.miginfocom.swing.MigLayout;
 
@@ -96,11 +97,13 @@ public class FeatureSettingsUI extends JPanel {
 	public class GlobalsPanel extends JPanel {
 
 		private final ChannelSetting channelSetting;
+		private final GaussMethod gaussMethod;
 		private final JComboBox<String> dimensionsField;
 		private final JFormattedTextField sigmasField;
 
 		public GlobalsPanel(GlobalSettings globalSettings) {
 			channelSetting = globalSettings.channelSetting();
+			gaussMethod = globalSettings.gaussMethod();
 			setLayout(new MigLayout("insets 0", "[]20pt[200pt]", "[][][]"));
 			add(new JLabel("Dimensions:"));
 			dimensionsField = new JComboBox<>(new String[] { "2D", "3D" });
@@ -117,7 +120,8 @@ public class FeatureSettingsUI extends JPanel {
 		@SuppressWarnings("unchecked")
 		GlobalSettings get() {
 			return GlobalSettings.default2d().channels(channelSetting).dimensions(dimensionsField
-				.getSelectedIndex() + 2).sigmas((List<Double>) sigmasField.getValue()).build();
+				.getSelectedIndex() + 2).sigmas((List<Double>) sigmasField.getValue()).gaussMethod(
+					gaussMethod).build();
 		}
 
 		private void dimensionsChanged(ActionEvent e) {
@@ -0,0 +1,52 @@
+package net.imglib2.trainable_segmentation.pixel_feature.calculator;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+
+/**
+ * A {@link RandomAccessible} with the pixel values of a source channel, of
+ * which a region is copied once into a float array.
+ * <p>
+ * Random accesses for an interval within that region read directly from the
+ * array, which avoids evaluating the conversion of the source, for example
+ * from another pixel type or from ARGB, again and again. All other random
+ * accesses read from the source.
+ */
+class BufferedChannel implements RandomAccessible<FloatType> {
+
+	private final RandomAccessible<FloatType> source;
+
+	private final RandomAccessibleInterval<FloatType> buffer;
+
+	BufferedChannel(RandomAccessible<FloatType> source, Interval interval) {
+		this.source = source;
+		this.buffer = Views.translate(ArrayImgs.floats(Intervals.dimensionsAsLongArray(interval)),
+			Intervals.minAsLongArray(interval));
+		LoopBuilder.setImages(Views.interval(source, interval), buffer).forEachPixel((i, o) -> o.set(
+			i));
+	}
+
+	@Override
+	public RandomAccess<FloatType> randomAccess() {
+		return source.randomAccess();
+	}
+
+	@Override
+	public RandomAccess<FloatType> randomAccess(Interval interval) {
+		if (Intervals.contains(buffer, interval))
+			return buffer.randomAccess(interval);
+		return source.randomAccess(interval);
+	}
+
+	@Override
+	public int numDimensions() {
+		return source.numDimensions();
+	}
+}
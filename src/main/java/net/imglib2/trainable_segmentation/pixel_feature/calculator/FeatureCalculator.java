@@ -10,12 +10,14 @@ import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.loops.LoopBuilder;
 import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.gpu.api.GpuCopy;
 import net.imglib2.trainable_segmentation.gpu.GpuFeatureInput;
 import net.imglib2.trainable_segmentation.gpu.api.GpuPool;
 import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.gpu.api.GpuViews;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureJoiner;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
@@ -29,12 +31,14 @@ import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.scijava.Context;
+import preview.net.imglib2.parallel.Parallelization;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.function.IntPredicate;
 import java.util.stream.Collectors;
+import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 
 public class FeatureCalculator {
@@ -47,6 +51,12 @@ public class FeatureCalculator {
 
 	private boolean useGpu = false;
 
+	private boolean useCascadedGauss = false;
+
+	private boolean useFloatIntermediates = false;
+
+	private long cacheBudget = Long.MAX_VALUE;
+
 	public FeatureCalculator(Context context, FeatureSettings settings) {
 		this.settings = settings;
 		List<FeatureOp> featureOps = settings.features().stream()
@@ -92,6 +102,38 @@ public class FeatureCalculator {
 		this.useGpu = useGpu;
 	}
 
+	/**
+	 * Enables the cascaded calculation of the gaussian blurs for the sigmas in
+	 * {@link GlobalSettings#sigmas()}, on CPU. Each blur is calculated from the
+	 * blur with the next smaller sigma, which is faster, but gives slightly
+	 * different feature values. See {@link FeatureInput#setCascadedSigmas}.
+	 */
+	public void setUseCascadedGauss(boolean useCascadedGauss) {
+		this.useCascadedGauss = useCascadedGauss;
+	}
+
+	/**
+	 * Calculates the intermediate images, gaussian blurs, derivatives and
+	 * structure tensors, with single instead of double precision, on CPU. This
+	 * halves the memory requirement, the feature values differ by small
+	 * rounding errors. See {@link FeatureInput#setUseFloatIntermediates}.
+	 */
+	public void setUseFloatIntermediates(boolean useFloatIntermediates) {
+		this.useFloatIntermediates = useFloatIntermediates;
+	}
+
+	/**
+	 * Limits the memory, in bytes, used per tile for caching gaussian blurs and
+	 * derivatives on CPU. The channels of a tile are calculated in parallel, and
+	 * each gets an equal share of the budget. See
+	 * {@link FeatureInput#setCacheBudget(long)}.
+	 */
+	public void setCacheBudget(long bytes) {
+		if (bytes < 0)
+			throw new IllegalArgumentException("The cache budget must not be negative.");
+		this.cacheBudget = bytes;
+	}
+
 	/**
 	 * TODO what channel order? XYZC
 	 */
@@ -131,22 +173,127 @@ public class FeatureCalculator {
 		}
 	}
 
+	/**
+	 * Calculates the features for the given interval, and returns them in a
+	 * pixel-interleaved layout. The features of one pixel are stored contiguously
+	 * in the array, the pixels are ordered as in a flat iteration over the
+	 * interval. So the axis order is CXY or CXYZ.
+	 * <p>
+	 * This layout allows {@link RandomForestPrediction} to read a feature vector
+	 * directly from the array. The features are always calculated on the CPU.
+	 */
+	public float[] applyInterleaved(RandomAccessible<?> input, Interval interval) {
+		return applyInterleaved(input, interval, new float[interleavedSize(interval)]);
+	}
+
+	/**
+	 * Same as {@link #applyInterleaved(RandomAccessible, Interval)}, but writes
+	 * the features into the given buffer. The buffer may be longer than required,
+	 * which allows to reuse it for intervals of different sizes.
+	 */
+	public float[] applyInterleaved(RandomAccessible<?> input, Interval interval, float[] buffer) {
+		if (buffer.length < interleavedSize(interval))
+			throw new IllegalArgumentException("Buffer is too small.");
+		int n = interval.numDimensions();
+		long[] dimensions = new long[n + 1];
+		dimensions[0] = count();
+		for (int d = 0; d < n; d++)
+			dimensions[d + 1] = interval.dimension(d);
+		long[] min = RevampUtils.extend(Intervals.minAsLongArray(interval), 0);
+		// NB: axis order of the image is CXYZ, moveAxis yields an XYZC view
+		Img<FloatType> image = ArrayImgs.floats(buffer, dimensions);
+		RandomAccessibleInterval<FloatType> output = Views.translate(Views.moveAxis(image, 0, n), min);
+		applyUseCpu(input, output);
+		return buffer;
+	}
+
+	private int interleavedSize(Interval interval) {
+		long size = Intervals.numElements(interval) * count();
+		if (size > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Interval is too big for an interleaved feature stack.");
+		return (int) size;
+	}
+
 	private void applyUseCpu(RandomAccessible<?> input, RandomAccessibleInterval<FloatType> output) {
 		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
 		List<List<RandomAccessibleInterval<FloatType>>> outputs = split(RevampUtils.slices(output),
 			channels.size());
 		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
-		for (int i = 0; i < channels.size(); i++) {
-			FeatureInput in = new FeatureInput(channels.get(i), outputs.get(i).get(0), pixelSize);
+		long channelBudget = cacheBudget == Long.MAX_VALUE ? Long.MAX_VALUE : cacheBudget / channels
+			.size();
+		Interval bufferInterval = preprocessor.convertsPixels(input) ? bufferInterval(outputs.get(0)
+			.get(0)) : null;
+		List<Integer> indices = IntStream.range(0, channels.size()).boxed().collect(Collectors
+			.toList());
+		Parallelization.getTaskExecutor().forEach(indices, i -> {
+			RandomAccessible<FloatType> channel = bufferInterval == null ? channels.get(i)
+				: new BufferedChannel(channels.get(i), bufferInterval);
+			FeatureInput in = new FeatureInput(channel, outputs.get(i).get(0), pixelSize);
+			in.setGaussMethod(settings.globals().gaussMethod());
+			if (useCascadedGauss)
+				in.setCascadedSigmas(settings.globals().sigmas());
+			in.setUseFloatIntermediates(useFloatIntermediates);
+			in.setCacheBudget(channelBudget);
 			joiner.apply(in, outputs.get(i));
-		}
+		});
+	}
+
+	/**
+	 * Returns the region of the input channels, that is converted to float only
+	 * once. It's big enough for the gaussian blurs and derivatives of all sigmas.
+	 * Features that read further, read the remaining pixels from the input
+	 * directly.
+	 */
+	private Interval bufferInterval(Interval outputInterval) {
+		double maxSigma = settings.globals().sigmas().stream().mapToDouble(x -> x).max().orElse(0);
+		double[] sigmas = DoubleStream.of(settings.globals().pixelSizeAsDoubleArray()).map(
+			p -> maxSigma / p).toArray();
+		return RevampUtils.gaussRequiredInput(Intervals.expand(outputInterval, 2), sigmas);
 	}
 
 	public GpuImage applyUseGpu(GpuApi gpu, RandomAccessible<?> input, Interval interval) {
+		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
+		if (channels.size() > 1)
+			channels = copyChannels(channels, originalInterval(gpu, channels.get(0), interval));
+		return applyUseGpu(gpu, channels, interval);
+	}
+
+	/**
+	 * Returns the region of the input image, that
+	 * {@link #applyUseGpu(GpuApi, RandomAccessible, Interval)} reads for the
+	 * given interval, or null if the input isn't read directly. This uses the
+	 * {@link GpuApi}, and therefore needs to be called on the thread that uses
+	 * it.
+	 */
+	public Interval gpuInputInterval(GpuApi gpu, RandomAccessible<?> input, Interval interval) {
+		return originalInterval(gpu, preprocessor.getChannels(input).get(0), interval);
+	}
+
+	/**
+	 * Reads the given region of the input image, converts it to float and copies
+	 * it into main memory. This is done on the CPU only, and can therefore run
+	 * in parallel to GPU work on another thread.
+	 *
+	 * @param region The region returned by {@link #gpuInputInterval}.
+	 * @return The channels of the input image, that can be passed to
+	 *         {@link #applyUseGpu(GpuApi, List, Interval)}.
+	 */
+	public List<RandomAccessible<FloatType>> prepareGpuInput(RandomAccessible<?> input,
+		Interval region)
+	{
+		return copyChannels(preprocessor.getChannels(input), region);
+	}
+
+	/**
+	 * Same as {@link #applyUseGpu(GpuApi, RandomAccessible, Interval)}, but takes
+	 * the channels returned by {@link #prepareGpuInput}.
+	 */
+	public GpuImage applyUseGpu(GpuApi gpu, List<RandomAccessible<FloatType>> channels,
+		Interval interval)
+	{
 		if (interval.numDimensions() != settings().globals().numDimensions())
 			throw new IllegalArgumentException("Wrong dimension of the output interval.");
 		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
-		List<RandomAccessible<FloatType>> channels = preprocessor.getChannels(input);
 		GpuImage featureStack = gpu.create(Intervals.dimensionsAsLongArray(interval), count(),
 			NativeTypeEnum.Float);
 		List<List<GpuView>> outputs = split(GpuViews.channels(featureStack), channels.size());
@@ -160,6 +307,39 @@ public class FeatureCalculator {
 		return featureStack;
 	}
 
+	/**
+	 * Returns the region of a channel, that is read by the GPU feature
+	 * calculation, or null if the channel isn't read directly.
+	 */
+	private Interval originalInterval(GpuApi gpu, RandomAccessible<FloatType> channel,
+		Interval interval)
+	{
+		double[] pixelSize = settings.globals().pixelSizeAsDoubleArray();
+		try (GpuApi scope = gpu.subScope()) {
+			GpuFeatureInput in = new GpuFeatureInput(scope, channel, interval, pixelSize);
+			joiner.prefetch(in);
+			return in.originalInterval();
+		}
+	}
+
+	/**
+	 * Copies the given region of each channel into an array image. The channels
+	 * are converted and copied in parallel on the CPU, the GPU then only needs to
+	 * upload them one after the other.
+	 */
+	private static List<RandomAccessible<FloatType>> copyChannels(
+		List<RandomAccessible<FloatType>> channels, Interval interval)
+	{
+		if (interval == null)
+			return channels;
+		return Parallelization.getTaskExecutor().forEachApply(channels, channel -> {
+			Img<FloatType> copy = ArrayImgs.floats(Intervals.dimensionsAsLongArray(interval));
+			LoopBuilder.setImages(Views.interval(channel, interval), copy).forEachPixel((i, o) -> o
+				.set(i));
+			return Views.translate(copy, Intervals.minAsLongArray(interval));
+		});
+	}
+
 	public Interval outputIntervalFromInput(RandomAccessibleInterval<?> image) {
 		return preprocessor.outputIntervalFromInput(image);
 	}
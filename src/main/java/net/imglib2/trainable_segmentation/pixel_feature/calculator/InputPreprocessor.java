@@ -12,6 +12,14 @@ interface InputPreprocessor {
 
 	List<RandomAccessible<FloatType>> getChannels(RandomAccessible<?> input);
 
+	/**
+	 * Returns true, if the channels returned by {@link #getChannels} convert
+	 * the pixel values of the given input on every access.
+	 */
+	default boolean convertsPixels(RandomAccessible<?> input) {
+		return !(input.randomAccess().get() instanceof FloatType);
+	}
+
 	Class<?> getType();
 
 	Interval outputIntervalFromInput(RandomAccessibleInterval<?> image);
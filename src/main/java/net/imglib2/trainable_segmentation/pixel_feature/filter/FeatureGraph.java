@@ -0,0 +1,261 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.real.FloatType;
+import preview.net.imglib2.parallel.Parallelization;
+import preview.net.imglib2.parallel.TaskExecutor;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * Dependency graph of a list of features, and the intermediate images they
+ * use. The intermediate images are the gaussian blurs and derivatives cached by
+ * {@link FeatureInput}. An image that is used by several features is a single
+ * node in the graph.
+ * <p>
+ * The features don't declare which intermediate images they need. Instead the
+ * graph is recorded, while the features are calculated for the first time, see
+ * {@link #record}. During the recording the features are calculated one after
+ * the other, and the least recently used images are evicted, such that the
+ * first calculation is also bounded in memory.
+ * <p>
+ * {@link #apply} calculates the features in waves. The intermediate images of a
+ * wave are calculated first, level by level, independent images in parallel.
+ * Then all the features of the wave are calculated in parallel. An image, that
+ * is not needed by later waves, is released as soon as the last feature of the
+ * wave that uses it has finished. The parallelization uses the
+ * {@link TaskExecutor} of the current thread. A wave contains as many features
+ * as possible without exceeding the cache budget of the {@link FeatureInput}.
+ * If no budget is set, the budget is the memory needed by the most expensive
+ * feature, times the parallelism. If the calculation is single-threaded, each
+ * wave contains a single feature, which minimizes the memory needed.
+ */
+class FeatureGraph {
+
+	private final List<FeatureOp> features;
+
+	private final List<Set<Object>> inputs;
+
+	private final int[] offsets;
+
+	private FeatureGraph(List<FeatureOp> features, List<Set<Object>> inputs) {
+		this.features = features;
+		this.inputs = inputs;
+		this.offsets = new int[features.size()];
+		for (int i = 1; i < features.size(); i++)
+			offsets[i] = offsets[i - 1] + features.get(i - 1).count();
+	}
+
+	/**
+	 * Calculates the features sequentially, records the intermediate images used
+	 * by each feature and returns the graph.
+	 * <p>
+	 * If the {@link FeatureInput} has no cache budget, the budget is temporarily
+	 * set to the memory needed by the most expensive feature recorded so far.
+	 * The cache then only keeps the images of about one feature. Images, that
+	 * are evicted but used again by a later feature, are recalculated.
+	 */
+	static FeatureGraph record(List<FeatureOp> features, FeatureInput input,
+		List<RandomAccessibleInterval<FloatType>> output)
+	{
+		boolean defaultBudget = input.cacheBudget() == Long.MAX_VALUE;
+		List<Set<Object>> inputs = new ArrayList<>();
+		long maxBytes = 0;
+		int offset = 0;
+		try {
+			for (FeatureOp feature : features) {
+				int count = feature.count();
+				input.startRecordingAccess();
+				Set<Object> keys;
+				try {
+					feature.apply(input, output.subList(offset, offset + count));
+				}
+				finally {
+					keys = input.stopRecordingAccess();
+					inputs.add(keys);
+				}
+				offset += count;
+				if (defaultBudget) {
+					maxBytes = Math.max(maxBytes, estimatedBytes(input, keys));
+					input.setCacheBudget(maxBytes);
+				}
+			}
+		}
+		finally {
+			if (defaultBudget)
+				input.setCacheBudget(Long.MAX_VALUE);
+		}
+		for (Set<Object> keys : inputs)
+			input.release(keys);
+		return new FeatureGraph(features, inputs);
+	}
+
+	/**
+	 * Returns the memory needed for the given images, including the images
+	 * needed to calculate them.
+	 */
+	private static long estimatedBytes(FeatureInput input, Set<Object> keys) {
+		Set<Object> images = new HashSet<>();
+		for (Object key : keys)
+			addWithDependencies(input, key, images);
+		return images.stream().mapToLong(input::estimatedBytes).sum();
+	}
+
+	void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
+		TaskExecutor executor = Parallelization.getTaskExecutor();
+		int parallelism = executor.getParallelism();
+		List<List<Integer>> waves = parallelism > 1 ? waves(input, parallelism) : IntStream
+			.range(0, features.size()).mapToObj(Collections::singletonList).collect(Collectors
+				.toList());
+		List<Set<Object>> required = waves.stream().map(wave -> requiredImages(input, wave))
+			.collect(Collectors.toList());
+		List<Set<Object>> requiredLater = requiredLater(required);
+		for (int w = 0; w < waves.size(); w++) {
+			List<Integer> wave = waves.get(w);
+			Set<Object> later = requiredLater.get(w);
+			for (List<Object> level : levels(input, required.get(w)))
+				executor.forEach(level, input::precompute);
+			Map<Object, AtomicInteger> users = users(wave);
+			Set<Object> release = new HashSet<>(required.get(w));
+			release.removeAll(users.keySet());
+			release.removeAll(later);
+			input.release(release);
+			executor.forEach(wave, i -> {
+				features.get(i).apply(input, output.subList(offsets[i], offsets[i] + features.get(i)
+					.count()));
+				List<Object> unused = new ArrayList<>();
+				for (Object key : inputs.get(i))
+					if (users.get(key).decrementAndGet() == 0 && !later.contains(key))
+						unused.add(key);
+				input.release(unused);
+			});
+		}
+	}
+
+	/**
+	 * Counts for each intermediate image, how many features of the wave use it.
+	 */
+	private Map<Object, AtomicInteger> users(List<Integer> wave) {
+		Map<Object, AtomicInteger> users = new HashMap<>();
+		for (int i : wave)
+			for (Object key : inputs.get(i))
+				users.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+		return users;
+	}
+
+	/**
+	 * Returns for each wave the images, that are needed by the later waves.
+	 */
+	private static List<Set<Object>> requiredLater(List<Set<Object>> required) {
+		List<Set<Object>> result = new ArrayList<>(Collections.nCopies(required.size(), null));
+		Set<Object> later = new HashSet<>();
+		for (int w = required.size() - 1; w >= 0; w--) {
+			result.set(w, later);
+			later = new HashSet<>(later);
+			later.addAll(required.get(w));
+		}
+		return result;
+	}
+
+	/**
+	 * Splits the features into waves, such that the intermediate images of each
+	 * wave fit into the cache budget. A wave contains at least one feature.
+	 */
+	private List<List<Integer>> waves(FeatureInput input, int parallelism) {
+		long budget = input.cacheBudget();
+		if (budget == Long.MAX_VALUE)
+			budget = defaultBudget(input, parallelism);
+		List<List<Integer>> waves = new ArrayList<>();
+		List<Integer> wave = new ArrayList<>();
+		Set<Object> images = new HashSet<>();
+		long bytes = 0;
+		for (int i = 0; i < features.size(); i++) {
+			Set<Object> required = requiredImages(input, Collections.singletonList(i));
+			required.removeAll(images);
+			long additionalBytes = required.stream().mapToLong(input::estimatedBytes).sum();
+			if (!wave.isEmpty() && bytes + additionalBytes > budget) {
+				waves.add(wave);
+				wave = new ArrayList<>();
+				images.clear();
+				bytes = 0;
+				required = requiredImages(input, Collections.singletonList(i));
+				additionalBytes = required.stream().mapToLong(input::estimatedBytes).sum();
+			}
+			wave.add(i);
+			images.addAll(required);
+			bytes += additionalBytes;
+		}
+		if (!wave.isEmpty())
+			waves.add(wave);
+		return waves;
+	}
+
+	/**
+	 * Returns the memory needed to calculate the given number of the most
+	 * expensive features in parallel. This depends on the size of the target
+	 * interval.
+	 */
+	private long defaultBudget(FeatureInput input, int parallelism) {
+		long max = 0;
+		for (Set<Object> keys : inputs)
+			max = Math.max(max, estimatedBytes(input, keys));
+		return max * parallelism;
+	}
+
+	/**
+	 * Returns the intermediate images used by the given features, including the
+	 * images needed to calculate them.
+	 */
+	private Set<Object> requiredImages(FeatureInput input, Collection<Integer> wave) {
+		Set<Object> result = new LinkedHashSet<>();
+		for (int i : wave)
+			for (Object key : inputs.get(i))
+				addWithDependencies(input, key, result);
+		return result;
+	}
+
+	private static void addWithDependencies(FeatureInput input, Object key, Set<Object> result) {
+		if (!result.add(key))
+			return;
+		for (Object dependency : input.dependencies(key))
+			addWithDependencies(input, dependency, result);
+	}
+
+	/**
+	 * Groups the images by their depth in the graph. The images of a level only
+	 * depend on images of previous levels.
+	 */
+	private static List<List<Object>> levels(FeatureInput input, Set<Object> images) {
+		Map<Object, Integer> depths = new HashMap<>();
+		List<List<Object>> levels = new ArrayList<>();
+		for (Object key : images) {
+			int depth = depth(input, key, depths);
+			while (levels.size() <= depth)
+				levels.add(new ArrayList<>());
+			levels.get(depth).add(key);
+		}
+		return levels;
+	}
+
+	private static int depth(FeatureInput input, Object key, Map<Object, Integer> depths) {
+		Integer cached = depths.get(key);
+		if (cached != null)
+			return cached;
+		int depth = 0;
+		for (Object dependency : input.dependencies(key))
+			depth = Math.max(depth, depth(input, dependency, depths) + 1);
+		depths.put(key, depth);
+		return depth;
+	}
+}
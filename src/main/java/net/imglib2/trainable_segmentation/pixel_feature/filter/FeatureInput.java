@@ -1,16 +1,18 @@
 
 package net.imglib2.trainable_segmentation.pixel_feature.filter;
 
-import gnu.trove.list.array.TIntArrayList;
 import net.imglib2.FinalInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.RealTypeConverters;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GaussMethod;
 import net.imglib2.type.numeric.NumericType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
 import preview.net.imglib2.algorithm.convolution.Convolution;
 import preview.net.imglib2.algorithm.convolution.kernel.Kernel1D;
 import preview.net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
-import preview.net.imglib2.algorithm.gauss3.Gauss3;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
@@ -19,9 +21,14 @@ import net.imglib2.view.Views;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
 
@@ -29,11 +36,21 @@ public class FeatureInput {
 
 	private final RandomAccessible<FloatType> original;
 	private final Interval target;
-	private final Map<Double, RandomAccessibleInterval<DoubleType>> gaussCache =
-		new ConcurrentHashMap<>();
-	private final Map<Object, RandomAccessibleInterval<DoubleType>> derivatives =
-		new ConcurrentHashMap<>();
+	private final IntermediateImageCache cache = new IntermediateImageCache();
+	private volatile Set<Object> accessedKeys = null;
+	private volatile boolean scheduled = false;
 	private double[] pixelSize;
+	private List<Double> cascadedSigmas = Collections.emptyList();
+	private GaussMethod gaussMethod = GaussMethod.KERNEL;
+	private boolean useFloatIntermediates = false;
+
+	/**
+	 * A level of the scale space is only blurred from the previous level, if the
+	 * incremental sigma is at least this big, in pixels. For smaller sigmas the
+	 * sampled gaussian kernel deviates too much from a continuous gaussian, and
+	 * the cascaded result wouldn't agree with a direct blur.
+	 */
+	private static final double MIN_INCREMENTAL_SIGMA = 0.5;
 
 	/**
 	 * Expected channel order XY and optional Z.
@@ -54,6 +71,159 @@ public class FeatureInput {
 		this.pixelSize = pixelSize;
 	}
 
+	/**
+	 * Sets the implementation of the gaussian blur, that is used by
+	 * {@link #gauss(double)} and {@link #derivedGauss(double, int...)}.
+	 */
+	public void setGaussMethod(GaussMethod gaussMethod) {
+		this.gaussMethod = Objects.requireNonNull(gaussMethod);
+	}
+
+	/**
+	 * Enables the cascaded calculation of the gaussian scale space for the given
+	 * sigmas. Each gaussian blur {@link #gauss(double)} for one of these sigmas is
+	 * then calculated from the blur for the next smaller sigma, with incremental
+	 * sigma {@code sqrt(sigma^2 - previousSigma^2)}. This is much cheaper than
+	 * blurring the original image, because the incremental kernels are smaller.
+	 * The result agrees with the direct blur up to small discretization errors.
+	 * Other sigmas are not affected.
+	 */
+	public void setCascadedSigmas(List<Double> sigmas) {
+		this.cascadedSigmas = sigmas.stream().distinct().sorted().collect(Collectors.toList());
+	}
+
+	/**
+	 * If set to true, the gaussian blurs and derivatives are calculated and
+	 * cached as {@link FloatType} instead of {@link DoubleType}. This halves the
+	 * memory needed for the intermediate images. The results differ from the
+	 * double precision calculation by small rounding errors.
+	 * {@link #gauss(double)} and {@link #derivedGauss(double, int...)} still
+	 * return {@link DoubleType} images, they are then views on the float images.
+	 * {@link #gaussReal(double)} and {@link #derivedGaussReal(double, int...)}
+	 * return the float images directly.
+	 * Clears all cached intermediate images.
+	 */
+	public void setUseFloatIntermediates(boolean useFloatIntermediates) {
+		this.useFloatIntermediates = useFloatIntermediates;
+		cache.clear();
+	}
+
+	public boolean useFloatIntermediates() {
+		return useFloatIntermediates;
+	}
+
+	/**
+	 * Limits the memory used for caching gaussian blurs and derivatives. If the
+	 * cached images exceed the given number of bytes, the least recently used
+	 * images are evicted, and recalculated when needed again. The default is no
+	 * limit, then a {@link FeatureJoiner} only calculates as many features in
+	 * parallel, as there are threads.
+	 */
+	public void setCacheBudget(long bytes) {
+		cache.setBudget(bytes);
+	}
+
+	/**
+	 * Returns the number of bytes currently used by the cached gaussian blurs and
+	 * derivatives.
+	 */
+	public long cachedBytes() {
+		return cache.bytes();
+	}
+
+	/**
+	 * Returns the maximum of {@link #cachedBytes()} since this input was created.
+	 */
+	long peakCachedBytes() {
+		return cache.peakBytes();
+	}
+
+	/**
+	 * Starts recording the keys of all cache entries that are accessed. Used by
+	 * {@link FeatureJoiner} to find out, which intermediate images are used by
+	 * which feature.
+	 */
+	void startRecordingAccess() {
+		accessedKeys = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * True while a {@link FeatureJoiner} schedules the calculation of the
+	 * features for this input.
+	 */
+	boolean isScheduled() {
+		return scheduled;
+	}
+
+	void setScheduled(boolean scheduled) {
+		this.scheduled = scheduled;
+	}
+
+	long cacheBudget() {
+		return cache.budget();
+	}
+
+	/**
+	 * Stops recording, and returns the keys of the cache entries accessed since
+	 * {@link #startRecordingAccess()}.
+	 */
+	Set<Object> stopRecordingAccess() {
+		Set<Object> result = accessedKeys;
+		accessedKeys = null;
+		return result;
+	}
+
+	/**
+	 * Removes the cache entries with the given keys.
+	 */
+	void release(Collection<?> keys) {
+		for (Object key : keys)
+			cache.remove(key);
+	}
+
+	/**
+	 * Calculates the gaussian blur or derivative for the given cache key, if it's
+	 * not already cached.
+	 */
+	void precompute(Object key) {
+		if (key instanceof DerivativeKey)
+			derivedGauss(((DerivativeKey) key).sigma, ((DerivativeKey) key).order);
+		else
+			extendedGauss((Double) key);
+	}
+
+	/**
+	 * Returns the keys of the cache entries, that are needed to calculate the
+	 * entry with the given key.
+	 */
+	List<Object> dependencies(Object key) {
+		if (key instanceof DerivativeKey)
+			return Collections.singletonList(((DerivativeKey) key).sigma);
+		int level = cascadedSigmas.indexOf(key);
+		if (level >= 0 && isCascaded(level))
+			return Collections.singletonList(cascadedSigmas.get(level - 1));
+		return Collections.emptyList();
+	}
+
+	/**
+	 * Returns the memory needed for the cache entry with the given key, in bytes.
+	 */
+	long estimatedBytes(Object key) {
+		Interval interval;
+		if (key instanceof DerivativeKey)
+			interval = target;
+		else {
+			int level = cascadedSigmas.indexOf(key);
+			interval = level >= 0 ? levelInterval(level) : Intervals.expand(target, 2);
+		}
+		return Intervals.numElements(interval) * (useFloatIntermediates ? Float.BYTES
+			: Double.BYTES);
+	}
+
+	public double[] pixelSize() {
+		return pixelSize;
+	}
+
 	public RandomAccessible<FloatType> original() {
 		return original;
 	}
@@ -63,32 +233,124 @@ public class FeatureInput {
 	}
 
 	public RandomAccessibleInterval<DoubleType> gauss(double sigma) {
+		return asDoubles(gaussReal(sigma));
+	}
+
+	/**
+	 * Same as {@link #gauss(double)}, but returns the cached image without
+	 * conversion. The pixel type is {@link FloatType} if
+	 * {@link #setUseFloatIntermediates float intermediates} are used, and
+	 * {@link DoubleType} otherwise.
+	 */
+	public RandomAccessibleInterval<? extends RealType<?>> gaussReal(double sigma) {
 		return Views.interval(extendedGauss(sigma), target);
 	}
 
-	private RandomAccessibleInterval<DoubleType> extendedGauss(double sigma) {
-		return gaussCache.computeIfAbsent(sigma, this::calculateGauss);
+	/**
+	 * Returns the gaussian blur for the target interval plus a border of two
+	 * pixels. The border is sufficient to calculate finite difference
+	 * derivatives of first and second order.
+	 */
+	public RandomAccessibleInterval<DoubleType> gaussWithBorder(double sigma) {
+		return asDoubles(gaussWithBorderReal(sigma));
 	}
 
-	private RandomAccessibleInterval<DoubleType> calculateGauss(double sigma) {
-		final RandomAccessibleInterval<DoubleType> result = create(Intervals.expand(target, 2));
-		Gauss3.gauss(scaledSigmas(sigma), (RandomAccessible) original, result);
+	/**
+	 * Same as {@link #gaussWithBorder(double)}, but returns the cached image
+	 * without conversion, see {@link #gaussReal(double)}.
+	 */
+	public RandomAccessibleInterval<? extends RealType<?>> gaussWithBorderReal(double sigma) {
+		return Views.interval(extendedGauss(sigma), Intervals.expand(target, 2));
+	}
+
+	private RandomAccessibleInterval<? extends RealType<?>> extendedGauss(double sigma) {
+		return cached(sigma, () -> calculateGauss(sigma));
+	}
+
+	private RandomAccessibleInterval<? extends RealType<?>> cached(Object key,
+		Supplier<RandomAccessibleInterval<? extends RealType<?>>> calculate)
+	{
+		// NB: computeIfAbsent can't be used, cascaded levels are calculated recursively.
+		Set<Object> accessedKeys = this.accessedKeys;
+		if (accessedKeys != null)
+			accessedKeys.add(key);
+		RandomAccessibleInterval<? extends RealType<?>> cached = cache.get(key);
+		if (cached != null)
+			return cached;
+		RandomAccessibleInterval<? extends RealType<?>> result = calculate.get();
+		return cache.putIfAbsent(key, result, Intervals.numElements(result) *
+			(useFloatIntermediates ? Float.BYTES : Double.BYTES));
+	}
+
+	private RandomAccessibleInterval<? extends RealType<?>> calculateGauss(double sigma) {
+		int level = cascadedSigmas.indexOf(sigma);
+		if (level < 0) {
+			final RandomAccessibleInterval<? extends RealType<?>> result = create(Intervals.expand(
+				target, 2));
+			gaussMethod.gauss(scaledSigmas(sigma), original, result);
+			return result;
+		}
+		final RandomAccessibleInterval<? extends RealType<?>> result = create(levelInterval(level));
+		if (isCascaded(level)) {
+			double previousSigma = cascadedSigmas.get(level - 1);
+			gaussMethod.gauss(incrementalSigmas(level), extendedGauss(previousSigma), result);
+		}
+		else
+			gaussMethod.gauss(scaledSigmas(sigma), original, result);
 		return result;
 	}
 
+	/**
+	 * Returns true, if the given level of the cascaded scale space is calculated
+	 * from the previous level.
+	 */
+	private boolean isCascaded(int level) {
+		return level > 0 && DoubleStream.of(incrementalSigmas(level)).allMatch(
+			s -> s >= MIN_INCREMENTAL_SIGMA);
+	}
+
+	private double[] incrementalSigmas(int level) {
+		double sigma = cascadedSigmas.get(level);
+		double previousSigma = cascadedSigmas.get(level - 1);
+		return scaledSigmas(Math.sqrt(sigma * sigma - previousSigma * previousSigma));
+	}
+
+	/**
+	 * Returns the interval, for which the given level of the cascaded scale space
+	 * is calculated. It's the target interval plus a border, that is big enough
+	 * for the derivatives, and for the calculation of the following levels.
+	 */
+	private Interval levelInterval(int level) {
+		Interval interval = Intervals.expand(target, 2);
+		if (level + 1 < cascadedSigmas.size() && isCascaded(level + 1))
+			interval = Intervals.union(interval, gaussMethod.convolution(incrementalSigmas(level + 1))
+				.requiredSourceInterval(levelInterval(level + 1)));
+		return interval;
+	}
+
 	private double[] scaledSigmas(double sigma) {
 		return DoubleStream.of(pixelSize).map(p -> sigma / p).toArray();
 	}
 
 	public RandomAccessibleInterval<DoubleType> derivedGauss(double sigma, int... order) {
-		return derivatives.computeIfAbsent(key(sigma, order), k -> calculateDerivative(sigma, order));
+		return asDoubles(derivedGaussReal(sigma, order));
 	}
 
-	private static Object key(double sigma, int... order) {
-		return Arrays.asList(sigma, new TIntArrayList(order));
+	/**
+	 * Same as {@link #derivedGauss(double, int...)}, but returns the cached
+	 * image without conversion, see {@link #gaussReal(double)}.
+	 */
+	public RandomAccessibleInterval<? extends RealType<?>> derivedGaussReal(double sigma,
+		int... order)
+	{
+		if (IntStream.of(order).allMatch(o -> o == 0))
+			return gaussReal(sigma);
+		return cached(new DerivativeKey(sigma, order), () -> calculateDerivative(sigma, order));
 	}
 
-	private RandomAccessibleInterval<DoubleType> calculateDerivative(double sigma, int[] orders) {
+	private RandomAccessibleInterval<? extends RealType<?>> calculateDerivative(double sigma,
+		int[] orders)
+	{
 		List<Convolution<NumericType<?>>> convolutions = new ArrayList<>();
 		for (int i = 0; i < orders.length; i++) {
 			int order = orders[i];
@@ -97,9 +359,7 @@ public class FeatureInput {
 				convolutions.add(SeparableKernelConvolution.convolution1d(multiply, i));
 			}
 		}
-		if (convolutions.isEmpty())
-			return gauss(sigma);
-		final RandomAccessibleInterval<DoubleType> result = create(target);
+		final RandomAccessibleInterval<? extends RealType<?>> result = create(target);
 		Convolution.concat(convolutions).process(extendedGauss(sigma), result);
 		return result;
 	}
@@ -122,8 +382,44 @@ public class FeatureInput {
 		return result;
 	}
 
-	private RandomAccessibleInterval<DoubleType> create(Interval target) {
-		return Views.translate(ArrayImgs.doubles(Intervals.dimensionsAsLongArray(target)), Intervals
-			.minAsLongArray(target));
+	private RandomAccessibleInterval<? extends RealType<?>> create(Interval target) {
+		long[] dimensions = Intervals.dimensionsAsLongArray(target);
+		long[] min = Intervals.minAsLongArray(target);
+		if (useFloatIntermediates)
+			return Views.translate(ArrayImgs.floats(dimensions), min);
+		return Views.translate(ArrayImgs.doubles(dimensions), min);
+	}
+
+	private static class DerivativeKey {
+
+		private final double sigma;
+
+		private final int[] order;
+
+		private DerivativeKey(double sigma, int[] order) {
+			this.sigma = sigma;
+			this.order = order.clone();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof DerivativeKey))
+				return false;
+			DerivativeKey other = (DerivativeKey) obj;
+			return sigma == other.sigma && Arrays.equals(order, other.order);
+		}
+
+		@Override
+		public int hashCode() {
+			return Double.hashCode(sigma) * 31 + Arrays.hashCode(order);
+		}
+	}
+
+	private RandomAccessibleInterval<DoubleType> asDoubles(
+		RandomAccessibleInterval<? extends RealType<?>> image)
+	{
+		if (useFloatIntermediates)
+			return RealTypeConverters.convert(image, new DoubleType());
+		return Cast.unchecked(image);
 	}
 }
@@ -23,6 +23,12 @@ public class FeatureJoiner {
 
 	private final int count;
 
+	/**
+	 * Dependency graph of the features and the intermediate images they use.
+	 * Recorded during the first call of {@link #apply(FeatureInput, List)}.
+	 */
+	private volatile FeatureGraph graph = null;
+
 	public FeatureJoiner(List<FeatureOp> features) {
 		this.settings = checkGlobalSettings(features);
 		this.features = features;
@@ -49,8 +55,47 @@ public class FeatureJoiner {
 		return count;
 	}
 
+	/**
+	 * Calculates the features. Features of groups are scheduled individually.
+	 * The first call calculates the features sequentially, and records which
+	 * gaussian blurs and derivatives are used by which feature. Its cache is
+	 * bounded as well, see {@link FeatureGraph#record}. Later calls use
+	 * this dependency graph to calculate independent features and intermediate
+	 * images in parallel, and to release the cached images as soon as they are
+	 * no longer needed. See {@link FeatureGraph}.
+	 */
 	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		genericApply(output, (featureOp, o) -> featureOp.apply(input, o));
+		if (input.isScheduled()) {
+			// NB: This is a nested feature joiner, the outermost joiner schedules the features.
+			genericApply(output, (featureOp, o) -> featureOp.apply(input, o));
+			return;
+		}
+		if (output.size() != count)
+			throw new IllegalArgumentException();
+		input.setScheduled(true);
+		try {
+			FeatureGraph graph = this.graph;
+			if (graph == null)
+				this.graph = FeatureGraph.record(leaves(features), input, output);
+			else
+				graph.apply(input, output);
+		}
+		finally {
+			input.setScheduled(false);
+		}
+	}
+
+	/**
+	 * Replaces the groups of features by the features they contain.
+	 */
+	private static List<FeatureOp> leaves(List<FeatureOp> features) {
+		List<FeatureOp> leaves = new ArrayList<>();
+		for (FeatureOp feature : features)
+			if (feature instanceof AbstractGroupFeatureOp)
+				leaves.addAll(leaves(((AbstractGroupFeatureOp) feature).featureGroup.features()));
+			else
+				leaves.add(feature);
+		return leaves;
 	}
 
 	public void prefetch(GpuFeatureInput input) {
@@ -27,8 +27,10 @@ public interface FeatureOp extends SciJavaPlugin, Op,
 	default void apply(RandomAccessible<FloatType> input,
 		List<RandomAccessibleInterval<FloatType>> output)
 	{
-		apply(new FeatureInput(input, output.get(0), globalSettings().pixelSizeAsDoubleArray()),
-			output);
+		FeatureInput featureInput = new FeatureInput(input, output.get(0), globalSettings()
+			.pixelSizeAsDoubleArray());
+		featureInput.setGaussMethod(globalSettings().gaussMethod());
+		apply(featureInput, output);
 	}
 
 	void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output);
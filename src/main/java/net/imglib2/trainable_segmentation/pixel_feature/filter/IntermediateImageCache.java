@@ -0,0 +1,106 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter;
+
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache for the intermediate images of a {@link FeatureInput}, the gaussian
+ * blurs and derivatives.
+ * <p>
+ * The cache has a budget in bytes. If the cached images exceed the budget, the
+ * least recently used images are evicted. An evicted image is recalculated, if
+ * it is needed again.
+ */
+class IntermediateImageCache {
+
+	private final Map<Object, RandomAccessibleInterval<? extends RealType<?>>> images =
+		new LinkedHashMap<>(16, 0.75f, true);
+
+	private final Map<Object, Long> sizes = new HashMap<>();
+
+	private long budget = Long.MAX_VALUE;
+
+	private long bytes = 0;
+
+	private long peakBytes = 0;
+
+	synchronized void setBudget(long budget) {
+		if (budget < 0)
+			throw new IllegalArgumentException("The cache budget must not be negative.");
+		this.budget = budget;
+		evict(null);
+	}
+
+	synchronized long budget() {
+		return budget;
+	}
+
+	synchronized RandomAccessibleInterval<? extends RealType<?>> get(Object key) {
+		return images.get(key);
+	}
+
+	/**
+	 * Adds the image to the cache, unless there is already an image for the
+	 * given key. Returns the image that is cached for the key.
+	 */
+	synchronized RandomAccessibleInterval<? extends RealType<?>> putIfAbsent(Object key,
+		RandomAccessibleInterval<? extends RealType<?>> image, long imageBytes)
+	{
+		RandomAccessibleInterval<? extends RealType<?>> previous = images.get(key);
+		if (previous != null)
+			return previous;
+		images.put(key, image);
+		sizes.put(key, imageBytes);
+		bytes += imageBytes;
+		peakBytes = Math.max(peakBytes, bytes);
+		evict(key);
+		return image;
+	}
+
+	synchronized void remove(Object key) {
+		if (images.remove(key) != null)
+			bytes -= sizes.remove(key);
+	}
+
+	synchronized void clear() {
+		images.clear();
+		sizes.clear();
+		bytes = 0;
+	}
+
+	synchronized long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Returns the maximum number of bytes, that have been used by the cache at
+	 * any time.
+	 */
+	synchronized long peakBytes() {
+		return peakBytes;
+	}
+
+	synchronized boolean contains(Object key) {
+		return images.containsKey(key);
+	}
+
+	/**
+	 * Removes the least recently used images, until the budget is met. The image
+	 * with the given key is kept.
+	 */
+	private void evict(Object keep) {
+		Iterator<Object> keys = images.keySet().iterator();
+		while (bytes > budget && keys.hasNext()) {
+			Object key = keys.next();
+			if (key.equals(keep))
+				continue;
+			keys.remove();
+			bytes -= sizes.remove(key);
+		}
+	}
+}
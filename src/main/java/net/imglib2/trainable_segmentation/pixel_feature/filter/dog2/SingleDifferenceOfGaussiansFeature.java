@@ -10,7 +10,7 @@ import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -47,11 +47,12 @@ public class SingleDifferenceOfGaussiansFeature extends AbstractFeatureOp {
 	}
 
 	private void dog(FeatureInput in, RandomAccessibleInterval<FloatType> result) {
-		subtract(in.gauss(sigma1), in.gauss(sigma2), result);
+		subtract(in.gaussReal(sigma1), in.gaussReal(sigma2), result);
 	}
 
-	private void subtract(RandomAccessibleInterval<DoubleType> minuend,
-		RandomAccessibleInterval<DoubleType> subtrahend, RandomAccessibleInterval<FloatType> result)
+	private void subtract(RandomAccessibleInterval<? extends RealType<?>> minuend,
+		RandomAccessibleInterval<? extends RealType<?>> subtrahend,
+		RandomAccessibleInterval<FloatType> result)
 	{
 		LoopBuilder.setImages(minuend, subtrahend, result)
 			.forEachPixel((a, b, r) -> r.setReal(a.getRealFloat() - b.getRealFloat()));
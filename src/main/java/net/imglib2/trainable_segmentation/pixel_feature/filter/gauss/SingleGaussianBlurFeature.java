@@ -37,7 +37,7 @@ public class SingleGaussianBlurFeature extends AbstractFeatureOp {
 
 	@Override
 	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		LoopBuilder.setImages(input.gauss(sigma), output.get(0)).forEachPixel((i, o) -> o.setReal(i
+		LoopBuilder.setImages(input.gaussReal(sigma), output.get(0)).forEachPixel((i, o) -> o.setReal(i
 			.getRealFloat()));
 	}
 
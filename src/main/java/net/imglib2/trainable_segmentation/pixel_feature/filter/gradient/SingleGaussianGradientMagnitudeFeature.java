@@ -10,7 +10,7 @@ import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -49,17 +49,17 @@ public class SingleGaussianGradientMagnitudeFeature extends AbstractFeatureOp {
 	}
 
 	private void apply3d(FeatureInput input, RandomAccessibleInterval<FloatType> output) {
-		RandomAccessibleInterval<DoubleType> dx = derive(input, 0);
-		RandomAccessibleInterval<DoubleType> dy = derive(input, 1);
-		RandomAccessibleInterval<DoubleType> dz = derive(input, 2);
+		RandomAccessibleInterval<? extends RealType<?>> dx = derive(input, 0);
+		RandomAccessibleInterval<? extends RealType<?>> dy = derive(input, 1);
+		RandomAccessibleInterval<? extends RealType<?>> dz = derive(input, 2);
 		LoopBuilder.setImages(dx, dy, dz, output).forEachPixel(
 			(x, y, z, o) -> o.setReal(magnitude(x.getRealDouble(), y.getRealDouble(), z
 				.getRealDouble())));
 	}
 
 	private void apply2d(FeatureInput input, RandomAccessibleInterval<FloatType> output) {
-		RandomAccessibleInterval<DoubleType> dx = derive(input, 0);
-		RandomAccessibleInterval<DoubleType> dy = derive(input, 1);
+		RandomAccessibleInterval<? extends RealType<?>> dx = derive(input, 0);
+		RandomAccessibleInterval<? extends RealType<?>> dy = derive(input, 1);
 		LoopBuilder.setImages(dx, dy, output).forEachPixel(
 			(x, y, o) -> o.setReal(magnitude(x.getRealDouble(), y.getRealDouble())));
 	}
@@ -76,10 +76,10 @@ public class SingleGaussianGradientMagnitudeFeature extends AbstractFeatureOp {
 		return x * x;
 	}
 
-	private RandomAccessibleInterval<DoubleType> derive(FeatureInput input, int d) {
+	private RandomAccessibleInterval<? extends RealType<?>> derive(FeatureInput input, int d) {
 		int[] orders = new int[globalSettings().numDimensions()];
 		orders[d] = 1;
-		return input.derivedGauss(sigma, orders);
+		return input.derivedGaussReal(sigma, orders);
 	}
 
 	@Override
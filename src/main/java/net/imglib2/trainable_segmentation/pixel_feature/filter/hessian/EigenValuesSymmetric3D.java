@@ -28,13 +28,28 @@ public class EigenValuesSymmetric3D<T extends RealType<T>, C extends RealType<C>
 		copyTo(evs);
 	}
 
+	/**
+	 * Computes the eigenvalues of the symmetric matrix with the given elements.
+	 * Writes them in descending order into the array evs.
+	 */
+	public void compute(double a11, double a12, double a13, double a22, double a23, double a33,
+		double[] evs)
+	{
+		eigenvalues(a11, a12, a13, a22, a23, a33);
+		evs[0] = x[2];
+		evs[1] = x[1];
+		evs[2] = x[0];
+	}
+
 	private void eigenvalues(Composite<T> matrix) {
-		final double a11 = matrix.get(0).getRealDouble();
-		final double a12 = matrix.get(1).getRealDouble();
-		final double a13 = matrix.get(2).getRealDouble();
-		final double a22 = matrix.get(3).getRealDouble();
-		final double a23 = matrix.get(4).getRealDouble();
-		final double a33 = matrix.get(5).getRealDouble();
+		eigenvalues(matrix.get(0).getRealDouble(), matrix.get(1).getRealDouble(), matrix.get(2)
+			.getRealDouble(), matrix.get(3).getRealDouble(), matrix.get(4).getRealDouble(), matrix.get(
+				5).getRealDouble());
+	}
+
+	private void eigenvalues(double a11, double a12, double a13, double a22, double a23,
+		double a33)
+	{
 		final double b2 = -(a11 + a22 + a33);
 		final double b1 = a11 * a22 + a11 * a33 + a22 * a33 - a12 * a12 - a13 * a13 - a23 * a23;
 		final double b0 = a11 * (a23 * a23 - a22 * a33) + a22 * a13 * a13 + a33 * a12 * a12 - 2 * a12 *
@@ -0,0 +1,93 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter.hessian;
+
+/**
+ * Calculates the eigenvalues of many symmetric 2x2 or 3x3 matrices at once.
+ * <p>
+ * The matrices are given as structure of arrays: one array per matrix
+ * element, for example one line of an image. The eigenvalues are written into
+ * one array per eigenvalue, in descending order. The loops have no data
+ * dependent branches and no per pixel objects, which allows the JIT to unroll
+ * and (partially) vectorize them. 3x3 matrices are solved with the closed form
+ * trigonometric solution of the characteristic polynomial, instead of the
+ * iterative {@link net.imglib2.trainable_segmentation.utils.CubicEquation}
+ * used by {@link EigenValuesSymmetric3D}. The angle is not calculated with
+ * {@link Math#acos}, which is slow, but with a fixed number of Newton steps of
+ * a complex cube root. The relative error is about 1e-13, but increases to
+ * 1e-8 for matrices with (almost) repeated eigenvalues. This is by far
+ * sufficient for the float feature images.
+ * <p>
+ * The output arrays may be the same as the input arrays.
+ */
+public class EigenValuesSymmetricBatch {
+
+	private static final double SQRT3_HALF = 0.5 * Math.sqrt(3);
+
+	private static final int NEWTON_STEPS = 4;
+
+	private EigenValuesSymmetricBatch() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Calculates the eigenvalues of the matrices [[a11, a12], [a12, a22]].
+	 */
+	public static void compute2d(double[] a11, double[] a12, double[] a22, double[] ev1,
+		double[] ev2, int length)
+	{
+		for (int i = 0; i < length; i++) {
+			double a = a11[i], b = a12[i], d = a22[i];
+			double halfTrace = 0.5 * (a + d);
+			double halfDifference = 0.5 * (a - d);
+			double root = Math.sqrt(b * b + halfDifference * halfDifference);
+			ev1[i] = halfTrace + root;
+			ev2[i] = halfTrace - root;
+		}
+	}
+
+	/**
+	 * Calculates the eigenvalues of the matrices [[a11, a12, a13], [a12, a22,
+	 * a23], [a13, a23, a33]].
+	 */
+	public static void compute3d(double[] a11, double[] a12, double[] a13, double[] a22,
+		double[] a23, double[] a33, double[] ev1, double[] ev2, double[] ev3, int length)
+	{
+		for (int i = 0; i < length; i++) {
+			double b12 = a12[i], b13 = a13[i], b23 = a23[i];
+			double q = (a11[i] + a22[i] + a33[i]) * (1.0 / 3.0);
+			double b11 = a11[i] - q, b22 = a22[i] - q, b33 = a33[i] - q;
+			double p = Math.sqrt((b11 * b11 + b22 * b22 + b33 * b33 + 2 * (b12 * b12 + b13 * b13 +
+				b23 * b23)) * (1.0 / 6.0));
+			// NB: (A - q * I) / p has the eigenvalues 2 * cos(phi + k * 2 * PI / 3).
+			double s = p > 0 ? 1 / p : 0;
+			b11 *= s;
+			b22 *= s;
+			b33 *= s;
+			b12 *= s;
+			b13 *= s;
+			b23 *= s;
+			double r = 0.5 * (b11 * (b22 * b33 - b23 * b23) - b12 * (b12 * b33 - b23 * b13) + b13 *
+				(b12 * b23 - b22 * b13));
+			r = Math.max(-1, Math.min(1, r));
+			// NB: cos(phi) + i * sin(phi) is the cube root of r + i * sqrt(1 - r^2),
+			// with phi = acos(r) / 3.
+			double im = Math.sqrt((1 - r) * (1 + r));
+			double t = 0.5 * (1 - r);
+			double c = 1 - 0.5 * t;
+			double sn = SQRT3_HALF * t;
+			for (int k = 0; k < NEWTON_STEPS; k++) {
+				double c2 = c * c - sn * sn;
+				double s2 = 2 * c * sn;
+				double f = 1 / (c2 * c2 + s2 * s2);
+				double qc = (r * c2 + im * s2) * f;
+				double qs = (im * c2 - r * s2) * f;
+				c = (2 * c + qc) * (1.0 / 3.0);
+				sn = (2 * sn + qs) * (1.0 / 3.0);
+			}
+			double largest = q + 2 * p * c;
+			double smallest = q - p * (c + 2 * SQRT3_HALF * sn);
+			ev1[i] = largest;
+			ev2[i] = 3 * q - largest - smallest;
+			ev3[i] = smallest;
+		}
+	}
+}
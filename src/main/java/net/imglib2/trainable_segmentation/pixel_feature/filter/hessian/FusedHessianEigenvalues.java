@@ -0,0 +1,224 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter.hessian;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Localizables;
+import net.imglib2.view.Views;
+import preview.net.imglib2.loops.LoopBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Calculates the eigenvalues of the hessian matrix directly from a gaussian
+ * blurred image.
+ * <p>
+ * The second derivatives are calculated with the same finite differences as
+ * {@link net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput#derivedGauss},
+ * [1 -2 1] for pure and [-0.5 0 0.5] x [-0.5 0 0.5] for mixed derivatives.
+ * The image is processed line by line: the 3 (2D) or 9 (3D) neighboring lines
+ * of the blurred image are copied into arrays, the derivatives are calculated
+ * for the whole line and passed to the {@link EigenValuesSymmetricBatch}
+ * solver. The derivatives are never stored as images.
+ */
+class FusedHessianEigenvalues {
+
+	private FusedHessianEigenvalues() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * @param gauss Gaussian blurred image, needs to be defined on the output
+	 *          interval plus a border of one pixel.
+	 * @param pixelSize Pixel size, the derivatives are scaled accordingly.
+	 * @param output Eigenvalues in descending order, two images in 2D, three
+	 *          images in 3D.
+	 */
+	static void apply(RandomAccessible<? extends RealType<?>> gauss, double[] pixelSize,
+		List<RandomAccessibleInterval<FloatType>> output)
+	{
+		int n = gauss.numDimensions();
+		if (n != 2 && n != 3)
+			throw new IllegalArgumentException("Only 2D and 3D images are supported.");
+		if (output.size() != n)
+			throw new IllegalArgumentException("Expected " + n + " output images.");
+		Interval target = output.get(0);
+		long[] lineDimensions = Intervals.dimensionsAsLongArray(target);
+		lineDimensions[0] = 1;
+		RandomAccessibleInterval<Localizable> lines = Views.interval(Localizables.randomAccessible(n),
+			new FinalInterval(lineDimensions));
+		LoopBuilder.setImages(lines).multiThreaded().forEachChunk(chunk -> {
+			LineProcessor processor = n == 2 ? new LineProcessor2d(gauss, pixelSize, output)
+				: new LineProcessor3d(gauss, pixelSize, output);
+			chunk.forEachPixel(processor::process);
+			return null;
+		});
+	}
+
+	private abstract static class LineProcessor {
+
+		private final RandomAccess<? extends RealType<?>> in;
+
+		private final List<RandomAccess<FloatType>> out;
+
+		private final long[] min;
+
+		final int width;
+
+		private final int numLines;
+
+		/** Neighboring lines of the blurred image, with one extra pixel per side. */
+		final double[][] lines;
+
+		/** Eigenvalues of the pixels in the current line, one array per eigenvalue. */
+		final double[][] eigenvalues;
+
+		private LineProcessor(RandomAccessible<? extends RealType<?>> gauss,
+			List<RandomAccessibleInterval<FloatType>> output, int numLines)
+		{
+			Interval target = output.get(0);
+			this.min = Intervals.minAsLongArray(target);
+			this.width = (int) target.dimension(0);
+			this.numLines = numLines;
+			this.in = gauss.randomAccess(Intervals.expand(target, 1));
+			this.out = new ArrayList<>();
+			for (RandomAccessibleInterval<FloatType> image : output)
+				out.add(image.randomAccess());
+			this.lines = new double[numLines][width + 2];
+			this.eigenvalues = new double[output.size()][width];
+		}
+
+		void process(Localizable position) {
+			int n = min.length;
+			for (int l = 0; l < numLines; l++) {
+				in.setPosition(min[0] - 1, 0);
+				for (int d = 1; d < n; d++)
+					in.setPosition(min[d] + position.getLongPosition(d) + offset(l, d), d);
+				double[] line = lines[l];
+				for (int x = 0; x < width + 2; x++) {
+					line[x] = in.get().getRealDouble();
+					in.fwd(0);
+				}
+			}
+			for (RandomAccess<FloatType> ra : out) {
+				ra.setPosition(min[0], 0);
+				for (int d = 1; d < n; d++)
+					ra.setPosition(min[d] + position.getLongPosition(d), d);
+			}
+			computeEigenvalues();
+			for (int i = 0; i < eigenvalues.length; i++) {
+				RandomAccess<FloatType> ra = out.get(i);
+				double[] values = eigenvalues[i];
+				for (int x = 0; x < width; x++) {
+					ra.get().setReal(values[x]);
+					ra.fwd(0);
+				}
+			}
+		}
+
+		/**
+		 * Returns the offset of the given neighboring line in the given dimension.
+		 */
+		abstract int offset(int line, int d);
+
+		/**
+		 * Calculates the eigenvalues for all pixels of the current line, and
+		 * stores them in {@link #eigenvalues}.
+		 */
+		abstract void computeEigenvalues();
+	}
+
+	private static class LineProcessor2d extends LineProcessor {
+
+		private final double sxx, syy, sxy;
+
+		private final double[] dxx, dyy, dxy;
+
+		private LineProcessor2d(RandomAccessible<? extends RealType<?>> gauss, double[] pixelSize,
+			List<RandomAccessibleInterval<FloatType>> output)
+		{
+			super(gauss, output, 3);
+			sxx = 1 / (pixelSize[0] * pixelSize[0]);
+			syy = 1 / (pixelSize[1] * pixelSize[1]);
+			sxy = 0.25 / (pixelSize[0] * pixelSize[1]);
+			dxx = new double[width];
+			dyy = new double[width];
+			dxy = new double[width];
+		}
+
+		@Override
+		int offset(int line, int d) {
+			return line - 1;
+		}
+
+		@Override
+		void computeEigenvalues() {
+			double[] m = lines[0], c = lines[1], p = lines[2];
+			for (int i = 0; i < width; i++) {
+				int x = i + 1;
+				dxx[i] = (c[x + 1] - 2 * c[x] + c[x - 1]) * sxx;
+				dyy[i] = (p[x] - 2 * c[x] + m[x]) * syy;
+				dxy[i] = (p[x + 1] - p[x - 1] - m[x + 1] + m[x - 1]) * sxy;
+			}
+			EigenValuesSymmetricBatch.compute2d(dxx, dxy, dyy, eigenvalues[0], eigenvalues[1], width);
+		}
+	}
+
+	private static class LineProcessor3d extends LineProcessor {
+
+		private final double sxx, syy, szz, sxy, sxz, syz;
+
+		private final double[] dxx, dyy, dzz, dxy, dxz, dyz;
+
+		private LineProcessor3d(RandomAccessible<? extends RealType<?>> gauss, double[] pixelSize,
+			List<RandomAccessibleInterval<FloatType>> output)
+		{
+			super(gauss, output, 9);
+			sxx = 1 / (pixelSize[0] * pixelSize[0]);
+			syy = 1 / (pixelSize[1] * pixelSize[1]);
+			szz = 1 / (pixelSize[2] * pixelSize[2]);
+			sxy = 0.25 / (pixelSize[0] * pixelSize[1]);
+			sxz = 0.25 / (pixelSize[0] * pixelSize[2]);
+			syz = 0.25 / (pixelSize[1] * pixelSize[2]);
+			dxx = new double[width];
+			dyy = new double[width];
+			dzz = new double[width];
+			dxy = new double[width];
+			dxz = new double[width];
+			dyz = new double[width];
+		}
+
+		/**
+		 * Line index = 3 * (y offset + 1) + (z offset + 1).
+		 */
+		@Override
+		int offset(int line, int d) {
+			return d == 1 ? line / 3 - 1 : line % 3 - 1;
+		}
+
+		@Override
+		void computeEigenvalues() {
+			double[] c = lines[4];
+			double[] ym = lines[1], yp = lines[7], zm = lines[3], zp = lines[5];
+			double[] ymzm = lines[0], ymzp = lines[2], ypzm = lines[6], ypzp = lines[8];
+			for (int i = 0; i < width; i++) {
+				int x = i + 1;
+				dxx[i] = (c[x + 1] - 2 * c[x] + c[x - 1]) * sxx;
+				dyy[i] = (yp[x] - 2 * c[x] + ym[x]) * syy;
+				dzz[i] = (zp[x] - 2 * c[x] + zm[x]) * szz;
+				dxy[i] = (yp[x + 1] - yp[x - 1] - ym[x + 1] + ym[x - 1]) * sxy;
+				dxz[i] = (zp[x + 1] - zp[x - 1] - zm[x + 1] + zm[x - 1]) * sxz;
+				dyz[i] = (ypzp[x] - ypzm[x] - ymzp[x] + ymzm[x]) * syz;
+			}
+			EigenValuesSymmetricBatch.compute3d(dxx, dxy, dxz, dyy, dyz, dzz, eigenvalues[0],
+				eigenvalues[1], eigenvalues[2], width);
+		}
+	}
+}
@@ -4,20 +4,15 @@ package net.imglib2.trainable_segmentation.pixel_feature.filter.hessian;
 import net.imglib2.trainable_segmentation.gpu.algorithms.GpuEigenvalues;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.linalg.eigen.EigenValues;
-import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.gpu.GpuFeatureInput;
 import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
-import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.composite.Composite;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
-import preview.net.imglib2.loops.LoopBuilder;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -58,40 +53,11 @@ public class SingleHessianEigenvaluesFeature extends AbstractFeatureOp {
 	}
 
 	private void apply2d(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		RandomAccessibleInterval<DoubleType> dxx = input.derivedGauss(sigma, 2, 0);
-		RandomAccessibleInterval<DoubleType> dxy = input.derivedGauss(sigma, 1, 1);
-		RandomAccessibleInterval<DoubleType> dyy = input.derivedGauss(sigma, 0, 2);
-		RandomAccessibleInterval<FloatType> larger = output.get(0);
-		RandomAccessibleInterval<FloatType> smaller = output.get(1);
-		LoopBuilder.setImages(dxx, dxy, dyy, larger, smaller).multiThreaded().forEachPixel(
-			(s_xx, s_yx, s_yy, l, s) -> calculateHessianPerPixel(s_xx.getRealDouble(), s_yx
-				.getRealDouble(), s_yy.getRealDouble(), l, s));
-	}
-
-	private static void calculateHessianPerPixel(
-		double s_xx, double s_xy, double s_yy, FloatType largerEigenvalue, FloatType smallerEigenvalue)
-	{
-		final double trace = s_xx + s_yy;
-		float l = (float) (trace / 2.0 + Math.sqrt(4 * s_xy * s_xy + (s_xx - s_yy) * (s_xx - s_yy)) /
-			2.0);
-		largerEigenvalue.set(l);
-		float s = (float) (trace / 2.0 - Math.sqrt(4 * s_xy * s_xy + (s_xx - s_yy) * (s_xx - s_yy)) /
-			2.0);
-		smallerEigenvalue.set(s);
+		FusedHessianEigenvalues.apply(input.gaussWithBorderReal(sigma), input.pixelSize(), output);
 	}
 
 	private void apply3d(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		RandomAccessibleInterval<DoubleType> dxx = input.derivedGauss(sigma, 2, 0, 0);
-		RandomAccessibleInterval<DoubleType> dxy = input.derivedGauss(sigma, 1, 1, 0);
-		RandomAccessibleInterval<DoubleType> dxz = input.derivedGauss(sigma, 1, 0, 1);
-		RandomAccessibleInterval<DoubleType> dyy = input.derivedGauss(sigma, 0, 2, 0);
-		RandomAccessibleInterval<DoubleType> dyz = input.derivedGauss(sigma, 0, 1, 1);
-		RandomAccessibleInterval<DoubleType> dzz = input.derivedGauss(sigma, 0, 0, 2);
-		RandomAccessibleInterval<Composite<DoubleType>> derivative = RevampUtils.vectorizeStack(dxx,
-			dxy, dxz, dyy, dyz, dzz);
-		RandomAccessibleInterval<Composite<FloatType>> eigenvalues = RevampUtils.vectorizeStack(output);
-		EigenValues<DoubleType, FloatType> calculator = new EigenValuesSymmetric3D<>();
-		LoopBuilder.setImages(derivative, eigenvalues).forEachPixel(calculator::compute);
+		FusedHessianEigenvalues.apply(input.gaussWithBorderReal(sigma), input.pixelSize(), output);
 	}
 
 	@Override
@@ -10,8 +10,9 @@ import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
-import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
 import net.imglib2.view.composite.Composite;
 import org.scijava.plugin.Parameter;
 import org.scijava.plugin.Plugin;
@@ -41,8 +42,10 @@ public class SingleLaplacianOfGaussianFeature extends AbstractFeatureOp {
 	@Override
 	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
 		int n = globalSettings().numDimensions();
-		List<RandomAccessibleInterval<DoubleType>> derivatives = IntStream.range(0, n)
-			.mapToObj(d -> input.derivedGauss(sigma, order(n, d))).collect(Collectors.toList());
+		List<RandomAccessibleInterval<RealType<?>>> derivatives = IntStream.range(0, n)
+			.mapToObj(d -> Cast.<RandomAccessibleInterval<RealType<?>>> unchecked(input
+				.derivedGaussReal(sigma, order(n, d))))
+			.collect(Collectors.toList());
 		LoopBuilder.setImages(RevampUtils.vectorizeStack(derivatives), output.get(0))
 			.multiThreaded().forEachPixel((x, sum) -> sum.setReal(sum(x, n)));
 	}
@@ -51,7 +54,7 @@ public class SingleLaplacianOfGaussianFeature extends AbstractFeatureOp {
 		return IntStream.range(0, n).map(i -> i == d ? 2 : 0).toArray();
 	}
 
-	private double sum(Composite<DoubleType> d, int n) {
+	private double sum(Composite<RealType<?>> d, int n) {
 		double sum = 0;
 		for (int i = 0; i < n; i++) {
 			sum += d.get(i).getRealDouble();
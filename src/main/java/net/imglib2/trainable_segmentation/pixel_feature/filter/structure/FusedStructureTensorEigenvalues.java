@@ -0,0 +1,259 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter.structure;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.Localizable;
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.trainable_segmentation.RevampUtils;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.hessian.EigenValuesSymmetricBatch;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.util.Localizables;
+import net.imglib2.view.Views;
+import preview.net.imglib2.algorithm.convolution.Convolution;
+import preview.net.imglib2.loops.LoopBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Calculates the eigenvalues of the structure tensor from a gaussian blurred
+ * image, using a single intermediate image.
+ * <p>
+ * The gradient, and the products of its components, are calculated line by
+ * line and written into the tensor image, which has one channel per tensor
+ * component. The gradient is never stored as an image. The tensor components
+ * are then blurred in-place, one dimension after the other. Finally the
+ * eigenvalues are calculated line by line with {@link EigenValuesSymmetricBatch}.
+ */
+class FusedStructureTensorEigenvalues {
+
+	private FusedStructureTensorEigenvalues() {
+		// prevent from instantiation
+	}
+
+	/**
+	 * Returns the interval, on which the gradient needs to be calculated. The
+	 * gaussian blurred image needs to be defined on this interval plus a border
+	 * of one pixel.
+	 *
+	 * @param integrationBlurs One gaussian blur per dimension, that only
+	 *          operates in this dimension.
+	 * @param target Interval of the output.
+	 */
+	static Interval gradientInterval(List<Convolution<RealType<?>>> integrationBlurs,
+		Interval target)
+	{
+		Interval interval = target;
+		for (int d = integrationBlurs.size() - 1; d >= 0; d--)
+			interval = integrationBlurs.get(d).requiredSourceInterval(interval);
+		return interval;
+	}
+
+	/**
+	 * @param gauss Gaussian blurred image, see {@link #gradientInterval}.
+	 * @param pixelSize Pixel size, the gradient is scaled accordingly.
+	 * @param integrationBlurs One gaussian blur per dimension, that only
+	 *          operates in this dimension.
+	 * @param output Eigenvalues in descending order, two images in 2D, three
+	 *          images in 3D.
+	 * @param type Pixel type of the tensor image.
+	 */
+	static <T extends RealType<T> & NativeType<T>> void apply(
+		RandomAccessible<? extends RealType<?>> gauss, double[] pixelSize,
+		List<Convolution<RealType<?>>> integrationBlurs,
+		List<RandomAccessibleInterval<FloatType>> output, T type)
+	{
+		int n = gauss.numDimensions();
+		if (n != 2 && n != 3)
+			throw new IllegalArgumentException("Only 2D and 3D images are supported.");
+		if (output.size() != n || integrationBlurs.size() != n)
+			throw new IllegalArgumentException("Expected " + n + " output images and blurs.");
+		Interval target = output.get(0);
+		int numComponents = n * (n + 1) / 2;
+		// NB: intervals[d] is the interval of the tensor image, before it's
+		// blurred in dimension d.
+		Interval[] intervals = new Interval[n + 1];
+		intervals[n] = target;
+		for (int d = n - 1; d >= 0; d--)
+			intervals[d] = integrationBlurs.get(d).requiredSourceInterval(intervals[d + 1]);
+		Interval gradientInterval = intervals[0];
+		RandomAccessibleInterval<T> tensor = RevampUtils.createImage(Intervals.addDimension(
+			gradientInterval, 0, numComponents - 1), type);
+		forEachLine(gradientInterval, () -> new TensorLineProcessor<T>(gauss, pixelSize, tensor,
+			gradientInterval)::process);
+		for (int d = 0; d < n; d++)
+			integrationBlurs.get(d).process(tensor, Views.interval(tensor, Intervals.addDimension(
+				intervals[d + 1], 0, numComponents - 1)));
+		forEachLine(target, () -> new EigenvalueLineProcessor(tensor, output)::process);
+	}
+
+	private static void forEachLine(Interval interval, Supplier<Consumer<Localizable>> processor) {
+		long[] lineDimensions = Intervals.dimensionsAsLongArray(interval);
+		lineDimensions[0] = 1;
+		RandomAccessibleInterval<Localizable> lines = Views.interval(Localizables.randomAccessible(
+			interval.numDimensions()), new FinalInterval(lineDimensions));
+		LoopBuilder.setImages(lines).multiThreaded().forEachChunk(chunk -> {
+			chunk.forEachPixel(processor.get());
+			return null;
+		});
+	}
+
+	/**
+	 * Calculates the gradient for one line and writes the products of its
+	 * components into the tensor image.
+	 */
+	private static class TensorLineProcessor<T extends RealType<T>> {
+
+		private final RandomAccess<? extends RealType<?>> in;
+
+		private final RandomAccess<T> out;
+
+		private final long[] min;
+
+		private final int width;
+
+		private final double[] scale;
+
+		/**
+		 * Neighboring lines of the blurred image, with one extra pixel per side.
+		 * Index 0 is the center line, index 2 * d - 1 and 2 * d are the previous
+		 * and next line in dimension d.
+		 */
+		private final double[][] lines;
+
+		private final double[][] gradient;
+
+		private TensorLineProcessor(RandomAccessible<? extends RealType<?>> gauss,
+			double[] pixelSize, RandomAccessibleInterval<T> tensor, Interval interval)
+		{
+			int n = interval.numDimensions();
+			this.min = Intervals.minAsLongArray(interval);
+			this.width = (int) interval.dimension(0);
+			this.in = gauss.randomAccess(Intervals.expand(interval, 1));
+			this.out = tensor.randomAccess();
+			this.scale = new double[n];
+			for (int d = 0; d < n; d++)
+				scale[d] = 0.5 / pixelSize[d];
+			this.lines = new double[2 * n - 1][width + 2];
+			this.gradient = new double[n][width];
+		}
+
+		void process(Localizable position) {
+			int n = min.length;
+			readLine(lines[0], position, 0, 0);
+			for (int d = 1; d < n; d++) {
+				readLine(lines[2 * d - 1], position, d, -1);
+				readLine(lines[2 * d], position, d, 1);
+			}
+			double[] center = lines[0];
+			for (int x = 0; x < width; x++)
+				gradient[0][x] = (center[x + 2] - center[x]) * scale[0];
+			for (int d = 1; d < n; d++) {
+				double[] back = lines[2 * d - 1], front = lines[2 * d];
+				for (int x = 0; x < width; x++)
+					gradient[d][x] = (front[x + 1] - back[x + 1]) * scale[d];
+			}
+			for (int d = 1; d < n; d++)
+				out.setPosition(min[d] + position.getLongPosition(d), d);
+			int component = 0;
+			for (int i = 0; i < n; i++)
+				for (int j = i; j < n; j++) {
+					double[] a = gradient[i], b = gradient[j];
+					out.setPosition(min[0], 0);
+					out.setPosition(component++, n);
+					for (int x = 0; x < width; x++) {
+						out.get().setReal(a[x] * b[x]);
+						out.fwd(0);
+					}
+				}
+		}
+
+		private void readLine(double[] line, Localizable position, int offsetDimension,
+			int offset)
+		{
+			int n = min.length;
+			in.setPosition(min[0] - 1, 0);
+			for (int d = 1; d < n; d++)
+				in.setPosition(min[d] + position.getLongPosition(d) + (d == offsetDimension ? offset : 0),
+					d);
+			for (int x = 0; x < width + 2; x++) {
+				line[x] = in.get().getRealDouble();
+				in.fwd(0);
+			}
+		}
+	}
+
+	/**
+	 * Reads the blurred tensor components of one line, and writes the
+	 * eigenvalues into the output images.
+	 */
+	private static class EigenvalueLineProcessor {
+
+		private final RandomAccess<? extends RealType<?>> in;
+
+		private final List<RandomAccess<FloatType>> out;
+
+		private final long[] min;
+
+		private final int width;
+
+		private final double[][] components;
+
+		private final double[][] eigenvalues;
+
+		private EigenvalueLineProcessor(RandomAccessibleInterval<? extends RealType<?>> tensor,
+			List<RandomAccessibleInterval<FloatType>> output)
+		{
+			Interval target = output.get(0);
+			int n = target.numDimensions();
+			this.min = Intervals.minAsLongArray(target);
+			this.width = (int) target.dimension(0);
+			this.in = tensor.randomAccess();
+			this.out = new ArrayList<>();
+			for (RandomAccessibleInterval<FloatType> image : output)
+				out.add(image.randomAccess());
+			this.components = new double[n * (n + 1) / 2][width];
+			this.eigenvalues = new double[n][width];
+		}
+
+		void process(Localizable position) {
+			int n = min.length;
+			for (int d = 1; d < n; d++)
+				in.setPosition(min[d] + position.getLongPosition(d), d);
+			for (int c = 0; c < components.length; c++) {
+				in.setPosition(min[0], 0);
+				in.setPosition(c, n);
+				double[] line = components[c];
+				for (int x = 0; x < width; x++) {
+					line[x] = in.get().getRealDouble();
+					in.fwd(0);
+				}
+			}
+			double[][] a = components;
+			if (n == 3)
+				EigenValuesSymmetricBatch.compute3d(a[0], a[1], a[2], a[3], a[4], a[5], eigenvalues[0],
+					eigenvalues[1], eigenvalues[2], width);
+			else
+				EigenValuesSymmetricBatch.compute2d(a[0], a[1], a[2], eigenvalues[0], eigenvalues[1],
+					width);
+			for (int i = 0; i < n; i++) {
+				RandomAccess<FloatType> ra = out.get(i);
+				ra.setPosition(min[0], 0);
+				for (int d = 1; d < n; d++)
+					ra.setPosition(min[d] + position.getLongPosition(d), d);
+				double[] values = eigenvalues[i];
+				for (int x = 0; x < width; x++) {
+					ra.get().setReal(values[x]);
+					ra.fwd(0);
+				}
+			}
+		}
+	}
+}
@@ -9,31 +9,21 @@ import net.imglib2.trainable_segmentation.gpu.algorithms.GpuNeighborhoodOperatio
 import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
 import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
 import net.imglib2.Interval;
-import net.imglib2.RandomAccessible;
 import net.imglib2.RandomAccessibleInterval;
-import net.imglib2.algorithm.linalg.eigen.EigenValues;
 import net.imglib2.trainable_segmentation.gpu.GpuFeatureInput;
 import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.gpu.api.GpuViews;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
+import net.imglib2.type.NativeType;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.util.Intervals;
-import net.imglib2.view.composite.RealComposite;
 import org.scijava.plugin.Plugin;
 import preview.net.imglib2.algorithm.convolution.Convolution;
-import preview.net.imglib2.algorithm.convolution.kernel.Kernel1D;
-import preview.net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
-import preview.net.imglib2.algorithm.gauss3.Gauss3;
-import net.imglib2.loops.LoopBuilder;
 import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
-import net.imglib2.trainable_segmentation.pixel_feature.filter.hessian.EigenValuesSymmetric3D;
-import net.imglib2.type.numeric.NumericType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
-import net.imglib2.view.Views;
-import net.imglib2.view.composite.Composite;
 import org.scijava.plugin.Parameter;
 
 import java.util.ArrayList;
@@ -41,7 +31,6 @@ import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.StringJoiner;
-import java.util.function.BiConsumer;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 
@@ -68,73 +57,33 @@ public class SingleStructureTensorEigenvaluesFeature extends AbstractFeatureOp {
 
 	@Override
 	public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
-		final Interval targetInterval = output.get(0);
-		Convolution<NumericType<?>> convolution = gaussConvolution();
-		final Interval derivativeInterval = convolution.requiredSourceInterval(targetInterval);
-		RandomAccessibleInterval<DoubleType> derivatives = derivatives(input, derivativeInterval);
-		RandomAccessibleInterval<DoubleType> products = products(derivatives);
-		RandomAccessibleInterval<DoubleType> blurredProducts = Views.interval(products,
-			Intervals.addDimension(targetInterval, products.min(products.numDimensions() - 1), products
-				.max(products.numDimensions() - 1)));
-		convolution.process(products, blurredProducts);
-		EigenValues<DoubleType, FloatType> eigenvalueComputer = globalSettings().numDimensions() == 3
-			? new EigenValuesSymmetric3D() : EigenValues.symmetric2D();
-		LoopBuilder.setImages(Views.collapse(blurredProducts), RevampUtils.vectorizeStack(output))
-			.forEachPixel(eigenvalueComputer::compute);
+		if (input.useFloatIntermediates())
+			apply(input, output, new FloatType());
+		else
+			apply(input, output, new DoubleType());
 	}
 
-	private Convolution<NumericType<?>> gaussConvolution() {
-		final Kernel1D[] gauss = globalSettings().pixelSize().stream()
-			.map(pixelSize -> gaussKernel(integrationScale / pixelSize))
-			.toArray(Kernel1D[]::new);
-		return SeparableKernelConvolution.convolution(gauss);
-	}
-
-	private Kernel1D gaussKernel(double v) {
-		return Kernel1D.symmetric(Gauss3.halfkernels(new double[] { v })[0]);
-	}
-
-	private RandomAccessibleInterval<DoubleType> products(
-		RandomAccessibleInterval<DoubleType> derivatives)
-	{
-		Interval interval = RevampUtils.removeLastDimension(derivatives);
-		Interval outputInterval = Intervals.addDimension(interval, 0, getNumberOfProducts() - 1);
-		RandomAccessibleInterval<DoubleType> output = RevampUtils.createImage(outputInterval,
-			new DoubleType());
-		LoopBuilder.setImages(Views.collapseReal(derivatives), Views.collapseReal(output)).forEachPixel(
-			getProductPerPixelAction());
-		return output;
-	}
-
-	private RandomAccessibleInterval<DoubleType> derivatives(FeatureInput input,
-		Interval derivativeInterval)
+	private <T extends RealType<T> & NativeType<T>> void apply(FeatureInput input,
+		List<RandomAccessibleInterval<FloatType>> output, T type)
 	{
-		RandomAccessibleInterval<DoubleType> gauss = RevampUtils.createImage(
-			Intervals.expand(derivativeInterval, 1), new DoubleType());
+		List<Convolution<RealType<?>>> integrationBlurs = integrationBlurs();
+		Interval gradientInterval = FusedStructureTensorEigenvalues.gradientInterval(integrationBlurs,
+			output.get(0));
+		RandomAccessibleInterval<T> gauss = RevampUtils.createImage(Intervals.expand(gradientInterval,
+			1), type);
+		double[] pixelSize = globalSettings().pixelSize().stream().mapToDouble(p -> p).toArray();
+		double[] sigmas = DoubleStream.of(pixelSize).map(p -> sigma / p).toArray();
+		globalSettings().gaussMethod().gauss(sigmas, input.original(), gauss);
+		FusedStructureTensorEigenvalues.apply(gauss, pixelSize, integrationBlurs, output, type);
+	}
+
+	private List<Convolution<RealType<?>>> integrationBlurs() {
 		List<Double> pixelSize = globalSettings().pixelSize();
-		double[] sigmas = pixelSize.stream().mapToDouble(p -> sigma / p).toArray();
-		RandomAccessible<FloatType> original = input.original();
-		Gauss3.gauss(sigmas, original, gauss);
-		int n = derivativeInterval.numDimensions();
-		RandomAccessibleInterval<DoubleType> tmp = RevampUtils.createImage(RevampUtils
-			.appendDimensionToInterval(
-				derivativeInterval, 0, n - 1), new DoubleType());
-		for (int i = 0; i < n; i++)
-			derive(gauss, Views.hyperSlice(tmp, n, i), i, pixelSize.get(i));
-		return tmp;
-	}
-
-	private void derive(RandomAccessible<? extends RealType<?>> input,
-		RandomAccessibleInterval<? extends RealType<?>> tmp, int d, double pixelSize)
-	{
-		final RandomAccessibleInterval<? extends RealType<?>> back = Views.interval(input, Intervals
-			.translate(tmp, -1, d));
-		final RandomAccessibleInterval<? extends RealType<?>> front = Views.interval(input, Intervals
-			.translate(tmp, 1, d));
-		final double factor = 0.5 / pixelSize;
-		LoopBuilder.setImages(tmp, back, front).forEachPixel((r, b, f) -> {
-			r.setReal((f.getRealDouble() - b.getRealDouble()) * factor);
-		});
+		List<Convolution<RealType<?>>> blurs = new ArrayList<>();
+		for (int d = 0; d < pixelSize.size(); d++)
+			blurs.add(globalSettings().gaussMethod().convolution1d(integrationScale / pixelSize.get(d),
+				d));
+		return blurs;
 	}
 
 	// -- dimension specific helper methods --
@@ -144,35 +93,6 @@ public class SingleStructureTensorEigenvaluesFeature extends AbstractFeatureOp {
 			: Arrays.asList("largest", "smallest");
 	}
 
-	private int getNumberOfProducts() {
-		return globalSettings().numDimensions() == 3 ? 6 : 3;
-	}
-
-	private BiConsumer<RealComposite<DoubleType>, RealComposite<DoubleType>>
-		getProductPerPixelAction()
-	{
-		return globalSettings().numDimensions() == 3
-			? SingleStructureTensorEigenvaluesFeature::productPerPixel3d
-			: SingleStructureTensorEigenvaluesFeature::productPerPixel2d;
-	}
-
-	private static void productPerPixel3d(Composite<DoubleType> i, Composite<DoubleType> o) {
-		double x = i.get(0).getRealDouble(), y = i.get(1).getRealDouble(), z = i.get(2).getRealDouble();
-		o.get(0).setReal(x * x);
-		o.get(1).setReal(x * y);
-		o.get(2).setReal(x * z);
-		o.get(3).setReal(y * y);
-		o.get(4).setReal(y * z);
-		o.get(5).setReal(z * z);
-	}
-
-	private static void productPerPixel2d(Composite<DoubleType> i, Composite<DoubleType> o) {
-		double x = i.get(0).getRealDouble(), y = i.get(1).getRealDouble();
-		o.get(0).setReal(x * x);
-		o.get(1).setReal(x * y);
-		o.get(2).setReal(y * y);
-	}
-
 	// -- CLIJ implementation --
 
 	@Override
@@ -0,0 +1,84 @@
+package net.imglib2.trainable_segmentation.pixel_feature.settings;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.type.numeric.RealType;
+import net.imglib2.util.Cast;
+import preview.net.imglib2.algorithm.convolution.Convolution;
+import preview.net.imglib2.algorithm.convolution.fast_gauss.FastGauss;
+import preview.net.imglib2.algorithm.convolution.kernel.Kernel1D;
+import preview.net.imglib2.algorithm.convolution.kernel.SeparableKernelConvolution;
+import preview.net.imglib2.algorithm.gauss3.Gauss3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Selects the implementation of the gaussian blur, that is used for the
+ * feature calculation on the CPU.
+ *
+ * @see GlobalSettings#gaussMethod()
+ */
+public enum GaussMethod {
+
+	/**
+	 * Convolution with a truncated gaussian kernel, see {@link Gauss3}. The cost
+	 * per pixel grows linearly with sigma.
+	 */
+	KERNEL,
+
+	/**
+	 * Recursive filter, see {@link FastGauss}. The cost per pixel is independent
+	 * of sigma. The filter is less accurate for small sigmas, therefore the
+	 * kernel convolution is used for sigmas smaller than
+	 * {@link #MIN_RECURSIVE_SIGMA} pixels.
+	 */
+	RECURSIVE;
+
+	public static final double MIN_RECURSIVE_SIGMA = 2.0;
+
+	/**
+	 * Returns the gaussian blur with the given sigmas, one sigma per dimension,
+	 * in pixels.
+	 */
+	public Convolution<RealType<?>> convolution(double... sigmas) {
+		if (this == KERNEL)
+			return Cast.unchecked(SeparableKernelConvolution.convolution(kernels(sigmas)));
+		List<Convolution<RealType<?>>> steps = new ArrayList<>();
+		for (int d = 0; d < sigmas.length; d++)
+			steps.add(convolution1d(sigmas[d], d));
+		return Convolution.concat(steps);
+	}
+
+	/**
+	 * Returns the gaussian blur in only one dimension. Sigma is given in pixels.
+	 * The returned convolution can be applied in-place, source and target may
+	 * be the same image.
+	 */
+	public Convolution<RealType<?>> convolution1d(double sigma, int d) {
+		if (this == KERNEL || sigma < MIN_RECURSIVE_SIGMA)
+			return Cast.unchecked(SeparableKernelConvolution.convolution1d(kernels(sigma)[0], d));
+		return FastGauss.convolution1d(sigma, d);
+	}
+
+	/**
+	 * Blurs the source image, and writes the result to target. One sigma per
+	 * dimension, in pixels.
+	 */
+	public void gauss(double[] sigmas, RandomAccessible<? extends RealType<?>> source,
+		RandomAccessibleInterval<? extends RealType<?>> target)
+	{
+		if (this == KERNEL)
+			Gauss3.gauss(sigmas, (RandomAccessible) source, (RandomAccessibleInterval) target);
+		else
+			convolution(sigmas).process(source, target);
+	}
+
+	private static Kernel1D[] kernels(double... sigmas) {
+		double[][] halfkernels = Gauss3.halfkernels(sigmas);
+		Kernel1D[] kernels = new Kernel1D[sigmas.length];
+		for (int d = 0; d < sigmas.length; d++)
+			kernels[d] = Kernel1D.symmetric(halfkernels[d]);
+		return kernels;
+	}
+}
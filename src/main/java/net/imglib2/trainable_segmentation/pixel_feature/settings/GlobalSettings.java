@@ -22,19 +22,26 @@ public final class GlobalSettings {
 
 	private final List<Double> pixelSize;
 
+	/**
+	 * NB: null for settings that were serialized before this field was added,
+	 * use {@link #gaussMethod()}.
+	 */
+	private final GaussMethod gaussMethod;
+
 	private GlobalSettings(ChannelSetting channelSetting, int numDimensions, List<Double> sigmas,
-		List<Double> pixelSize)
+		List<Double> pixelSize, GaussMethod gaussMethod)
 	{
 		this.channelSetting = channelSetting;
 		this.numDimensions = numDimensions;
 		this.sigmas = Collections.unmodifiableList(new ArrayList<>(sigmas));
 		this.pixelSize = Collections.unmodifiableList(pixelSize == null ? ones(numDimensions)
 			: new ArrayList<>(pixelSize));
+		this.gaussMethod = Objects.requireNonNull(gaussMethod);
 	}
 
 	public GlobalSettings(GlobalSettings globalSettings) {
 		this(globalSettings.channelSetting, globalSettings.numDimensions, globalSettings.sigmas,
-			globalSettings.pixelSize);
+			globalSettings.pixelSize, globalSettings.gaussMethod());
 	}
 
 	public static Builder default2d() {
@@ -67,6 +74,14 @@ public final class GlobalSettings {
 		return pixelSize;
 	}
 
+	/**
+	 * Returns the implementation of the gaussian blur, that is used for the
+	 * feature calculation on the CPU. The default is {@link GaussMethod#KERNEL}.
+	 */
+	public GaussMethod gaussMethod() {
+		return gaussMethod == null ? GaussMethod.KERNEL : gaussMethod;
+	}
+
 	public double[] pixelSizeAsDoubleArray() {
 		return pixelSize.stream().mapToDouble(x -> x).toArray();
 	}
@@ -77,7 +92,7 @@ public final class GlobalSettings {
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(channelSetting, numDimensions, sigmas, pixelSize());
+		return Objects.hash(channelSetting, numDimensions, sigmas, pixelSize(), gaussMethod());
 	}
 
 	@Override
@@ -88,7 +103,8 @@ public final class GlobalSettings {
 		return channelSetting.equals(settings.channelSetting) &&
 			numDimensions == settings.numDimensions &&
 			sigmas.equals(settings.sigmas) &&
-			pixelSize().equals(settings.pixelSize());
+			pixelSize().equals(settings.pixelSize()) &&
+			gaussMethod() == settings.gaussMethod();
 	}
 
 	public static class AbstractBuilder<T> {
@@ -97,6 +113,7 @@ public final class GlobalSettings {
 		private int numDimensions = 3;
 		private List<Double> sigmas = Arrays.asList(1.0, 2.0, 4.0, 8.0);
 		private List<Double> pixelSize = null;
+		private GaussMethod gaussMethod = GaussMethod.KERNEL;
 
 		protected AbstractBuilder() {
 
@@ -130,6 +147,11 @@ public final class GlobalSettings {
 			return pixelSize(DoubleStream.of(pixelSize).boxed().collect(Collectors.toList()));
 		}
 
+		public T gaussMethod(GaussMethod gaussMethod) {
+			this.gaussMethod = gaussMethod;
+			return Cast.unchecked(this);
+		}
+
 		public T sigmaRange(double minSigma, double maxSigma) {
 			List<Double> sigmas = new ArrayList<>();
 			for (double sigma = minSigma; sigma <= maxSigma; sigma *= 2.0)
@@ -139,7 +161,7 @@ public final class GlobalSettings {
 		}
 
 		protected GlobalSettings buildGlobalSettings() {
-			return new GlobalSettings(channelSetting, numDimensions, sigmas, pixelSize);
+			return new GlobalSettings(channelSetting, numDimensions, sigmas, pixelSize, gaussMethod);
 		}
 	}
 
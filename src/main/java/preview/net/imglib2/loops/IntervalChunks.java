@@ -78,7 +78,7 @@ public class IntervalChunks {
 	 * the exception of the intervals that are at the border of the given interval.
 	 * These can be smaller.
 	 */
-	static List<Interval> generateGrid(Interval interval, long[] cellDimensions) {
+	public static List<Interval> generateGrid(Interval interval, long[] cellDimensions) {
 		final int n = interval.numDimensions();
 		long[] totalMin = Intervals.minAsLongArray(interval);
 		long[] totalMax = Intervals.maxAsLongArray(interval);
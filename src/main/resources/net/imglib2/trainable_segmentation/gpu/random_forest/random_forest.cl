@@ -10,7 +10,7 @@ __kernel void random_forest
   IMAGE_TYPE(src),
   CONSTANT_OR_GLOBAL float *thresholds,
   __global float *probabilities,
-  CONSTANT_OR_GLOBAL short *indices
+  CONSTANT_OR_GLOBAL INDEX_TYPE *indices
 )
 {
   const int x = get_global_id(0), y = get_global_id(1), z = get_global_id(2);
@@ -31,15 +31,15 @@ __kernel void random_forest
 
   // run random forest
   for(int tree = 0; tree < num_trees; tree++) {
-    unsigned short nodeIndex = 0;
-    while(nodeIndex < 0x8000) {
-      const unsigned short attributeIndex = PIXEL(indices, 0, nodeIndex, tree);
+    INDEX_TYPE nodeIndex = 0;
+    while(nodeIndex < LEAF_FLAG) {
+      const INDEX_TYPE attributeIndex = PIXEL(indices, 0, nodeIndex, tree);
       const float attributeValue = features[attributeIndex];
       const float threshold = PIXEL(thresholds, 0, nodeIndex, tree);
       const int smaller = (int) (attributeValue >= threshold) + 1;
       nodeIndex = PIXEL(indices, smaller, nodeIndex, tree);
     }
-    const unsigned short leafIndex = nodeIndex - 0x8000;
+    const INDEX_TYPE leafIndex = nodeIndex - LEAF_FLAG;
     for(int i = 0; i < NUMBER_OF_CLASSES; i++) {
       results[i] += probabilities[(tree * GET_IMAGE_HEIGHT(probabilities) + leafIndex) * NUMBER_OF_CLASSES + i];
     }
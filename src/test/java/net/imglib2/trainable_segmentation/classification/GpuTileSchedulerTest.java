@@ -0,0 +1,190 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.gpu.api.CpuGpuApi;
+import net.imglib2.trainable_segmentation.gpu.api.GpuApi;
+import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import preview.net.imglib2.loops.IntervalChunks;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link GpuTileScheduler}.
+ */
+public class GpuTileSchedulerTest {
+
+	private final Img<FloatType> img = ImageJFunctions.convertFloat(Utils.loadImage("nuclei.tif"));
+
+	@Test
+	public void testSegment() {
+		Segmenter segmenter = trainSegmenter();
+		Img<UnsignedByteType> expected = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(img));
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(img));
+		List<Interval> tiles = IntervalChunks.generateGrid(result, new long[] { 32, 20 });
+		try (GpuApi gpu = new CpuGpuApi();
+			GpuTileScheduler scheduler = newScheduler(segmenter))
+		{
+			scheduler.segment(gpu, Collections.singletonList(new FinalInterval(expected)), Views
+				.extendBorder(img), expected);
+			scheduler.segment(gpu, tiles, Views.extendBorder(img), result);
+			ImgLib2Assert.assertImageEquals(expected, result);
+			assertEquals(Intervals.numElements(img), scheduler.numberOfVoxels());
+			assertTrue(scheduler.voxelsPerSecond() > 0);
+		}
+	}
+
+	@Test
+	public void testGpuApiIsOnlyUsedByTheCallingThread() {
+		Segmenter segmenter = trainSegmenter();
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(img));
+		List<Interval> tiles = IntervalChunks.generateGrid(result, new long[] { 32, 20 });
+		try (ThreadRecordingGpuApi gpu = new ThreadRecordingGpuApi();
+			GpuTileScheduler scheduler = newScheduler(segmenter))
+		{
+			scheduler.segment(gpu, tiles, Views.extendBorder(img), result);
+			assertEquals(Collections.singleton(Thread.currentThread()), gpu.threads);
+		}
+	}
+
+	@Test
+	public void testPipelineOverlapsStages() {
+		int n = 4;
+		CountDownLatch[] uploadStarted = latches(n);
+		CountDownLatch[] downloadStarted = latches(n);
+		List<String> log = Collections.synchronizedList(new ArrayList<>());
+		List<Boolean> overlapped = Collections.synchronizedList(new ArrayList<>());
+		try (GpuTileScheduler scheduler = new GpuTileScheduler(null, null)) {
+			scheduler.pipeline(Arrays.asList(0, 1, 2, 3),
+				i -> {
+					uploadStarted[i].countDown();
+					return "u" + i;
+				},
+				(i, uploaded) -> {
+					// The next upload and the previous download must not wait for this stage.
+					if (i + 1 < n)
+						overlapped.add(await(uploadStarted[i + 1]));
+					if (i > 0)
+						overlapped.add(await(downloadStarted[i - 1]));
+					return uploaded + "c";
+				},
+				(i, computed) -> {
+					downloadStarted[i].countDown();
+					log.add(computed);
+				});
+		}
+		assertEquals(Arrays.asList("u0c", "u1c", "u2c", "u3c"), log);
+		assertEquals(6, overlapped.size());
+		assertTrue(overlapped.stream().allMatch(x -> x));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPipelineRethrowsException() {
+		try (GpuTileScheduler scheduler = new GpuTileScheduler(null, null)) {
+			scheduler.pipeline(Arrays.asList(0, 1, 2),
+				i -> {
+					if (i == 2)
+						throw new IllegalStateException();
+					return i;
+				},
+				(i, uploaded) -> uploaded,
+				(i, computed) -> {});
+		}
+	}
+
+	private static CountDownLatch[] latches(int n) {
+		CountDownLatch[] latches = new CountDownLatch[n];
+		for (int i = 0; i < n; i++)
+			latches[i] = new CountDownLatch(1);
+		return latches;
+	}
+
+	private static boolean await(CountDownLatch latch) {
+		try {
+			return latch.await(10, TimeUnit.SECONDS);
+		}
+		catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static GpuTileScheduler newScheduler(Segmenter segmenter) {
+		return new GpuTileScheduler(segmenter.features(), new RandomForestPrediction(Cast.unchecked(
+			segmenter.getClassifier()), segmenter.features().count()));
+	}
+
+	private Segmenter trainSegmenter() {
+		GlobalSettings globals = GlobalSettings.default2d().sigmas(1.0, 4.0).build();
+		FeatureSettings featureSettings = new FeatureSettings(globals, SingleFeatures.identity(),
+			GroupedFeatures.gauss());
+		return Trainer.train(SingletonContext.getInstance(), img, SegmenterTest.loadLabeling(
+			"nucleiLabeling.tif"), featureSettings);
+	}
+
+	/**
+	 * Stand-in for a GPU, that doesn't need OpenCL. It records the threads,
+	 * that allocate images, run kernels or copy images.
+	 */
+	private static class ThreadRecordingGpuApi extends CpuGpuApi {
+
+		private final Set<Thread> threads = ConcurrentHashMap.newKeySet();
+
+		@Override
+		public GpuImage create(long[] dimensions, long numberOfChannels, NativeTypeEnum type) {
+			threads.add(Thread.currentThread());
+			return super.create(dimensions, numberOfChannels, type);
+		}
+
+		@Override
+		public GpuApi subScope() {
+			threads.add(Thread.currentThread());
+			return super.subScope();
+		}
+
+		@Override
+		public void execute(Class<?> anchorClass, String kernelFile, String kernelName,
+			long[] globalSizes, long[] localSizes, HashMap<String, Object> parameters,
+			HashMap<String, Object> defines)
+		{
+			threads.add(Thread.currentThread());
+			super.execute(anchorClass, kernelFile, kernelName, globalSizes, localSizes, parameters,
+				defines);
+		}
+
+		@Override
+		public <T> T handleOutOfMemoryException(Supplier<T> action) {
+			threads.add(Thread.currentThread());
+			return super.handleOutOfMemoryException(action);
+		}
+	}
+}
@@ -0,0 +1,70 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link SampleStore}.
+ */
+public class SampleStoreTest {
+
+	@Test
+	public void testAdd() {
+		SampleStore store = new SampleStore(2);
+		int numberOfSamples = 100_000;
+		Img<FloatType> featureVectors = ArrayImgs.floats(numberOfSamples, 2);
+		featureVectors.forEach(pixel -> pixel.setReal(Math.random()));
+		int i = 0;
+		for (Composite<FloatType> featureVector : Views.iterable(Views.collapse(featureVectors)))
+			store.add(featureVector, i++ % 3);
+		assertEquals(numberOfSamples, store.size());
+		RandomAccess<FloatType> ra = featureVectors.randomAccess();
+		ra.setPosition(new long[] { 70_000, 1 });
+		assertEquals(ra.get().get(), store.feature(70_000, 1), 0);
+		assertEquals(70_000 % 3, store.classIndex(70_000));
+		ra.setPosition(new long[] { 5_000, 0 });
+		assertEquals(ra.get().get(), store.feature(5_000, 0), 0);
+		assertEquals(5_000 % 3, store.classIndex(5_000));
+	}
+
+	@Test
+	public void testFewSamplesNeedLittleMemory() {
+		SampleStore store = new SampleStore(2);
+		Img<FloatType> featureVectors = ArrayImgs.floats(300, 2);
+		for (Composite<FloatType> featureVector : Views.iterable(Views.collapse(featureVectors)))
+			store.add(featureVector, 0);
+		assertEquals(300, store.size());
+		assertEquals(1024, store.capacity());
+	}
+
+	@Test
+	public void testToInstances() {
+		SampleStore store = new SampleStore(2);
+		Img<FloatType> featureVectors = ArrayImgs.floats(new float[] { 1, 2, 3, 4 }, 2, 2);
+		int i = 0;
+		for (Composite<FloatType> featureVector : Views.iterable(Views.collapse(featureVectors)))
+			store.add(featureVector, i++);
+		List<Attribute> attributes = Arrays.asList(new Attribute("a"), new Attribute("b"),
+			new Attribute("class", Arrays.asList("foreground", "background")));
+		Instances instances = store.toInstances("test", attributes);
+		assertEquals(2, instances.numInstances());
+		assertEquals(2, instances.classIndex());
+		Instance instance = instances.get(1);
+		assertEquals(2, instance.value(0), 0);
+		assertEquals(4, instance.value(1), 0);
+		assertEquals(1, instance.classValue(), 0);
+	}
+}
@@ -4,6 +4,7 @@ package net.imglib2.trainable_segmentation.classification;
 import com.google.gson.JsonElement;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.roi.labeling.ImgLabeling;
 import net.imglib2.roi.labeling.LabelRegions;
@@ -29,11 +30,16 @@ import org.junit.runner.RunWith;
 import org.scijava.Context;
 import weka.classifiers.meta.RandomCommittee;
 
+import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assume.assumeFalse;
 
 /**
@@ -64,6 +70,35 @@ public class SegmenterTest {
 		checkExpected(result, segmenter.classNames());
 	}
 
+	@Test
+	public void testTiledClassification() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		RandomAccessibleInterval<? extends IntegerType<?>> expected = segmenter.segment(img);
+		segmenter.setTileSize(50, 70);
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+		Utils.<IntegerType> assertImagesEqual(expected, result);
+	}
+
+	@Test
+	public void testRetrainingUpdatesPrediction() {
+		Segmenter segmenter = trainClassifier();
+		segmenter.setUseGpu(useGpu);
+		segmenter.segment(img);
+		// NB: train on samples of a single class, afterwards every pixel has class 0
+		int count = segmenter.features().count();
+		Training training = segmenter.training();
+		Random random = new Random(42);
+		for (int i = 0; i < 10; i++) {
+			Img<FloatType> sample = ArrayImgs.floats(1, count);
+			sample.forEach(pixel -> pixel.setReal(random.nextFloat()));
+			training.add(Views.collapseReal(sample).randomAccess().get(), 0);
+		}
+		training.train();
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+		Views.iterable(result).forEach(pixel -> assertEquals(0, pixel.getInteger()));
+	}
+
 	private Segmenter trainClassifier() {
 		GlobalSettings globals = GlobalSettings.default2d()
 			.channels(ChannelSetting.SINGLE)
@@ -100,6 +135,50 @@ public class SegmenterTest {
 		Utils.<IntegerType> assertImagesEqual(result, result2);
 	}
 
+	@Test
+	public void testStoreLoadBinary() {
+		Segmenter segmenter = trainClassifier();
+		ByteBuffer binary = segmenter.toBinary();
+		Segmenter segmenter2 = Segmenter.fromBinary(context, binary);
+		assertNull(segmenter2.getClassifier());
+		assertEquals(segmenter.classNames(), segmenter2.classNames());
+		assertEquals(segmenter.settings(), segmenter2.settings());
+		segmenter2.setUseGpu(useGpu);
+		RandomAccessibleInterval<? extends IntegerType<?>> result = segmenter.segment(img);
+		RandomAccessibleInterval<? extends IntegerType<?>> result2 = segmenter2.segment(img);
+		Utils.<IntegerType> assertImagesEqual(result, result2);
+	}
+
+	@Test
+	public void testWriteBinaryAndMapFile() throws IOException {
+		Segmenter segmenter = trainClassifier();
+		File file = File.createTempFile("segmenter", ".bin");
+		file.deleteOnExit();
+		segmenter.writeBinary(file.getPath());
+		Segmenter mapped = Segmenter.fromBinaryFile(context, file.getPath());
+		Segmenter mapped2 = Segmenter.fromBinaryFile(context, file.getPath());
+		assertEquals(segmenter.classNames(), mapped.classNames());
+		mapped.setUseGpu(useGpu);
+		mapped2.setUseGpu(useGpu);
+		RandomAccessibleInterval<? extends IntegerType<?>> expected = segmenter.segment(img);
+		Utils.<IntegerType> assertImagesEqual(expected, mapped.segment(img));
+		Utils.<IntegerType> assertImagesEqual(expected, mapped2.segment(img));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLoadBinaryRejectsOtherData() {
+		Segmenter.fromBinary(context, ByteBuffer.wrap("{\"features\": []}".getBytes(
+			StandardCharsets.UTF_8)));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLoadBinaryRejectsTruncatedData() {
+		ByteBuffer binary = trainClassifier().toBinary();
+		// NB: Cut the buffer within the settings, that follow the three int header.
+		binary.limit(3 * 4 + 8);
+		Segmenter.fromBinary(context, binary);
+	}
+
 	@Ignore("Only fast random forest is supported")
 	@Test
 	public void testDifferentWekaClassifiers() {
@@ -112,7 +191,7 @@ public class SegmenterTest {
 		checkExpected(result, segmenter.classNames());
 	}
 
-	private static LabelRegions<String> loadLabeling(String file) {
+	static LabelRegions<String> loadLabeling(String file) {
 		Img<? extends IntegerType<?>> img = ImageJFunctions.wrapByte(Utils.loadImage(file));
 		final ImgLabeling<String, IntType> labeling = new ImgLabeling<>(RevampUtils.createImage(img,
 			new IntType()));
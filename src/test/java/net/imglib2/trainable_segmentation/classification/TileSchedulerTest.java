@@ -0,0 +1,59 @@
+package net.imglib2.trainable_segmentation.classification;
+
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSettings;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Cast;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import preview.net.imglib2.loops.IntervalChunks;
+import preview.net.imglib2.parallel.Parallelization;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link TileScheduler}.
+ */
+public class TileSchedulerTest {
+
+	private final Img<FloatType> img = ImageJFunctions.convertFloat(Utils.loadImage("nuclei.tif"));
+
+	@Test
+	public void testSegment() {
+		Segmenter segmenter = trainSegmenter();
+		RandomAccessibleInterval<UnsignedByteType> expected = segmenter.segment(img);
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(img));
+		List<Interval> tiles = IntervalChunks.generateGrid(result, new long[] { 32, 20 });
+		TileScheduler scheduler = new TileScheduler(segmenter.features(), new RandomForestPrediction(
+			Cast.unchecked(segmenter.getClassifier()), segmenter.features().count()));
+		Parallelization.runWithNumThreads(4, () -> scheduler.segment(tiles, Views.extendBorder(img),
+			result));
+		ImgLib2Assert.assertImageEquals(expected, result);
+		assertEquals(Intervals.numElements(img), scheduler.numberOfVoxels());
+		assertTrue(scheduler.voxelsPerSecond() > 0);
+	}
+
+	private Segmenter trainSegmenter() {
+		GlobalSettings globals = GlobalSettings.default2d().sigmas(1.0, 4.0).build();
+		FeatureSettings featureSettings = new FeatureSettings(globals, SingleFeatures.identity(),
+			GroupedFeatures.gauss());
+		return Trainer.train(SingletonContext.getInstance(), img, SegmenterTest.loadLabeling(
+			"nucleiLabeling.tif"), featureSettings);
+	}
+}
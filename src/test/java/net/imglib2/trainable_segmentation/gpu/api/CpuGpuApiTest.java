@@ -0,0 +1,182 @@
+package net.imglib2.trainable_segmentation.gpu.api;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.haesleinhuepf.clij.coremem.enums.NativeTypeEnum;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.gpu.algorithms.GpuEigenvalues;
+import net.imglib2.trainable_segmentation.gpu.algorithms.GpuNeighborhoodOperation;
+import net.imglib2.trainable_segmentation.gpu.algorithms.GpuNeighborhoodOperations;
+import net.imglib2.trainable_segmentation.gpu.random_forest.RandomForestPrediction;
+import net.imglib2.trainable_segmentation.gson.GsonUtils;
+import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests {@link CpuGpuApi}.
+ */
+public class CpuGpuApiTest {
+
+	private final GpuApi gpu = new CpuGpuApi();
+
+	@After
+	public void after() {
+		gpu.close();
+	}
+
+	@Test
+	public void testPushAndPull() {
+		Img<FloatType> image = ArrayImgs.floats(new float[] { 1, 2, 3, 4, 5, 6 }, 3, 2);
+		GpuImage buffer = gpu.push(image);
+		assertEquals(3, buffer.getWidth());
+		assertEquals(2, buffer.getHeight());
+		assertEquals(24, buffer.getSizeInBytes());
+		ImgLib2Assert.assertImageEquals(image, gpu.pullRAI(buffer));
+	}
+
+	@Test
+	public void testPushAndPullMultiChannel() {
+		Img<FloatType> image = ArrayImgs.floats(new float[] { 1, 2, 3, 4, 5, 6 }, 3, 1, 2);
+		GpuImage buffer = gpu.pushMultiChannel(image);
+		assertEquals(2, buffer.getNumberOfChannels());
+		ImgLib2Assert.assertImageEquals(image, gpu.pullRAIMultiChannel(buffer));
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPullClosedImage() {
+		GpuImage buffer = gpu.push(ArrayImgs.floats(new float[] { 1, 2 }, 2, 1));
+		buffer.close();
+		gpu.pullRAI(buffer);
+	}
+
+	@Test
+	public void testPixelWiseOperation() {
+		GpuImage a = gpu.push(ArrayImgs.floats(new float[] { 1, 2, 3 }, 3, 1));
+		GpuImage b = gpu.push(ArrayImgs.floats(new float[] { 4, 5, 6 }, 3, 1));
+		GpuImage c = gpu.create(new long[] { 3, 1 }, NativeTypeEnum.Float);
+		GpuPixelWiseOperation.gpu(gpu)
+			.addInput("a", a)
+			.addInput("b", b)
+			.addInput("factor", 0.5f)
+			.addOutput("c", c)
+			.forEachPixel("float x = sqrt(b - a); c = (a + x * 3 / 2) * factor");
+		Img<FloatType> expected = ArrayImgs.floats(new float[] { 1.799038f, 2.299038f, 2.799038f },
+			3, 1);
+		ImgLib2Assert.assertImageEqualsRealType(expected, gpu.pullRAI(c), 0.00001);
+	}
+
+	@Test
+	public void testPixelWiseOperationOnViews() {
+		GpuImage image = gpu.push(ArrayImgs.floats(new float[] { 1, 2, 3, 4, 5, 6 }, 3, 2));
+		GpuImage result = gpu.create(new long[] { 2, 2 }, NativeTypeEnum.Float);
+		GpuPixelWiseOperation.gpu(gpu)
+			.addInput("a", GpuViews.crop(image, Intervals.createMinSize(1, 0, 2, 2)))
+			.addInput("b", GpuViews.crop(image, Intervals.createMinSize(0, 0, 2, 2)))
+			.addOutput("r", result)
+			.forEachPixel("r = (a - b) * 7 / 2");
+		Img<FloatType> expected = ArrayImgs.floats(new float[] { 3.5f, 3.5f, 3.5f, 3.5f }, 2, 2);
+		ImgLib2Assert.assertImageEquals(expected, gpu.pullRAI(result));
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testUnsupportedOperation() {
+		GpuImage image = gpu.create(new long[] { 1, 1 }, NativeTypeEnum.Float);
+		GpuPixelWiseOperation.gpu(gpu)
+			.addOutput("a", image)
+			.forEachPixel("a = atan2(1, 1)");
+	}
+
+	@Test
+	public void testEigenvalues() {
+		GpuView eigenvalue1 = image(0);
+		GpuView eigenvalue2 = image(0);
+		GpuView eigenvalue3 = image(0);
+		GpuEigenvalues.symmetric3d(gpu, image(1), image(2), image(3), image(4), image(5), image(6),
+			eigenvalue1, eigenvalue2, eigenvalue3);
+		assertEquals(11.345, getValue(eigenvalue1), 0.001);
+		assertEquals(0.171, getValue(eigenvalue2), 0.001);
+		assertEquals(-0.516, getValue(eigenvalue3), 0.001);
+	}
+
+	@Test
+	public void testSeparableOperation() {
+		Img<FloatType> input = ArrayImgs.floats(new float[] {
+			0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 0, 0, 0,
+			0, 0, 0, 0, 2, 0, 0,
+			0, 0, 0, 1, 0, 0, 0,
+			0, 0, 0, 0, 0, 0, 0,
+		}, 7, 5);
+		Img<FloatType> expected = ArrayImgs.floats(new float[] {
+			0, 0, 2, 2, 2,
+			0, 1, 2, 2, 2,
+			0, 1, 2, 2, 2,
+		}, 5, 3);
+		GpuImage in = gpu.push(input);
+		GpuImage out = gpu.create(new long[] { 5, 3 }, NativeTypeEnum.Float);
+		GpuNeighborhoodOperation operation = GpuNeighborhoodOperations.max(gpu, new int[] { 3, 3 });
+		operation.apply(GpuViews.wrap(in), GpuViews.wrap(out));
+		ImgLib2Assert.assertImageEquals(expected, gpu.pullRAI(out));
+	}
+
+	@Test
+	public void testFeatures() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.sigmas(1.0, 2.0)
+			.addFeatures(GroupedFeatures.gauss(), GroupedFeatures.gradient(), GroupedFeatures
+				.hessian(), GroupedFeatures.structureTensor(), GroupedFeatures.differenceOfGaussians(),
+				GroupedFeatures.statistics())
+			.build();
+		RandomAccessible<FloatType> image = Utils.dirac(2);
+		Interval interval = Intervals.createMinSize(-5, -5, 10, 10);
+		RandomAccessibleInterval<FloatType> expected = calculator.apply(image, interval);
+		GpuImage featureStack = calculator.applyUseGpu(gpu, image, interval);
+		RandomAccessibleInterval<FloatType> result = Views.translate(gpu.pullRAIMultiChannel(
+			featureStack), Intervals.minAsLongArray(expected));
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0.001);
+	}
+
+	@Test
+	public void testRandomForest() {
+		Segmenter segmenter = Segmenter.fromJson(SingletonContext.getInstance(), GsonUtils.read(
+			CpuGpuApiTest.class.getResourceAsStream("/compatibility/2d/test.classifier")));
+		RandomAccessible<FloatType> image = Views.extendBorder(ImageJFunctions.wrapFloat(Utils
+			.loadImage("compatibility/2d/test-image.tif")));
+		RandomForestPrediction prediction = new RandomForestPrediction(
+			(FastRandomForest) segmenter.getClassifier(), segmenter.features().count());
+		RandomAccessibleInterval<FloatType> features = segmenter.features().apply(image,
+			new FinalInterval(50, 50));
+		Img<FloatType> expected = ArrayImgs.floats(50, 50, prediction.numberOfClasses());
+		prediction.distribution(features, expected);
+		GpuImage distribution = gpu.create(new long[] { 50, 50 }, prediction.numberOfClasses(),
+			NativeTypeEnum.Float);
+		prediction.distribution(gpu, gpu.pushMultiChannel(features), distribution);
+		ImgLib2Assert.assertImageEqualsRealType(expected, gpu.pullRAIMultiChannel(distribution),
+			0.0001);
+	}
+
+	private GpuView image(float content) {
+		return GpuViews.wrap(gpu.push(ArrayImgs.floats(new float[] { content }, 1, 1)));
+	}
+
+	private float getValue(GpuView view) {
+		RandomAccessibleInterval<FloatType> rai = gpu.pullRAI(GpuViews.asGpuImage(gpu, view));
+		return Views.iterable(rai).firstElement().getRealFloat();
+	}
+}
@@ -14,8 +14,12 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
@@ -84,4 +88,29 @@ public class DefaultGpuApiTest {
 			ImgLib2Assert.assertImageEquals(image, result);
 		}
 	}
+
+	@Test
+	public void testCached() {
+		RandomAccessibleInterval<FloatType> image = ArrayImgs.floats(new float[] { 1, 2, 3 }, 3);
+		Object key = new Object();
+		AtomicInteger calls = new AtomicInteger();
+		Function<GpuApi, GpuImage> factory = g -> {
+			calls.incrementAndGet();
+			return g.push(image);
+		};
+		GpuImage a;
+		try (GpuApi scope = gpu.subScope()) {
+			a = scope.cached(key, factory);
+		}
+		// NB: the cached image outlives the scope that requested it
+		try (GpuApi scope = gpu.subScope()) {
+			GpuImage b = scope.cached(key, factory);
+			assertSame(a, b);
+			RandomAccessibleInterval<FloatType> result = scope.pullRAI(b);
+			ImgLib2Assert.assertImageEquals(image, result);
+		}
+		assertEquals(1, calls.get());
+		assertNotSame(a, gpu.cached(new Object(), factory));
+		assertEquals(2, calls.get());
+	}
 }
@@ -9,6 +9,7 @@ import net.imglib2.test.ImgLib2Assert;
 import net.imglib2.trainable_segmentation.gpu.api.AbstractGpuTest;
 import net.imglib2.trainable_segmentation.gpu.api.GpuImage;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.integer.IntType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.FloatType;
 import org.junit.Test;
@@ -74,6 +75,44 @@ public class GpuRandomForestKernelTest extends AbstractGpuTest {
 		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0.00001);
 	}
 
+	@Test
+	public void testRandomForestIntIndices() {
+		int numberOfTrees = 1;
+		int numberOfFeatures = 1;
+		int numberOfClasses = 2;
+		int numberOfNodes = 2;
+		int numberOfLeafs = 3;
+		GpuImage distributions = gpu.create(new long[] { 3, 1, 1 }, numberOfClasses,
+			NativeTypeEnum.Float);
+		Img<FloatType> src = ArrayImgs.floats(new float[] { 41, 43, 45 }, 3, 1, 1, numberOfFeatures);
+		Img<FloatType> thresholds = ArrayImgs.floats(new float[] { 42, 44 }, 1, numberOfNodes,
+			numberOfTrees);
+		Img<FloatType> probabilities = ArrayImgs.floats(new float[] {
+			2, 2,
+			3, 0,
+			4, 4
+		}, numberOfClasses, numberOfLeafs, numberOfTrees);
+		Img<IntType> indices = ArrayImgs.ints(new int[] {
+			0, Integer.MIN_VALUE, 1,
+			0, Integer.MIN_VALUE + 1, Integer.MIN_VALUE + 2
+		}, 3, numberOfNodes, numberOfTrees);
+
+		GpuRandomForestKernel.randomForest(gpu,
+			distributions,
+			gpu.pushMultiChannel(src),
+			gpu.push(thresholds),
+			gpu.push(probabilities),
+			gpu.push(indices),
+			numberOfFeatures);
+
+		RandomAccessibleInterval<? extends RealType<?>> result = gpu.pullRAIMultiChannel(distributions);
+		Img<FloatType> expected = ArrayImgs.floats(new float[] {
+			0.5f, 1.0f, 0.5f,
+			0.5f, 0.0f, 0.5f
+		}, 3, 1, 1, 2);
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0.00001);
+	}
+
 	@Test
 	public void testFindMax() {
 		Img<FloatType> input = ArrayImgs.floats(new float[] {
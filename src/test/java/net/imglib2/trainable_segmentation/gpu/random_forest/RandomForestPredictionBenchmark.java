@@ -0,0 +1,138 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.gson.GsonUtils;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import preview.net.imglib2.parallel.Parallelization;
+
+/**
+ * Compares pixel-major and tree-major evaluation of
+ * {@link RandomForestPrediction} on the CPU, using either the array
+ * representation of the trees or the trees compiled to bytecode. Also compares
+ * segmentation with and without early exit.
+ */
+@State(Scope.Benchmark)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@BenchmarkMode(Mode.AverageTime)
+public class RandomForestPredictionBenchmark {
+
+	private static final int BATCH_SIZE = 256;
+
+	@Param({ "2d", "3d" })
+	private String dimensions;
+
+	private RandomForestPrediction prediction;
+
+	private RandomForestPrediction compiledPrediction;
+
+	private RandomForestPrediction earlyExitPrediction;
+
+	private Img<UnsignedByteType> segmentation;
+
+	private float[] features;
+
+	private int numberOfPixels;
+
+	private float[] distributions;
+
+	@Setup
+	public void setup() {
+		String folder = "compatibility/" + dimensions + "/";
+		Segmenter segmenter = Segmenter.fromJson(SingletonContext.getInstance(), GsonUtils.read(
+			RandomForestPredictionBenchmark.class.getResourceAsStream("/" + folder +
+				"test.classifier")));
+		Img<FloatType> image = ImageJFunctions.wrapFloat(Utils.loadImage(folder + "test-image.tif"));
+		Interval interval = "2d".equals(dimensions) ? new FinalInterval(100, 100)
+			: new FinalInterval(40, 40, 40);
+		int numberOfFeatures = segmenter.features().count();
+		prediction = new RandomForestPrediction((FastRandomForest) segmenter.getClassifier(),
+			numberOfFeatures);
+		compiledPrediction = new RandomForestPrediction((FastRandomForest) segmenter.getClassifier(),
+			numberOfFeatures);
+		compiledPrediction.setUseCompiledTrees(true);
+		earlyExitPrediction = new RandomForestPrediction((FastRandomForest) segmenter
+			.getClassifier(), numberOfFeatures);
+		earlyExitPrediction.setEarlyExit(true);
+		segmentation = ArrayImgs.unsignedBytes(Intervals.dimensionsAsLongArray(interval));
+		features = segmenter.features().applyInterleaved(Views.extendBorder(image), interval);
+		numberOfPixels = (int) Intervals.numElements(interval);
+		distributions = new float[BATCH_SIZE * prediction.numberOfClasses()];
+	}
+
+	@Benchmark
+	public float[] benchmarkPixelMajor() {
+		for (int firstPixel = 0; firstPixel < numberOfPixels; firstPixel += BATCH_SIZE)
+			prediction.distributionsPixelMajor(features, firstPixel, Math.min(BATCH_SIZE,
+				numberOfPixels - firstPixel), distributions);
+		return distributions;
+	}
+
+	@Benchmark
+	public float[] benchmarkTreeMajor() {
+		for (int firstPixel = 0; firstPixel < numberOfPixels; firstPixel += BATCH_SIZE)
+			prediction.distributionsTreeMajor(features, firstPixel, Math.min(BATCH_SIZE,
+				numberOfPixels - firstPixel), distributions);
+		return distributions;
+	}
+
+	@Benchmark
+	public float[] benchmarkCompiledPixelMajor() {
+		for (int firstPixel = 0; firstPixel < numberOfPixels; firstPixel += BATCH_SIZE)
+			compiledPrediction.distributionsPixelMajor(features, firstPixel, Math.min(BATCH_SIZE,
+				numberOfPixels - firstPixel), distributions);
+		return distributions;
+	}
+
+	@Benchmark
+	public float[] benchmarkCompiledTreeMajor() {
+		for (int firstPixel = 0; firstPixel < numberOfPixels; firstPixel += BATCH_SIZE)
+			compiledPrediction.distributionsTreeMajor(features, firstPixel, Math.min(BATCH_SIZE,
+				numberOfPixels - firstPixel), distributions);
+		return distributions;
+	}
+
+	@Benchmark
+	public Img<UnsignedByteType> benchmarkSegment() {
+		Parallelization.runSingleThreaded(() -> prediction.segment(features, segmentation));
+		return segmentation;
+	}
+
+	@Benchmark
+	public Img<UnsignedByteType> benchmarkSegmentEarlyExit() {
+		Parallelization.runSingleThreaded(() -> earlyExitPrediction.segment(features, segmentation));
+		return segmentation;
+	}
+
+	public static void main(String... args) throws RunnerException {
+		Options options = new OptionsBuilder().include(RandomForestPredictionBenchmark.class
+			.getSimpleName()).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,249 @@
+package net.imglib2.trainable_segmentation.gpu.random_forest;
+
+import hr.irb.fastRandomForest.FastRandomForest;
+import net.imglib2.Cursor;
+import net.imglib2.FinalInterval;
+import net.imglib2.Interval;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.display.imagej.ImageJFunctions;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.trainable_segmentation.Utils;
+import net.imglib2.trainable_segmentation.classification.Segmenter;
+import net.imglib2.trainable_segmentation.gson.GsonUtils;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instances;
+import preview.net.imglib2.parallel.Parallelization;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests {@link RandomForestPrediction} on the CPU.
+ */
+public class RandomForestPredictionTest {
+
+	private final Segmenter segmenter = Segmenter.fromJson(SingletonContext.getInstance(), GsonUtils
+		.read(RandomForestPredictionTest.class.getResourceAsStream(
+			"/compatibility/2d/test.classifier")));
+
+	private final RandomAccessible<FloatType> image = Views.extendBorder(ImageJFunctions.wrapFloat(
+		Utils.loadImage("compatibility/2d/test-image.tif")));
+
+	private final Interval interval = new FinalInterval(100, 100);
+
+	private final RandomForestPrediction prediction = new RandomForestPrediction(
+		(FastRandomForest) segmenter.getClassifier(), segmenter.features().count());
+
+	@Test
+	public void testSegmentInterleaved() {
+		RandomAccessibleInterval<FloatType> featureStack = segmenter.features().apply(image, interval);
+		Img<UnsignedByteType> expected = ArrayImgs.unsignedBytes(100, 100);
+		prediction.segment(featureStack, expected);
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(100, 100);
+		prediction.segment(interleaved, result);
+		ImgLib2Assert.assertImageEquals(expected, result);
+	}
+
+	@Test
+	public void testMultiThreaded() {
+		RandomAccessibleInterval<FloatType> featureStack = segmenter.features().apply(image, interval);
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		Img<UnsignedByteType> expected = ArrayImgs.unsignedBytes(100, 100);
+		Parallelization.runSingleThreaded(() -> prediction.segment(featureStack, expected));
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(100, 100);
+		Parallelization.runWithNumThreads(4, () -> prediction.segment(featureStack, result));
+		ImgLib2Assert.assertImageEquals(expected, result);
+		Img<UnsignedByteType> resultInterleaved = ArrayImgs.unsignedBytes(100, 100);
+		Parallelization.runWithNumThreads(4, () -> prediction.segment(interleaved,
+			resultInterleaved));
+		ImgLib2Assert.assertImageEquals(expected, resultInterleaved);
+	}
+
+	@Test
+	public void testCompactLayout() {
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		int numberOfClasses = prediction.numberOfClasses();
+		Img<FloatType> expected = ArrayImgs.floats(100, 100, numberOfClasses);
+		prediction.distribution(interleaved, expected);
+		RandomForestPrediction compact = new RandomForestPrediction((FastRandomForest) segmenter
+			.getClassifier(), segmenter.features().count());
+		compact.setUseCompactLayout(true, false);
+		Img<FloatType> result = ArrayImgs.floats(100, 100, numberOfClasses);
+		compact.distribution(interleaved, result);
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0);
+		compact.setUseCompactLayout(true, true);
+		Img<FloatType> quantized = ArrayImgs.floats(100, 100, numberOfClasses);
+		compact.distribution(interleaved, quantized);
+		ImgLib2Assert.assertImageEqualsRealType(expected, quantized, 0.01);
+	}
+
+	@Test
+	public void testCompactLayoutIsSmaller() {
+		long compact = prediction.createCompactForest(false).sizeInBytes();
+		assertTrue(compact < prediction.paddedSizeInBytes());
+		assertTrue(prediction.createCompactForest(true).sizeInBytes() < compact);
+	}
+
+	@Test
+	public void testCompiledTrees() {
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		int numberOfClasses = prediction.numberOfClasses();
+		Img<FloatType> expected = ArrayImgs.floats(100, 100, numberOfClasses);
+		prediction.distribution(interleaved, expected);
+		RandomForestPrediction compiled = new RandomForestPrediction((FastRandomForest) segmenter
+			.getClassifier(), segmenter.features().count());
+		compiled.setUseCompiledTrees(true);
+		Img<FloatType> result = ArrayImgs.floats(100, 100, numberOfClasses);
+		compiled.distribution(interleaved, result);
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0);
+	}
+
+	@Test
+	public void testEarlyExit() {
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		Img<UnsignedByteType> expected = ArrayImgs.unsignedBytes(100, 100);
+		prediction.segment(interleaved, expected);
+		RandomForestPrediction earlyExit = new RandomForestPrediction((FastRandomForest) segmenter
+			.getClassifier(), segmenter.features().count());
+		earlyExit.setEarlyExit(true);
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(100, 100);
+		earlyExit.segment(interleaved, result);
+		ImgLib2Assert.assertImageEquals(expected, result);
+		RandomAccessibleInterval<FloatType> featureStack = segmenter.features().apply(image, interval);
+		Img<UnsignedByteType> resultRai = ArrayImgs.unsignedBytes(100, 100);
+		earlyExit.segment(featureStack, resultRai);
+		ImgLib2Assert.assertImageEquals(expected, resultRai);
+	}
+
+	@Test
+	public void testIntIndices() throws Exception {
+		// NB: A single tree, trained on random labels, has more than 32768 leafs.
+		int numberOfSamples = 200_000;
+		Random random = new Random(42);
+		Instances instances = new Instances("samples", new ArrayList<>(Arrays.asList(new Attribute(
+			"feature"), new Attribute("class", Arrays.asList("a", "b")))), numberOfSamples);
+		instances.setClassIndex(1);
+		float[] features = new float[numberOfSamples];
+		for (int i = 0; i < numberOfSamples; i++) {
+			// NB: integer values, such that the thresholds are exactly representable as float
+			features[i] = random.nextInt(1 << 20);
+			instances.add(new DenseInstance(1.0, new double[] { features[i], random.nextInt(2) }));
+		}
+		FastRandomForest classifier = new FastRandomForest();
+		classifier.setNumTrees(1);
+		classifier.setNumFeatures(1);
+		classifier.setSeed(1);
+		classifier.buildClassifier(instances);
+		RandomForestPrediction bigPrediction = new RandomForestPrediction(classifier, 1);
+		assertTrue(bigPrediction.usesIntIndices());
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(numberOfSamples);
+		bigPrediction.segment(features, result);
+		assertSegmentationMatches(classifier, instances, result);
+		// NB: The compiled tree is split into many methods.
+		bigPrediction.setUseCompiledTrees(true);
+		Img<UnsignedByteType> compiledResult = ArrayImgs.unsignedBytes(numberOfSamples);
+		bigPrediction.segment(features, compiledResult);
+		assertSegmentationMatches(classifier, instances, compiledResult);
+		RandomForestPrediction copy = writeAndRead(bigPrediction);
+		assertTrue(copy.usesIntIndices());
+		Img<UnsignedByteType> copyResult = ArrayImgs.unsignedBytes(numberOfSamples);
+		copy.segment(features, copyResult);
+		assertSegmentationMatches(classifier, instances, copyResult);
+		ByteBuffer buffer = ByteBuffer.allocate(bigPrediction.serializedSize());
+		bigPrediction.write(buffer);
+		buffer.flip();
+		RandomForestPrediction mapped = RandomForestPrediction.map(buffer);
+		assertTrue(mapped.usesIntIndices());
+		Img<UnsignedByteType> mappedResult = ArrayImgs.unsignedBytes(numberOfSamples);
+		mapped.segment(features, mappedResult);
+		assertSegmentationMatches(classifier, instances, mappedResult);
+	}
+
+	@Test
+	public void testWriteAndRead() {
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		int numberOfClasses = prediction.numberOfClasses();
+		Img<FloatType> expected = ArrayImgs.floats(100, 100, numberOfClasses);
+		prediction.distribution(interleaved, expected);
+		RandomForestPrediction copy = writeAndRead(prediction);
+		assertFalse(copy.usesIntIndices());
+		assertEquals(prediction.numberOfFeatures(), copy.numberOfFeatures());
+		Img<FloatType> result = ArrayImgs.floats(100, 100, numberOfClasses);
+		copy.distribution(interleaved, result);
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 0);
+	}
+
+	@Test
+	public void testMap() {
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		Img<UnsignedByteType> expected = ArrayImgs.unsignedBytes(100, 100);
+		prediction.segment(interleaved, expected);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(prediction.serializedSize());
+		prediction.write(buffer);
+		buffer.flip();
+		RandomForestPrediction mapped = RandomForestPrediction.map(buffer.asReadOnlyBuffer());
+		assertTrue(mapped.isMapped());
+		assertFalse(mapped.usesIntIndices());
+		Img<UnsignedByteType> result = ArrayImgs.unsignedBytes(100, 100);
+		mapped.segment(interleaved, result);
+		ImgLib2Assert.assertImageEquals(expected, result);
+		// NB: the compact layout is built from a copy of the mapped forest
+		mapped.setUseCompactLayout(true, false);
+		Img<UnsignedByteType> compactResult = ArrayImgs.unsignedBytes(100, 100);
+		mapped.segment(interleaved, compactResult);
+		ImgLib2Assert.assertImageEquals(expected, compactResult);
+		RandomForestPrediction copy = writeAndRead(mapped);
+		assertFalse(copy.isMapped());
+		Img<UnsignedByteType> copyResult = ArrayImgs.unsignedBytes(100, 100);
+		copy.segment(interleaved, copyResult);
+		ImgLib2Assert.assertImageEquals(expected, copyResult);
+	}
+
+	private static RandomForestPrediction writeAndRead(RandomForestPrediction prediction) {
+		ByteBuffer buffer = ByteBuffer.allocate(prediction.serializedSize());
+		prediction.write(buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+		buffer.flip();
+		RandomForestPrediction copy = RandomForestPrediction.read(buffer);
+		assertEquals(buffer.capacity(), buffer.position());
+		return copy;
+	}
+
+	private static void assertSegmentationMatches(FastRandomForest classifier, Instances instances,
+		Img<UnsignedByteType> result) throws Exception
+	{
+		Cursor<UnsignedByteType> cursor = result.cursor();
+		for (int i = 0; i < instances.size(); i++) {
+			double[] expected = classifier.distributionForInstance(instances.get(i));
+			assertEquals(expected[0] >= expected[1] ? 0 : 1, cursor.next().get());
+		}
+	}
+
+	@Test
+	public void testDistributionInterleaved() {
+		int numberOfClasses = prediction.numberOfClasses();
+		RandomAccessibleInterval<FloatType> featureStack = segmenter.features().apply(image, interval);
+		Img<FloatType> expected = ArrayImgs.floats(100, 100, numberOfClasses);
+		prediction.distribution(featureStack, expected);
+		float[] interleaved = segmenter.features().applyInterleaved(image, interval);
+		Img<FloatType> result = ArrayImgs.floats(100, 100, numberOfClasses);
+		prediction.distribution(interleaved, result);
+		ImgLib2Assert.assertImageEqualsRealType(expected, result, 1e-6);
+	}
+}
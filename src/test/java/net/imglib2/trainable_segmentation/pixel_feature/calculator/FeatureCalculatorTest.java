@@ -4,17 +4,26 @@ package net.imglib2.trainable_segmentation.pixel_feature.calculator;
 import net.imglib2.trainable_segmentation.gpu.api.GpuPixelWiseOperation;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.img.Img;
+import net.imglib2.Interval;
+import net.imglib2.converter.RealTypeConverters;
 import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.test.RandomImgs;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.Utils;
 import net.imglib2.trainable_segmentation.gpu.GpuFeatureInput;
 import net.imglib2.trainable_segmentation.gpu.api.GpuView;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.AbstractFeatureOp;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureOp;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.GroupedFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.ChannelSetting;
 import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSetting;
 import net.imglib2.trainable_segmentation.utils.CpuGpuRunner;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.IntervalView;
 import net.imglib2.view.Views;
 import org.junit.Test;
@@ -22,12 +31,15 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.scijava.plugin.Parameter;
 import preview.net.imglib2.loops.LoopBuilder;
+import preview.net.imglib2.parallel.Parallelization;
 
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
 
 @RunWith(CpuGpuRunner.class)
 public class FeatureCalculatorTest {
@@ -68,6 +80,71 @@ public class FeatureCalculatorTest {
 		Utils.assertImagesEqual(ArrayImgs.floats(new float[] { 44, 45, 14, 15 }, 1, 1, 4), out);
 	}
 
+	@Test
+	public void testApplyInterleaved() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.addFeatures(add_42, add_12)
+			.build();
+		Img<FloatType> input = ArrayImgs.floats(new float[] { 2, 3, 4 }, 3, 1);
+		float[] out = calculator.applyInterleaved(Views.extendBorder(input), input);
+		assertArrayEquals(new float[] { 44, 14, 45, 15, 46, 16 }, out, 0);
+	}
+
+	@Test
+	public void testMultiChannelParallel() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.channels(ChannelSetting.multiple(3))
+			.sigmas(1.0, 2.0)
+			.addFeatures(GroupedFeatures.gauss(), GroupedFeatures.hessian())
+			.build();
+		calculator.setUseGpu(useGpu);
+		RandomAccessibleInterval<FloatType> input = RandomImgs.seed(42).nextImage(new FloatType(),
+			20, 20, 3);
+		RandomAccessibleInterval<FloatType> expected = Parallelization.runSingleThreaded(
+			() -> calculator.apply(input));
+		RandomAccessibleInterval<FloatType> actual = Parallelization.runWithNumThreads(4,
+			() -> calculator.apply(input));
+		ImgLib2Assert.assertImageEqualsRealType(expected, actual, 0.0);
+	}
+
+	@Test
+	public void testConvertedInput() {
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.sigmas(1.0, 4.0)
+			.addFeatures(GroupedFeatures.gauss(), GroupedFeatures.hessian(), GroupedFeatures
+				.structureTensor(), GroupedFeatures.statistics())
+			.build();
+		calculator.setUseGpu(useGpu);
+		RandomAccessibleInterval<UnsignedByteType> bytes = RandomImgs.seed(42).nextImage(
+			new UnsignedByteType(), 30, 30);
+		RandomAccessibleInterval<FloatType> floats = RevampUtils.copy(RealTypeConverters.convert(
+			bytes, new FloatType()));
+		Interval interval = Intervals.createMinSize(5, 5, 20, 20);
+		ImgLib2Assert.assertImageEqualsRealType(calculator.apply(Views.extendBorder(floats),
+			interval), calculator.apply(Views.extendBorder(bytes), interval), 0.0);
+	}
+
+	@Test
+	public void testFloatIntermediates() {
+		assumeFalse(useGpu);
+		RandomAccessibleInterval<FloatType> image = Views.interval(Utils.loadImageFloatType(
+			"drosophila_3d.tif"), Intervals.createMinSize(0, 0, 0, 40, 40, 20));
+		FeatureCalculator calculator = FeatureCalculator.default2d()
+			.dimensions(3)
+			.sigmaRange(1.0, 8.0)
+			.addFeatures(SingleFeatures.identity(), GroupedFeatures.gauss(), GroupedFeatures
+				.gradient(), GroupedFeatures.laplacian(), GroupedFeatures.hessian(),
+				GroupedFeatures.differenceOfGaussians(), GroupedFeatures.structureTensor())
+			.build();
+		RandomAccessibleInterval<FloatType> expected = calculator.apply(image);
+		calculator.setUseFloatIntermediates(true);
+		RandomAccessibleInterval<FloatType> actual = calculator.apply(image);
+		int n = expected.numDimensions() - 1;
+		for (int i = 0; i < expected.dimension(n); i++)
+			Utils.assertImagesEqual(80, Views.hyperSlice(expected, n, i), Views.hyperSlice(actual,
+				n, i));
+	}
+
 	public static class AddValue extends AbstractFeatureOp implements FeatureOp {
 
 		@Parameter
@@ -16,21 +16,25 @@ import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.trainable_segmentation.Utils;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.gradient.DerivedNormalDistribution;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GaussMethod;
 import net.imglib2.type.numeric.RealType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.ConstantUtils;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Localizables;
+import net.imglib2.util.Util;
 import net.imglib2.view.Views;
 import org.junit.Test;
 
+import java.util.Arrays;
 import java.util.function.DoubleUnaryOperator;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
 public class FeatureInputTest {
 
@@ -66,6 +70,34 @@ public class FeatureInputTest {
 		assertNotSame(cache.gauss(2.0), cache.gauss(1.0));
 	}
 
+	@Test
+	public void testCascadedGauss() {
+		RandomAccessible<FloatType> extended = Views.extendBorder(image);
+		double[] pixelSize = { 1, 1, 2 };
+		FeatureInput direct = new FeatureInput(extended, target, pixelSize);
+		FeatureInput cascaded = new FeatureInput(extended, target, pixelSize);
+		cascaded.setCascadedSigmas(Arrays.asList(1.0, 2.0, 4.0, 8.0));
+		for (double sigma : new double[] { 8.0, 4.0, 2.0, 1.0 }) {
+			ImgLib2Assert.assertImageEqualsRealType(direct.gauss(sigma), cascaded.gauss(sigma), 0.01);
+			ImgLib2Assert.assertImageEqualsRealType(direct.derivedGauss(sigma, 1, 0, 0), cascaded
+				.derivedGauss(sigma, 1, 0, 0), 0.01);
+		}
+	}
+
+	@Test
+	public void testRecursiveGauss() {
+		RandomAccessible<FloatType> extended = Views.extendBorder(image);
+		double[] pixelSize = { 1, 1, 2 };
+		FeatureInput kernel = new FeatureInput(extended, target, pixelSize);
+		FeatureInput recursive = new FeatureInput(extended, target, pixelSize);
+		recursive.setGaussMethod(GaussMethod.RECURSIVE);
+		for (double sigma : new double[] { 1.0, 4.0, 8.0 }) {
+			ImgLib2Assert.assertImageEqualsRealType(kernel.gauss(sigma), recursive.gauss(sigma), 0.02);
+			ImgLib2Assert.assertImageEqualsRealType(kernel.derivedGauss(sigma, 1, 0, 0), recursive
+				.derivedGauss(sigma, 1, 0, 0), 0.02);
+		}
+	}
+
 	@Test
 	public void testDerivedGauss() {
 		RandomAccessibleInterval<? extends RealType<?>> result = cache.derivedGauss(2.0, 0, 1, 0);
@@ -81,6 +113,17 @@ public class FeatureInputTest {
 		assertNotSame(cache.derivedGauss(2.0, 1, 0, 0), cache.derivedGauss(2.0, 1, 0));
 	}
 
+	@Test
+	public void testFloatIntermediates() {
+		FeatureInput input = new FeatureInput(image, target, new double[] { 1, 1, 2 });
+		input.setUseFloatIntermediates(true);
+		RandomAccessibleInterval<? extends RealType<?>> real = input.derivedGaussReal(2.0, 0, 1, 0);
+		RandomAccessibleInterval<DoubleType> doubles = input.derivedGauss(2.0, 0, 1, 0);
+		assertTrue(Util.getTypeFromInterval(real) instanceof FloatType);
+		ImgLib2Assert.assertImageEqualsRealType((RandomAccessibleInterval) real, doubles, 0.0);
+		ImgLib2Assert.assertImageEqualsRealType(deriveY(), doubles, 0.01);
+	}
+
 	private RandomAccessibleInterval<DoubleType> deriveY() {
 		RandomAccessibleInterval<DoubleType> expected = create(target);
 		Kernel1D[] kernels = {
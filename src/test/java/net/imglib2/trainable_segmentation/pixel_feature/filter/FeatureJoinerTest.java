@@ -0,0 +1,154 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.test.RandomImgs;
+import net.imglib2.trainable_segmentation.RevampUtils;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.FeatureSetting;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GlobalSettings;
+import net.imglib2.trainable_segmentation.utils.SingletonContext;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.util.Intervals;
+import net.imglib2.view.Views;
+import org.junit.Test;
+import org.scijava.Context;
+import preview.net.imglib2.parallel.Parallelization;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FeatureJoinerTest {
+
+	private final Context context = SingletonContext.getInstance();
+
+	private final GlobalSettings settings = GlobalSettings.default3d().build();
+
+	private final Img<FloatType> image = RandomImgs.seed(42).nextImage(new FloatType(), 30, 30,
+		30);
+
+	private final FinalInterval target = Intervals.createMinSize(10, 10, 10, 10, 10, 10);
+
+	@Test
+	public void testReleaseCachedImages() {
+		CacheProbe probe = (CacheProbe) newInstance(FeatureSetting.fromClass(CacheProbe.class));
+		FeatureJoiner joiner = new FeatureJoiner(Arrays.asList(
+			newInstance(SingleFeatures.gradient(2.0)),
+			newInstance(SingleFeatures.hessian(2.0)),
+			probe,
+			newInstance(SingleFeatures.gauss(4.0))));
+		// NB: The first call records which feature uses which cached image.
+		RandomAccessibleInterval<FloatType> expected = apply(joiner, new FeatureInput(Views
+			.extendBorder(image), target, new double[] { 1, 1, 1 }));
+		assertTrue(probe.cachedBytes > 0);
+		FeatureInput input = new FeatureInput(Views.extendBorder(image), target, new double[] { 1,
+			1, 1 });
+		RandomAccessibleInterval<FloatType> actual = Parallelization.runSingleThreaded(() -> apply(
+			joiner, input));
+		assertEquals(0, probe.cachedBytes);
+		assertEquals(0, input.cachedBytes());
+		ImgLib2Assert.assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testParallel() {
+		FeatureJoiner joiner = new FeatureJoiner(Arrays.asList(
+			newInstance(GroupedFeatures.gauss()),
+			newInstance(GroupedFeatures.gradient()),
+			newInstance(GroupedFeatures.hessian()),
+			newInstance(GroupedFeatures.laplacian())));
+		RandomAccessibleInterval<FloatType> expected = Parallelization.runSingleThreaded(
+			() -> apply(joiner, newFeatureInput()));
+		for (int i = 0; i < 2; i++) {
+			RandomAccessibleInterval<FloatType> actual = Parallelization.runWithNumThreads(4,
+				() -> apply(joiner, newFeatureInput()));
+			ImgLib2Assert.assertImageEquals(expected, actual);
+		}
+	}
+
+	@Test
+	public void testCacheBudget() {
+		FeatureJoiner joiner = new FeatureJoiner(Arrays.asList(
+			newInstance(SingleFeatures.hessian(1.0)),
+			newInstance(SingleFeatures.hessian(2.0)),
+			newInstance(SingleFeatures.gradient(1.0))));
+		RandomAccessibleInterval<FloatType> expected = apply(joiner, new FeatureInput(Views
+			.extendBorder(image), target, new double[] { 1, 1, 1 }));
+		FeatureInput input = new FeatureInput(Views.extendBorder(image), target, new double[] { 1, 1,
+			1 });
+		long budget = 2 * Intervals.numElements(Intervals.expand(target, 2)) * Double.BYTES;
+		input.setCacheBudget(budget);
+		RandomAccessibleInterval<FloatType> actual = Parallelization.runWithNumThreads(4,
+			() -> apply(joiner, input));
+		assertTrue(input.cachedBytes() <= budget);
+		ImgLib2Assert.assertImageEquals(expected, actual);
+	}
+
+	@Test
+	public void testDefaultCacheBudget() {
+		FeatureJoiner joiner = new FeatureJoiner(Arrays.asList(
+			newInstance(SingleFeatures.gradient(1.0)),
+			newInstance(SingleFeatures.gradient(2.0)),
+			newInstance(SingleFeatures.gradient(3.0)),
+			newInstance(SingleFeatures.gradient(4.0)),
+			newInstance(SingleFeatures.gradient(5.0)),
+			newInstance(SingleFeatures.gradient(6.0)),
+			newInstance(SingleFeatures.gradient(7.0)),
+			newInstance(SingleFeatures.gradient(8.0))));
+		FeatureInput recordingInput = newFeatureInput();
+		RandomAccessibleInterval<FloatType> expected = apply(joiner, recordingInput);
+		FeatureInput input = newFeatureInput();
+		RandomAccessibleInterval<FloatType> actual = Parallelization.runWithNumThreads(4,
+			() -> apply(joiner, input));
+		// NB: A gradient needs one gaussian blur and three derivatives.
+		long bytesPerFeature = (Intervals.numElements(Intervals.expand(target, 2)) + 3 * Intervals
+			.numElements(target)) * Double.BYTES;
+		assertTrue(input.peakCachedBytes() <= 4 * bytesPerFeature);
+		// NB: While recording, the cache may exceed the budget by the image that is added.
+		assertTrue(recordingInput.peakCachedBytes() <= 2 * bytesPerFeature);
+		assertEquals(0, input.cachedBytes());
+		assertEquals(0, recordingInput.cachedBytes());
+		ImgLib2Assert.assertImageEquals(expected, actual);
+	}
+
+	private RandomAccessibleInterval<FloatType> apply(FeatureJoiner joiner, FeatureInput input) {
+		Img<FloatType> output = ArrayImgs.floats(10, 10, 10, joiner.count());
+		RandomAccessibleInterval<FloatType> translated = Views.translate(output, 10, 10, 10, 0);
+		joiner.apply(input, RevampUtils.slices(translated));
+		return translated;
+	}
+
+	private FeatureInput newFeatureInput() {
+		return new FeatureInput(Views.extendBorder(image), target, new double[] { 1, 1, 1 });
+	}
+
+	private FeatureOp newInstance(FeatureSetting setting) {
+		return setting.newInstance(context, settings);
+	}
+
+	public static class CacheProbe extends AbstractFeatureOp {
+
+		private long cachedBytes = -1;
+
+		@Override
+		public int count() {
+			return 1;
+		}
+
+		@Override
+		public List<String> attributeLabels() {
+			return Collections.singletonList("cache_probe");
+		}
+
+		@Override
+		public void apply(FeatureInput input, List<RandomAccessibleInterval<FloatType>> output) {
+			cachedBytes = input.cachedBytes();
+		}
+	}
+}
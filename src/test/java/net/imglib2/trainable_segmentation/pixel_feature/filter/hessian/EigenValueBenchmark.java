@@ -8,6 +8,7 @@ import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.test.RandomImgs;
 import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.type.numeric.real.DoubleType;
+import net.imglib2.util.Intervals;
 import net.imglib2.view.composite.Composite;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Fork;
@@ -42,6 +43,14 @@ public class EigenValueBenchmark {
 		.mapToObj(i -> ArrayImgs.doubles(dims))
 		.collect(Collectors.toList());
 
+	private final int size = (int) Intervals.numElements(dims);
+
+	private final double[][] matrixArrays = slices.stream()
+		.map(EigenValueBenchmark::toArray)
+		.toArray(double[][]::new);
+
+	private final double[][] eigenvalueArrays = new double[3][size];
+
 	@Benchmark
 	public Object benchmarkImgLib2AlgorithmEigenValuesSymmetric3D() {
 		RandomAccessibleInterval<Composite<DoubleType>> matrix = RevampUtils.vectorizeStack(slices);
@@ -62,6 +71,36 @@ public class EigenValueBenchmark {
 		return eigenvalues;
 	}
 
+	@Benchmark
+	public Object benchmarkEigenValuesSymmetric3DPerPixel() {
+		EigenValuesSymmetric3D<DoubleType, DoubleType> calculator = new EigenValuesSymmetric3D<>();
+		double[][] a = matrixArrays;
+		double[] evs = new double[3];
+		for (int i = 0; i < size; i++) {
+			calculator.compute(a[0][i], a[1][i], a[2][i], a[3][i], a[4][i], a[5][i], evs);
+			eigenvalueArrays[0][i] = evs[0];
+			eigenvalueArrays[1][i] = evs[1];
+			eigenvalueArrays[2][i] = evs[2];
+		}
+		return eigenvalueArrays;
+	}
+
+	@Benchmark
+	public Object benchmarkEigenValuesSymmetricBatch() {
+		double[][] a = matrixArrays;
+		double[][] evs = eigenvalueArrays;
+		EigenValuesSymmetricBatch.compute3d(a[0], a[1], a[2], a[3], a[4], a[5], evs[0], evs[1],
+			evs[2], size);
+		return eigenvalueArrays;
+	}
+
+	private static double[] toArray(RandomAccessibleInterval<DoubleType> image) {
+		double[] array = new double[(int) Intervals.numElements(image)];
+		LoopBuilder.setImages(image, ArrayImgs.doubles(array, Intervals.dimensionsAsLongArray(image)))
+			.forEachPixel((i, o) -> o.set(i));
+		return array;
+	}
+
 	public static void main(String... args) throws RunnerException {
 		Options options = new OptionsBuilder().include(EigenValueBenchmark.class.getSimpleName())
 			.build();
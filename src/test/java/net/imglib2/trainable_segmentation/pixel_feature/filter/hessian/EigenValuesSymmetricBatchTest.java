@@ -0,0 +1,75 @@
+package net.imglib2.trainable_segmentation.pixel_feature.filter.hessian;
+
+import net.imglib2.type.numeric.real.DoubleType;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class EigenValuesSymmetricBatchTest {
+
+	@Test
+	public void testCompute3d() {
+		double[] evs = compute3d(1, 2, 3, 4, 5, 6);
+		assertArrayEquals(new double[] { 11.345, 0.171, -0.516 }, evs, 0.001);
+	}
+
+	@Test
+	public void testDegenerateMatrices() {
+		assertArrayEquals(new double[] { 0, 0, 0 }, compute3d(0, 0, 0, 0, 0, 0), 0);
+		assertArrayEquals(new double[] { 2, 2, 2 }, compute3d(2, 0, 0, 2, 0, 2), 1e-15);
+		assertArrayEquals(new double[] { 2, 1, 1 }, compute3d(1, 0, 0, 1, 0, 2), 1e-7);
+		assertArrayEquals(new double[] { 3, 3, -1 }, compute3d(1, 2, 0, 1, 0, 3), 1e-7);
+	}
+
+	@Test
+	public void testCompute3dMatchesEigenValuesSymmetric3D() {
+		Random random = new Random(42);
+		int length = 1000;
+		double[][] a = new double[6][length];
+		for (double[] array : a)
+			for (int i = 0; i < length; i++)
+				array[i] = random.nextDouble() * 2 - 1;
+		double[][] actual = new double[3][length];
+		EigenValuesSymmetricBatch.compute3d(a[0], a[1], a[2], a[3], a[4], a[5], actual[0], actual[1],
+			actual[2], length);
+		EigenValuesSymmetric3D<DoubleType, DoubleType> solver = new EigenValuesSymmetric3D<>();
+		double[] expected = new double[3];
+		for (int i = 0; i < length; i++) {
+			solver.compute(a[0][i], a[1][i], a[2][i], a[3][i], a[4][i], a[5][i], expected);
+			for (int k = 0; k < 3; k++)
+				assertEquals(expected[k], actual[k][i], 1e-7);
+		}
+	}
+
+	@Test
+	public void testCompute3dInPlace() {
+		double[] a11 = { 1 }, a12 = { 2 }, a13 = { 3 };
+		EigenValuesSymmetricBatch.compute3d(a11, a12, a13, new double[] { 4 }, new double[] { 5 },
+			new double[] { 6 }, a11, a12, a13, 1);
+		assertArrayEquals(new double[] { 11.345, 0.171, -0.516 }, new double[] { a11[0], a12[0],
+			a13[0] }, 0.001);
+	}
+
+	@Test
+	public void testCompute2d() {
+		double[] ev1 = new double[2];
+		double[] ev2 = new double[2];
+		EigenValuesSymmetricBatch.compute2d(new double[] { 1, 2 }, new double[] { 3, 0 },
+			new double[] { 2, 5 }, ev1, ev2, 2);
+		assertArrayEquals(new double[] { 4.541, 5 }, ev1, 0.001);
+		assertArrayEquals(new double[] { -1.541, 2 }, ev2, 0.001);
+	}
+
+	private static double[] compute3d(double a11, double a12, double a13, double a22, double a23,
+		double a33)
+	{
+		double[] ev1 = new double[1], ev2 = new double[1], ev3 = new double[1];
+		EigenValuesSymmetricBatch.compute3d(new double[] { a11 }, new double[] { a12 },
+			new double[] { a13 }, new double[] { a22 }, new double[] { a23 }, new double[] { a33 }, ev1,
+			ev2, ev3, 1);
+		return new double[] { ev1[0], ev2[0], ev3[0] };
+	}
+}
@@ -9,29 +9,40 @@ import net.imglib2.converter.Converter;
 import net.imglib2.converter.Converters;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.test.RandomImgs;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.Utils;
 import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.FeatureInput;
 import net.imglib2.trainable_segmentation.utils.CpuGpuRunner;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Localizables;
+import net.imglib2.view.Views;
+import net.imglib2.view.composite.Composite;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import preview.net.imglib2.loops.LoopBuilder;
 
 import java.util.Arrays;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
 
 @RunWith(CpuGpuRunner.class)
 public class SingleHessianEigenvaluesFeatureTest {
 
 	public SingleHessianEigenvaluesFeatureTest(boolean useGpu) {
+		this.useGpu = useGpu;
 		this.calculator.setUseGpu(useGpu);
 		this.calculator3d.setUseGpu(useGpu);
 	}
 
+	private final boolean useGpu;
+
 	private final FeatureCalculator calculator = FeatureCalculator.default2d()
 		.addFeature(SingleHessianEigenvaluesFeature.class)
 		.build();
@@ -95,4 +106,29 @@ public class SingleHessianEigenvaluesFeatureTest {
 			"hessian - smallest eigenvalue sigma=1.0");
 		assertEquals(expected, attributeLabels);
 	}
+
+	@Test
+	public void testFusedMatchesDerivedGauss() {
+		assumeFalse(useGpu);
+		RandomAccessibleInterval<FloatType> image = RandomImgs.seed(42).nextImage(new FloatType(), 20,
+			20, 20);
+		Interval target = Intervals.createMinSize(5, 5, 5, 10, 10, 10);
+		double[] pixelSize = { 1, 1, 2 };
+		FeatureInput input = new FeatureInput(Views.extendBorder(image), target, pixelSize);
+		double sigma = 2.0;
+		RandomAccessibleInterval<Composite<DoubleType>> derivatives = RevampUtils.vectorizeStack(input
+			.derivedGauss(sigma, 2, 0, 0), input.derivedGauss(sigma, 1, 1, 0), input.derivedGauss(sigma,
+				1, 0, 1), input.derivedGauss(sigma, 0, 2, 0), input.derivedGauss(sigma, 0, 1, 1), input
+					.derivedGauss(sigma, 0, 0, 2));
+		RandomAccessibleInterval<FloatType> expected = Views.translate(ArrayImgs.floats(10, 10, 10,
+			3), 5, 5, 5, 0);
+		EigenValuesSymmetric3D<DoubleType, FloatType> solver = new EigenValuesSymmetric3D<>();
+		LoopBuilder.setImages(derivatives, RevampUtils.vectorizeStack(RevampUtils.slices(expected)))
+			.forEachPixel(solver::compute);
+		RandomAccessibleInterval<FloatType> actual = Views.translate(ArrayImgs.floats(10, 10, 10, 3),
+			5, 5, 5, 0);
+		FusedHessianEigenvalues.apply(input.gaussWithBorder(sigma), pixelSize, RevampUtils.slices(
+			actual));
+		ImgLib2Assert.assertImageEqualsRealType(expected, actual, 1e-5);
+	}
 }
@@ -13,11 +13,16 @@ import net.imglib2.img.Img;
 import net.imglib2.img.array.ArrayImgs;
 import net.imglib2.img.display.imagej.ImageJFunctions;
 import net.imglib2.test.ImgLib2Assert;
+import net.imglib2.test.RandomImgs;
+import net.imglib2.trainable_segmentation.RevampUtils;
 import net.imglib2.trainable_segmentation.Utils;
 import net.imglib2.trainable_segmentation.pixel_feature.calculator.FeatureCalculator;
 import net.imglib2.trainable_segmentation.pixel_feature.filter.SingleFeatures;
+import net.imglib2.trainable_segmentation.pixel_feature.filter.hessian.EigenValuesSymmetric3D;
+import net.imglib2.trainable_segmentation.pixel_feature.settings.GaussMethod;
 import net.imglib2.trainable_segmentation.utils.CpuGpuRunner;
 import net.imglib2.type.numeric.RealType;
+import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 import net.imglib2.util.Intervals;
 import net.imglib2.util.Localizables;
@@ -26,6 +31,8 @@ import net.imglib2.view.Views;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
+import preview.net.imglib2.algorithm.convolution.Convolution;
+import preview.net.imglib2.loops.LoopBuilder;
 import trainableSegmentation.ImageScience;
 
 import java.util.ArrayList;
@@ -35,6 +42,7 @@ import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeFalse;
 
 /**
  * Tests {@link SingleStructureTensorEigenvaluesFeature}.
@@ -43,10 +51,13 @@ import static org.junit.Assert.assertEquals;
 public class SingleStructureTensorEigenvaluesFeatureTest {
 
 	public SingleStructureTensorEigenvaluesFeatureTest(boolean useGpu) {
+		this.useGpu = useGpu;
 		calculator2d.setUseGpu(useGpu);
 		calculator3d.setUseGpu(useGpu);
 	}
 
+	private final boolean useGpu;
+
 	private final double sigma = 2.0;
 	private final double integrationScale = 5.0;
 
@@ -123,6 +134,58 @@ public class SingleStructureTensorEigenvaluesFeatureTest {
 		Utils.assertImagesEqual(55, normalize(output), normalize(Views.interval(result2, target)));
 	}
 
+	@Test
+	public void testFusedMatchesSeparateSteps() {
+		assumeFalse(useGpu);
+		Img<FloatType> image = RandomImgs.seed(42).nextImage(new FloatType(), 40, 40, 40);
+		Interval target = Intervals.createMinSize(15, 15, 15, 10, 10, 10);
+		double[] pixelSize = { 1, 1, 2 };
+		double[] gaussSigmas = { 1, 1, 0.5 };
+		double[] integrationSigmas = { 3, 3, 1.5 };
+		GaussMethod method = GaussMethod.KERNEL;
+		Interval tensorInterval = Intervals.expand(target, 15);
+		RandomAccessibleInterval<DoubleType> gauss = createDoubles(Intervals.expand(tensorInterval,
+			1));
+		method.gauss(gaussSigmas, Views.extendBorder(image), gauss);
+		List<RandomAccessibleInterval<DoubleType>> gradient = new ArrayList<>();
+		for (int d = 0; d < 3; d++) {
+			RandomAccessibleInterval<DoubleType> derivative = createDoubles(tensorInterval);
+			double factor = 0.5 / pixelSize[d];
+			LoopBuilder.setImages(derivative, Views.interval(gauss, Intervals.translate(derivative, -1,
+				d)), Views.interval(gauss, Intervals.translate(derivative, 1, d))).forEachPixel(
+					(r, b, f) -> r.setReal(factor * (f.getRealDouble() - b.getRealDouble())));
+			gradient.add(derivative);
+		}
+		List<RandomAccessibleInterval<DoubleType>> tensor = new ArrayList<>();
+		for (int i = 0; i < 3; i++)
+			for (int j = i; j < 3; j++) {
+				RandomAccessibleInterval<DoubleType> product = createDoubles(tensorInterval);
+				LoopBuilder.setImages(gradient.get(i), gradient.get(j), product).forEachPixel(
+					(a, b, r) -> r.setReal(a.getRealDouble() * b.getRealDouble()));
+				RandomAccessibleInterval<DoubleType> blurred = createDoubles(target);
+				method.gauss(integrationSigmas, product, blurred);
+				tensor.add(blurred);
+			}
+		RandomAccessibleInterval<FloatType> expected = createImage(Intervals.addDimension(target, 0,
+			2));
+		EigenValuesSymmetric3D<DoubleType, FloatType> solver = new EigenValuesSymmetric3D<>();
+		LoopBuilder.setImages(RevampUtils.vectorizeStack(tensor), RevampUtils.vectorizeStack(
+			RevampUtils.slices(expected))).forEachPixel(solver::compute);
+		RandomAccessibleInterval<FloatType> actual = createImage(Intervals.addDimension(target, 0,
+			2));
+		List<Convolution<RealType<?>>> integrationBlurs = new ArrayList<>();
+		for (int d = 0; d < 3; d++)
+			integrationBlurs.add(method.convolution1d(integrationSigmas[d], d));
+		FusedStructureTensorEigenvalues.apply(gauss, pixelSize, integrationBlurs,
+			RevampUtils.slices(actual), new DoubleType());
+		ImgLib2Assert.assertImageEqualsRealType(expected, actual, 1e-5);
+	}
+
+	private static RandomAccessibleInterval<DoubleType> createDoubles(Interval interval) {
+		return Views.translate(ArrayImgs.doubles(Intervals.dimensionsAsLongArray(interval)), Intervals
+			.minAsLongArray(interval));
+	}
+
 	private RandomAccessibleInterval<FloatType> normalize(RandomAccessibleInterval<FloatType> image) {
 		double variance = 0;
 		for (RealType<?> pixel : Views.iterable(image))
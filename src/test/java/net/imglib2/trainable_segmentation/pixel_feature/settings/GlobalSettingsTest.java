@@ -1,9 +1,11 @@
 
 package net.imglib2.trainable_segmentation.pixel_feature.settings;
 
+import com.google.gson.Gson;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 
 public class GlobalSettingsTest {
 
@@ -23,4 +25,24 @@ public class GlobalSettingsTest {
 			.build();
 		assertEquals(globalsA.hashCode(), globalsB.hashCode());
 	}
+
+	@Test
+	public void testGaussMethod() {
+		GlobalSettings kernel = GlobalSettings.default2d().build();
+		GlobalSettings recursive = GlobalSettings.default2d().gaussMethod(GaussMethod.RECURSIVE)
+			.build();
+		assertEquals(GaussMethod.KERNEL, kernel.gaussMethod());
+		assertEquals(GaussMethod.RECURSIVE, recursive.gaussMethod());
+		assertNotEquals(kernel, recursive);
+		assertEquals(recursive, new GlobalSettings(recursive));
+	}
+
+	@Test
+	public void testGaussMethodMissingInJson() {
+		GlobalSettings globals = new Gson().fromJson(
+			"{\"channelSetting\":\"SINGLE\",\"numDimensions\":2,\"sigmas\":[1.0],\"pixelSize\":[1.0,1.0]}",
+			GlobalSettings.class);
+		assertEquals(GaussMethod.KERNEL, globals.gaussMethod());
+		assertEquals(GlobalSettings.default2d().sigmas(1.0).build(), globals);
+	}
 }
@@ -1,6 +1,7 @@
 
 package net.imglib2.trainable_segmentation.utils;
 
+import net.imglib2.trainable_segmentation.gpu.api.CpuGpuApi;
 import net.imglib2.trainable_segmentation.gpu.api.GpuPool;
 import org.junit.runner.Runner;
 import org.junit.runners.Suite;
@@ -16,6 +17,9 @@ import java.util.List;
  * Runner for JUnit tests, that can run on either CPU or GPU. The test must have
  * a constructor with a boolean parameter indicating if the test runs on CPU or
  * GPU.
+ * <p>
+ * If no OpenCL device is available, the GPU variant of the test runs with
+ * {@link CpuGpuApi}, see {@link GpuPool#setCpuFallback}.
  */
 public class CpuGpuRunner extends Suite {
 
@@ -39,6 +43,10 @@ public class CpuGpuRunner extends Suite {
 		runners.add(createRunner("CPU", false));
 		if (isGpuAvailable())
 			runners.add(createRunner("GPU", true));
+		else {
+			GpuPool.setCpuFallback(true);
+			runners.add(createRunner("GPU emulated by CpuGpuApi", true));
+		}
 		return runners;
 	}
 